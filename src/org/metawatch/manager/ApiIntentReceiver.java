@@ -50,6 +50,9 @@ import android.util.Log;
 
 public class ApiIntentReceiver extends BroadcastReceiver {
 
+	/* Signature permission receivers of the METRICS broadcast must hold */
+	static final String READ_METRICS = "org.metawatch.manager.permission.READ_METRICS";
+
 	@Override
 	public void onReceive(Context context, Intent intent) {
 		
@@ -225,6 +228,16 @@ public class ApiIntentReceiver extends BroadcastReceiver {
 			}
 		}
 		
+		else if (action.equals("org.metawatch.manager.DUMP_METRICS")) {
+			/* Logs the link metrics and broadcasts them back as METRICS, only
+			 * to receivers holding READ_METRICS as anyone can ask.  Resetting
+			 * them is left to the Test activity for the same reason. */
+			if (Preferences.logging) Log.i(MetaWatch.TAG, LinkMetrics.dump());
+			Intent metrics = new Intent("org.metawatch.manager.METRICS");
+			metrics.putExtras(LinkMetrics.toBundle());
+			context.sendBroadcast(metrics, READ_METRICS);
+		}
+		
 	}
 	
 	private VibratePattern getVibratePatternFromIntent(Intent intent){
@@ -94,6 +94,10 @@ public class Application {
 	}
 	
 	public static void updateAppMode(Context context, Bitmap bitmap) {
+		updateAppMode(context, MonoFrame.fromBitmap(bitmap));
+	}
+	
+	public static void updateAppMode(Context context, MonoFrame frame) {
 		MetaWatchService.WatchModes.APPLICATION = true;
 		
 		if (MetaWatchService.WatchModes.APPLICATION == true) {
@@ -103,7 +107,7 @@ public class Application {
 				MetaWatchService.watchState = MetaWatchService.WatchStates.APPLICATION;
 			
 			if (MetaWatchService.watchState == MetaWatchService.WatchStates.APPLICATION) {
-				Protocol.sendLcdBitmap(bitmap, MetaWatchService.WatchBuffers.APPLICATION);
+				Protocol.sendLcdFrame(frame, MetaWatchService.WatchBuffers.APPLICATION);
 				Protocol.updateLcdDisplay(MetaWatchService.WatchBuffers.APPLICATION);
 			}
 		}		
@@ -0,0 +1,437 @@
+package org.metawatch.manager;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.metawatch.manager.MetaWatchService.Preferences;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.Debug;
+import android.text.Layout;
+import android.util.Log;
+
+/*
+ * Micro benchmarks for the hot paths of the send pipeline, run from the
+ * Test activity.  Results go to the log and are returned as a short summary.
+ */
+public class Benchmark {
+
+	private static final int WARMUP = 20000;
+	private static final int ITERATIONS = 200000;
+
+	private Benchmark() {
+	}
+
+	private static void log(String text) {
+		Log.d(MetaWatch.TAG, "Benchmark: " + text);
+	}
+
+	/* Stops the JIT from optimising away work whose result we don't use */
+	private static volatile int sink;
+
+	public static String crc() {
+		Random random = new Random(0);
+		StringBuilder summary = new StringBuilder();
+
+		// Check the table driven CRC against the original bit by bit version
+		byte[] out = new byte[2];
+		for (int i = 0; i < 10000; i++) {
+			byte[] data = new byte[random.nextInt(64)];
+			random.nextBytes(data);
+			Crc.compute(data, 0, data.length, out, 0);
+			if (!Arrays.equals(out, Crc.reference(data))) {
+				String result = "CRC mismatch on " + data.length + " byte frame!";
+				log(result);
+				return result;
+			}
+		}
+
+		int[] frameSizes = { 30, 27 }; // LCD row pair and OLED page frames
+		for (int size : frameSizes) {
+			byte[] frame = new byte[size + 2];
+			random.nextBytes(frame);
+
+			for (int i = 0; i < WARMUP; i++)
+				sink += Crc.reference(frame)[0];
+			long start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++)
+				sink += Crc.reference(frame)[0];
+			long reference = System.nanoTime() - start;
+
+			for (int i = 0; i < WARMUP; i++)
+				Crc.compute(frame, 0, size, frame, size);
+			start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++)
+				Crc.compute(frame, 0, size, frame, size);
+			long table = System.nanoTime() - start;
+
+			String line = size + " byte frames: bitwise " + (reference / ITERATIONS)
+					+ "ns, table " + (table / ITERATIONS) + "ns ("
+					+ ((long) ITERATIONS * 1000000000L / Math.max(table, 1))
+					+ " frames/s)";
+			log(line);
+			summary.append(line).append('\n');
+		}
+
+		return summary.toString();
+	}
+
+	/* Original LCD packing loop from Protocol.sendLcdArray */
+	private static byte[] referencePackLcd(int[] pixelArray) {
+		byte send[] = new byte[1152];
+		for (int i = 0; i < 1152; i++) {
+			int p[] = new int[8];
+			for (int j = 0; j < 8; j++) {
+				if (pixelArray[i * 8 + j] == Color.WHITE)
+					p[j] = 0;
+				else
+					p[j] = 1;
+			}
+			send[i] = (byte) (p[7] * 128 + p[6] * 64 + p[5] * 32 + p[4] * 16
+					+ p[3] * 8 + p[2] * 4 + p[1] * 2 + p[0] * 1);
+		}
+		return send;
+	}
+
+	/* Original OLED packing loop from Protocol.sendOledArray */
+	private static byte[] referencePackOled(int[] pixelArray) {
+		byte[] send = new byte[160];
+		for (int i = 0; i < 160; i++) {
+			boolean[] column = new boolean[8];
+			for (int j = 0; j < 8; j++) {
+				if (i < 80)
+					column[j] = pixelArray[80 * j + i] != Color.WHITE;
+				else
+					column[j] = pixelArray[80 * 8 + 80 * j + i - 80] != Color.WHITE;
+			}
+			for (int j = 0; j < 8; j++) {
+				if (column[j])
+					send[i] += Math.pow(2, j);
+			}
+		}
+		return send;
+	}
+
+	public static String pixelPacking() {
+		Random random = new Random(0);
+		StringBuilder summary = new StringBuilder();
+
+		int[] lcd = new int[96 * 96];
+		for (int i = 0; i < lcd.length; i++)
+			lcd[i] = random.nextBoolean() ? Color.WHITE : Color.BLACK;
+		int[] oled = new int[80 * 16];
+		System.arraycopy(lcd, 0, oled, 0, oled.length);
+
+		byte[] lcdPacked = new byte[1152];
+		byte[] oledPacked = new byte[160];
+
+		PixelPacker.packRows(lcd, lcd.length, lcdPacked, 0);
+		PixelPacker.packColumns(oled, 80, 16, oledPacked);
+		if (!Arrays.equals(lcdPacked, referencePackLcd(lcd))
+				|| !Arrays.equals(oledPacked, referencePackOled(oled))) {
+			String result = "Pixel packing mismatch!";
+			log(result);
+			return result;
+		}
+
+		final int frames = 2000;
+
+		for (int i = 0; i < frames; i++)
+			sink += referencePackLcd(lcd)[0];
+		long start = System.nanoTime();
+		for (int i = 0; i < frames; i++)
+			sink += referencePackLcd(lcd)[0];
+		long reference = System.nanoTime() - start;
+
+		for (int i = 0; i < frames; i++)
+			PixelPacker.packRows(lcd, lcd.length, lcdPacked, 0);
+		Debug.startAllocCounting();
+		int allocations = Debug.getThreadAllocCount();
+		start = System.nanoTime();
+		for (int i = 0; i < frames; i++)
+			PixelPacker.packRows(lcd, lcd.length, lcdPacked, 0);
+		long packed = System.nanoTime() - start;
+		allocations = Debug.getThreadAllocCount() - allocations;
+		Debug.stopAllocCounting();
+
+		String line = "LCD frame: original " + (reference / frames / 1000) + "us, packer "
+				+ (packed / frames / 1000) + "us, " + allocations + " allocations";
+		log(line);
+		summary.append(line).append('\n');
+
+		for (int i = 0; i < frames; i++)
+			sink += referencePackOled(oled)[0];
+		start = System.nanoTime();
+		for (int i = 0; i < frames; i++)
+			sink += referencePackOled(oled)[0];
+		reference = System.nanoTime() - start;
+
+		for (int i = 0; i < frames; i++)
+			PixelPacker.packColumns(oled, 80, 16, oledPacked);
+		Debug.startAllocCounting();
+		allocations = Debug.getThreadAllocCount();
+		start = System.nanoTime();
+		for (int i = 0; i < frames; i++)
+			PixelPacker.packColumns(oled, 80, 16, oledPacked);
+		packed = System.nanoTime() - start;
+		allocations = Debug.getThreadAllocCount() - allocations;
+		Debug.stopAllocCounting();
+
+		line = "OLED page: original " + (reference / frames) + "ns, packer "
+				+ (packed / frames) + "ns, " + allocations + " allocations";
+		log(line);
+		summary.append(line).append('\n');
+
+		return summary.toString();
+	}
+
+	/* Original Utils.ditherTo1bit, a pixel at a time with the error in doubles */
+	private static Bitmap referenceDither(Bitmap input, boolean inverted) {
+		Bitmap output = input.copy(Config.RGB_565, true);
+		double[][] pixels = new double[input.getWidth()][input.getHeight()];
+		final int w = input.getWidth();
+		final int h = input.getHeight();
+
+		for (int y = 0; y < h; ++y) {
+			for (int x = 0; x < w; ++x) {
+				int col = input.getPixel(x, y);
+				double R = ((col >> 16) & 0xff) / 256.0;
+				double G = ((col >> 8) & 0xff) / 256.0;
+				double B = (col & 0xff) / 256.0;
+				pixels[x][y] = ((0.3 * R) + (0.59 * G) + (0.11 * B));
+			}
+		}
+
+		for (int y = 0; y < h; ++y) {
+			for (int x = 0; x < w; ++x) {
+				double oldpixel = pixels[x][y];
+				double newpixel = oldpixel < 0.5 ? 0 : 1;
+				pixels[x][y] = newpixel;
+				double quant_error = oldpixel - newpixel;
+				if (x < w - 1)
+					pixels[x + 1][y] += 7.0 / 16.0 * quant_error;
+				if (x > 0 && y < h - 1)
+					pixels[x - 1][y + 1] += 3.0 / 16.0 * quant_error;
+				if (y < h - 1)
+					pixels[x][y + 1] += 5.0 / 16.0 * quant_error;
+				if (x < w - 1 && y < h - 1)
+					pixels[x + 1][y + 1] += 1.0 / 16.0 * quant_error;
+
+				int col = 0;
+				if (inverted)
+					col = newpixel > 0.5 ? 0xff000000 : 0xffffffff;
+				else
+					col = newpixel > 0.5 ? 0xffffffff : 0xff000000;
+				output.setPixel(x, y, col);
+			}
+		}
+		return output;
+	}
+
+	/* A smooth gradient with some noise, roughly what a photo gives the ditherer */
+	private static Bitmap testImage(int width, int height) {
+		Random random = new Random(0);
+		int[] pixels = new int[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int level = (x * 255 / width + y * 255 / height) / 2 + random.nextInt(32) - 16;
+				level = Math.max(0, Math.min(255, level));
+				pixels[y * width + x] = Color.rgb(level, (level + x) & 0xff, 255 - level);
+			}
+		}
+		return Bitmap.createBitmap(pixels, width, height, Config.RGB_565);
+	}
+
+	/* Percentage of pixels on which two black and white bitmaps differ */
+	private static float difference(Bitmap a, Bitmap b) {
+		final int width = a.getWidth();
+		final int height = a.getHeight();
+		int[] pa = new int[width];
+		int[] pb = new int[width];
+		int different = 0;
+		for (int y = 0; y < height; y++) {
+			a.getPixels(pa, 0, width, 0, y, width, 1);
+			b.getPixels(pb, 0, width, 0, y, width, 1);
+			for (int x = 0; x < width; x++)
+				if ((pa[x] == Color.WHITE) != (pb[x] == Color.WHITE))
+					different++;
+		}
+		return different * 100.0f / (width * height);
+	}
+
+	private static long timeDither(Bitmap input, Dither.Method method, int threads, int runs) {
+		long start = System.nanoTime();
+		for (int i = 0; i < runs; i++)
+			sink += Dither.toPacked(input, method, false, threads)[0];
+		return (System.nanoTime() - start) / runs;
+	}
+
+	public static String dithering() {
+		StringBuilder summary = new StringBuilder();
+		final int cores = Runtime.getRuntime().availableProcessors();
+
+		// The watch screen, and a 2 megapixel camera picture
+		final int[][] sizes = { { 96, 96 }, { 1600, 1200 } };
+		for (int[] size : sizes) {
+			final boolean small = size[0] * size[1] <= 96 * 96;
+			final int runs = small ? 200 : 3;
+			Bitmap input = testImage(size[0], size[1]);
+			String name = size[0] + "x" + size[1];
+
+			// Both use Floyd-Steinberg, they should only differ by rounding
+			Bitmap original = null;
+			long reference = -1;
+			try {
+				for (int i = 0; i < (small ? runs : 0); i++)
+					referenceDither(input, false).recycle();
+				// Seconds a go on a camera picture, once is enough
+				final int referenceRuns = small ? runs : 1;
+				long start = System.nanoTime();
+				for (int i = 0; i < referenceRuns; i++) {
+					if (original != null)
+						original.recycle();
+					original = referenceDither(input, false);
+				}
+				reference = (System.nanoTime() - start) / referenceRuns;
+			} catch (OutOfMemoryError e) {
+				log(name + ": original ran out of memory");
+			}
+
+			if (original != null) {
+				Bitmap dithered = Dither.toBitmap(input, Dither.Method.FLOYD_STEINBERG, false);
+				float difference = difference(original, dithered);
+				dithered.recycle();
+				original.recycle();
+				if (difference > 1.0f) {
+					String result = name + " dither differs from the original on " + difference + "% of pixels!";
+					log(result);
+					return result;
+				}
+			}
+
+			for (int i = 0; i < (small ? runs : 1); i++)
+				timeDither(input, Dither.Method.FLOYD_STEINBERG, 1, 1);
+			Debug.startAllocCounting();
+			int allocations = Debug.getThreadAllocCount();
+			long floyd = timeDither(input, Dither.Method.FLOYD_STEINBERG, 1, runs);
+			allocations = (Debug.getThreadAllocCount() - allocations) / runs;
+			Debug.stopAllocCounting();
+			long atkinson = timeDither(input, Dither.Method.ATKINSON, 1, runs);
+			long bayer = timeDither(input, Dither.Method.BAYER, 1, runs);
+			long tiled = timeDither(input, Dither.Method.FLOYD_STEINBERG, cores, runs);
+			input.recycle();
+
+			String line = name + ": original " + (reference < 0 ? "n/a" : (reference / 1000) + "us")
+					+ ", Floyd-Steinberg " + (floyd / 1000) + "us (" + allocations + " allocations)"
+					+ ", Atkinson " + (atkinson / 1000) + "us, Bayer " + (bayer / 1000) + "us, "
+					+ cores + " threads " + (tiled / 1000) + "us";
+			log(line);
+			summary.append(line).append('\n');
+		}
+
+		return summary.toString();
+	}
+
+	/* What BitmapCache.getBitmap used to do on every call before the lookup */
+	private static synchronized Bitmap referenceThemeLookup(Context context, String path) {
+		File themeFile = new File(Utils.getExternalFilesDir(context, "Themes"), Preferences.themeName+".zip");
+		sink += (int) themeFile.lastModified();
+		return BitmapCache.getBitmap(context, path);
+	}
+
+	public static String themeLookup(Context context) {
+		final String[] icons = { "idle_gmail.bmp", "idle_call.bmp", "idle_k9mail.bmp", "idle_calendar.bmp" };
+		final int lookups = 20000;
+
+		for (String icon : icons) {
+			if (BitmapCache.getBitmap(context, icon) == null) {
+				String result = "Icon " + icon + " not found!";
+				log(result);
+				return result;
+			}
+		}
+
+		for (int i = 0; i < lookups / 10; i++)
+			sink += referenceThemeLookup(context, icons[i & 3]).getWidth();
+		long start = System.nanoTime();
+		for (int i = 0; i < lookups; i++)
+			sink += referenceThemeLookup(context, icons[i & 3]).getWidth();
+		long reference = System.nanoTime() - start;
+
+		for (int i = 0; i < lookups / 10; i++)
+			sink += BitmapCache.getBitmap(context, icons[i & 3]).getWidth();
+		Debug.startAllocCounting();
+		int allocations = Debug.getThreadAllocCount();
+		start = System.nanoTime();
+		for (int i = 0; i < lookups; i++)
+			sink += BitmapCache.getBitmap(context, icons[i & 3]).getWidth();
+		long lookup = System.nanoTime() - start;
+		allocations = Debug.getThreadAllocCount() - allocations;
+		Debug.stopAllocCounting();
+
+		String line = "Icon lookup: with stat " + (reference / lookups) + "ns, snapshot "
+				+ (lookup / lookups) + "ns, " + allocations + " allocations";
+		log(line);
+		return line + '\n';
+	}
+
+	/*
+	 * A notification screen's text drawn through a bitmap and packed,
+	 * against drawn straight into the packed frame.
+	 */
+	public static String textLayout(Context context) {
+		final GlyphAtlas atlas = GlyphAtlas.get(FontCache.instance(context).Get());
+		final TextLayout layout = new TextLayout(atlas,
+				"The quick brown fox jumps over the lazy dog, then sends a long text message about it",
+				84, Layout.Alignment.ALIGN_NORMAL, 1.0f, Color.BLACK);
+		final Bitmap background = Bitmap.createBitmap(96, 96, Config.RGB_565);
+		Canvas canvas = new Canvas(background);
+		canvas.drawColor(Color.WHITE);
+		canvas.drawRect(0, 0, 96, 12, new Paint());
+
+		Bitmap drawn = background.copy(Config.RGB_565, true);
+		canvas.setBitmap(drawn);
+		canvas.translate(6, 16);
+		layout.draw(canvas);
+		if (!MonoFrame.fromBitmap(drawn).equals(MonoFrame.fromBitmap(background, layout, 6, 16, 0, MonoFrame.HEIGHT))) {
+			String result = "Text layout mismatch!";
+			log(result);
+			return result;
+		}
+
+		final int frames = 2000;
+
+		for (int i = 0; i < frames / 10; i++) {
+			layout.draw(canvas);
+			sink += MonoFrame.fromBitmap(drawn).hashCode();
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < frames; i++) {
+			layout.draw(canvas);
+			sink += MonoFrame.fromBitmap(drawn).hashCode();
+		}
+		long reference = System.nanoTime() - start;
+
+		for (int i = 0; i < frames / 10; i++)
+			sink += MonoFrame.fromBitmap(background, layout, 6, 16, 0, MonoFrame.HEIGHT).hashCode();
+		Debug.startAllocCounting();
+		int allocations = Debug.getThreadAllocCount();
+		start = System.nanoTime();
+		for (int i = 0; i < frames; i++)
+			sink += MonoFrame.fromBitmap(background, layout, 6, 16, 0, MonoFrame.HEIGHT).hashCode();
+		long packed = System.nanoTime() - start;
+		allocations = Debug.getThreadAllocCount() - allocations;
+		Debug.stopAllocCounting();
+
+		String line = "Text screen: through bitmap " + (reference / frames / 1000) + "us, packed "
+				+ (packed / frames / 1000) + "us, " + allocations + " allocations";
+		log(line);
+		return line + '\n';
+	}
+}
@@ -4,8 +4,6 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -13,115 +11,244 @@ import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
-import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipFile;
 
 import org.metawatch.manager.MetaWatchService.Preferences;
+import org.metawatch.manager.widgets.WidgetManager;
 
 import android.app.Activity;
 import android.app.ProgressDialog;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.FileObserver;
 import android.util.Log;
 
 public class BitmapCache {
 	
+	/*
+	 * A theme's images and properties, read from its zip on first use.  The
+	 * archive is opened through its central directory, so only the entries
+	 * a layout asks for are ever read.  A theme from a zip keeps up to
+	 * MAX_BITMAPS decoded images, the least recently used dropped first;
+	 * the built in theme is a fixed, small set of assets, so keeps all of
+	 * them.
+	 * Properties are small and parsed once.
+	 *
+	 * Lookups of something already read don't lock, they only stamp the
+	 * image as used; loading takes the theme's lock, so each entry is only
+	 * read once.
+	 */
 	public static class ThemeData {
+		private static final int MAX_BITMAPS = 32;
+
 		public ThemeData( String name ) {
+			this(name, MAX_BITMAPS);
+		}
+		
+		/* maxBitmaps of 0 keeps every image read */
+		protected ThemeData( String name, int maxBitmaps ) {
 			themeName = name;
+			this.maxBitmaps = maxBitmaps;
 		}
 		
 		public String themeName = "";
 		public long timeStamp = 0;
 
-		protected HashMap<String, Object> data = new HashMap<String,Object>();
+		private ZipFile zip = null;
+		private final int maxBitmaps;
+		
+		/* Stands in for keys this theme doesn't have, or that failed to load */
+		private static final Object MISSING = new Object();
+		
+		/* A decoded image, and when it was last looked up */
+		private static final class Cached {
+			final Bitmap bitmap;
+			volatile long used;
+			
+			Cached(Bitmap bitmap, long used) {
+				this.bitmap = bitmap;
+				this.used = used;
+			}
+		}
+		
+		/* Cached images or MISSING */
+		private final ConcurrentHashMap<String, Object> bitmaps = new ConcurrentHashMap<String, Object>();
+		private final ConcurrentHashMap<String, Object> properties = new ConcurrentHashMap<String, Object>();
+		/* Counts lookups, to order images by use; racing lookups may share a stamp */
+		private volatile long clock = 0;
+		private int bitmapCount = 0;
 		
 		public Object get(String key) {
-			return data.containsKey(key) ? data.get(key) : null;
+			Bitmap bitmap = getBitmap(key);
+			return bitmap != null ? bitmap : getProperties(key);
 		}
 		
 		public Bitmap getBitmap(String key) {
-			Object obj = data.get(key);
-			return obj instanceof Bitmap ? (Bitmap) obj : null;
+			if (key == null)
+				return null;
+			Object entry = bitmaps.get(key);
+			if (entry == null)
+				entry = readBitmap(key);
+			if (!(entry instanceof Cached))
+				return null;
+			Cached cached = (Cached) entry;
+			cached.used = ++clock;
+			return cached.bitmap;
 		}
 		
 		public Properties getProperties(String key) {
-			Object obj = data.get(key);
-			return obj instanceof Properties ? (Properties) obj : null;
+			if (key == null)
+				return null;
+			Object entry = properties.get(key);
+			if (entry == null)
+				entry = readProperties(key);
+			return entry instanceof Properties ? (Properties) entry : null;
 		}
 		
-		public void readTheme(File themeFile) {
+		private synchronized Object readBitmap(String key) {
+			Object entry = bitmaps.get(key);
+			if (entry != null)
+				return entry;
 			
-			HashMap<String, Object> newCache = new HashMap<String,Object>();
-			
-			FileInputStream fis = null;
-			ZipInputStream zis = null;
+			Bitmap bitmap = loadBitmap(key);
+			if (bitmap == null) {
+				bitmaps.put(key, MISSING);
+				return MISSING;
+			}
+			if (maxBitmaps > 0 && bitmapCount >= maxBitmaps)
+				evictLeastUsed();
+			entry = new Cached(bitmap, clock);
+			bitmaps.put(key, entry);
+			bitmapCount++;
+			return entry;
+		}
+		
+		/* Drops the image looked up longest ago, with the lock held */
+		private void evictLeastUsed() {
+			String oldest = null;
+			long oldestUsed = Long.MAX_VALUE;
+			for (Map.Entry<String, Object> entry : bitmaps.entrySet()) {
+				if (entry.getValue() instanceof Cached) {
+					long used = ((Cached) entry.getValue()).used;
+					if (used < oldestUsed) {
+						oldestUsed = used;
+						oldest = entry.getKey();
+					}
+				}
+			}
+			if (oldest != null) {
+				bitmaps.remove(oldest);
+				bitmapCount--;
+			}
+		}
+		
+		private synchronized Object readProperties(String key) {
+			Object entry = properties.get(key);
+			if (entry != null)
+				return entry;
 			
+			Properties props = loadProperties(key);
+			entry = props != null ? props : MISSING;
+			properties.put(key, entry);
+			return entry;
+		}
+		
+		/* Opens the theme's archive, dropping anything read from an earlier one */
+		public synchronized void readTheme(File themeFile) {
+			close();
 			timeStamp = themeFile.lastModified();
 			
 			try {
-			
-			    fis = new FileInputStream(themeFile);
-				zis = new ZipInputStream(fis);
-						
-				ZipEntry ze = zis.getNextEntry();
-	            while (ze != null) 
-	            { 
-	                String entryName = ze.getName();
-	                
-	            	final int size = (int) ze.getSize();
-	            	
-	            	// Need to copy into a buffer rather than decoding directly from zis
-	            	// as BitmapFactory seems unable to read a .bmp file from a
-	            	// ZipInputStream :-\
-	            	byte[] buffer = new byte[size];
-	            	int offset = 0;
-	            	int read=0;
-	            	do {
-	            		read = zis.read(buffer, offset, size-offset);
-	            		offset += read;
-	            	} while(read>0);
-	            	
-	            	if( entryName.toLowerCase().endsWith(".bmp") || entryName.toLowerCase().endsWith(".png")) {	            	
-		            	Bitmap bitmap = BitmapFactory.decodeByteArray(buffer, 0, size);
-		            	if (bitmap !=null) {
-		            		//if (Preferences.logging) Log.d(MetaWatch.TAG, "Loaded "+ze.getName());
-		            		newCache.put(entryName, bitmap);
-		            	} else {
-		            		if (Preferences.logging) Log.d(MetaWatch.TAG, "Failed to load "+ze.getName());
-		            	}           	
-	            	}
-	            	else if( entryName.toLowerCase().endsWith(".xml")) {
-	            		ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(buffer);
-	            		Properties properties = new Properties();
-	            		properties.loadFromXML(byteArrayInputStream);
-	            		
-	            		newCache.put(entryName, properties);
-	            	}
-
-	                zis.closeEntry();
-	                ze = zis.getNextEntry();
-
-	            }
-				
-			} catch (FileNotFoundException e) {
+				zip = new ZipFile(themeFile);
 			} catch (IOException e) {
+				if (Preferences.logging) Log.d(MetaWatch.TAG, "Failed to open theme "+themeFile);
 			}
-			finally {
+		}
+		
+		public synchronized void close() {
+			if (zip != null) {
 				try {
-					if (zis!=null)
-						zis.close();
-					if (fis!=null)
-						fis.close();
+					zip.close();
 				} catch (IOException e) {
 				}
+				zip = null;
 			}
+			bitmaps.clear();
+			bitmapCount = 0;
+			properties.clear();
+		}
+		
+		protected Bitmap loadBitmap(String key) {
+			final String name = key.toLowerCase();
+			if (!name.endsWith(".bmp") && !name.endsWith(".png"))
+				return null;
+			
+			// BitmapFactory seems unable to read a .bmp file straight from a
+			// zip stream :-\
+			byte[] buffer = readEntry(key);
+			if (buffer == null)
+				return null;
+			
+			Bitmap bitmap = BitmapFactory.decodeByteArray(buffer, 0, buffer.length);
+			if (bitmap == null) {
+				if (Preferences.logging) Log.d(MetaWatch.TAG, "Failed to load "+key);
+			}
+			return bitmap;
+		}
+		
+		protected Properties loadProperties(String key) {
+			if (!key.toLowerCase().endsWith(".xml"))
+				return null;
+			
+			byte[] buffer = readEntry(key);
+			if (buffer == null)
+				return null;
+			
+			try {
+				Properties props = new Properties();
+				props.loadFromXML(new ByteArrayInputStream(buffer));
+				return props;
+			} catch (IOException e) {
+				if (Preferences.logging) Log.d(MetaWatch.TAG, "Failed to load "+key);
+				return null;
+			}
+		}
+		
+		private byte[] readEntry(String key) {
+			if (zip == null)
+				return null;
+			ZipEntry ze = zip.getEntry(key);
+			if (ze == null || ze.isDirectory())
+				return null;
 			
-			data = newCache;
-		   
+			InputStream is = null;
+			try {
+				is = zip.getInputStream(ze);
+				final int size = (int) ze.getSize();
+				byte[] buffer = new byte[size];
+				int offset = 0;
+				while (offset < size) {
+					int read = is.read(buffer, offset, size-offset);
+					if (read < 0)
+						return null;
+					offset += read;
+				}
+				return buffer;
+			} catch (IOException e) {
+				return null;
+			} finally {
+				try {
+					if (is!=null)
+						is.close();
+				} catch (IOException e) {
+				}
+			}
 		}
 
 		public Bitmap getBanner() {
@@ -136,7 +263,7 @@ public class BitmapCache {
 	
 	private static class DefaultTheme extends ThemeData {
 		public DefaultTheme(Context context) {
-			super("");
+			super("", 0);
 			this.context = context;
 		}
 		
@@ -147,34 +274,7 @@ public class BitmapCache {
 		}
 		
 		@Override
-		public Bitmap getBitmap(String key) {
-			Bitmap bitmap = super.getBitmap(key);
-			if (bitmap!=null) return bitmap;
-			
-			bitmap = loadBitmapFromAssets(context, key);
-			
-			if (bitmap!=null) {
-				data.put(key, bitmap);
-				return bitmap;
-			}
-			return null;
-		}
-		
-		@Override
-		public Properties getProperties(String key) {
-			Properties properties = super.getProperties(key);
-			if (properties!=null) return properties;
-			
-			properties = loadPropertiesFromAssets(context, key);
-			
-			if (properties!=null) {
-				data.put(key, properties);
-				return properties;
-			}
-			return null;
-		}
-		
-		private Bitmap loadBitmapFromAssets(Context context, String path) {
+		protected Bitmap loadBitmap(String path) {
 			
 			try {
 				InputStream inputStream = context.getAssets().open(path);
@@ -186,7 +286,8 @@ public class BitmapCache {
 			}
 		}
 		
-		private Properties loadPropertiesFromAssets(Context context, String path) {
+		@Override
+		protected Properties loadProperties(String path) {
 			
 			try {
 				InputStream inputStream = context.getAssets().open(path);
@@ -200,61 +301,158 @@ public class BitmapCache {
 		}
 	}
 	
+	/*
+	 * The themes lookups use, replaced as a whole when the theme changes.
+	 * Lookups count themselves in and out, so a replaced theme is closed
+	 * by whichever of invalidate() or the last lookup still using it
+	 * finishes last.
+	 */
+	private static final class Themes {
+		final DefaultTheme internal;
+		final ThemeData current;
+		
+		final AtomicInteger users = new AtomicInteger();
+		volatile boolean retired = false;
+		
+		Themes(DefaultTheme internal, ThemeData current) {
+			this.internal = internal;
+			this.current = current;
+		}
+		
+		void release() {
+			if (users.decrementAndGet() == 0 && retired)
+				current.close();
+		}
+		
+		void retire() {
+			retired = true;
+			if (users.get() == 0)
+				current.close();
+		}
+	}
+	
+	private static volatile Themes themes = null;
 	private static DefaultTheme internalTheme = null;
-	private static ThemeData currentTheme = null;
+	
+	/* Watches the themes directory for the current theme being replaced */
+	private static class Observer extends FileObserver {
+		
+		Context context;
+		
+		public Observer(String path, Context context) {
+			super(path, FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO | FileObserver.MOVED_FROM | FileObserver.DELETE);
+			this.context = context;
+		}
+		
+		public void onEvent(int event, String path) {
+			Themes snapshot = themes;
+			if (path != null && snapshot != null && path.equals(snapshot.current.themeName+".zip")) {
+				if (Preferences.logging) Log.d(MetaWatch.TAG, "Theme "+path+" changed");
+				invalidate();
+				Idle.updateIdle(context, true);
+			}
+		}
+	}
+	
+	private static Observer observer = null;
 	
 	private static File getThemeFile(Context context, String themeName) {
 		return new File(Utils.getExternalFilesDir(context, "Themes"), themeName+".zip");
 	}
 	
-	public static synchronized Bitmap getBitmap(Context context, String path) {
-		
-		updateCache(context);
+	public static Bitmap getBitmap(Context context, String path) {
 		
-		Bitmap bitmap = currentTheme.getBitmap(path);
-		if (bitmap!=null) return bitmap;
+		Themes snapshot = acquireThemes(context);
+		try {
+			Bitmap bitmap = snapshot.current.getBitmap(path);
+			if (bitmap!=null) return bitmap;
+			
+			bitmap = snapshot.internal.getBitmap(path);
+			if (bitmap!=null) return bitmap;
 		
-		bitmap = internalTheme.getBitmap(path);
-		if (bitmap!=null) return bitmap;
-	
-		return null;
+			return null;
+		} finally {
+			snapshot.release();
+		}
 		
 	}
 
 	
-	public static synchronized Properties getProperties(Context context, String path) {
-		
-		updateCache(context);
-
-		Properties properties = currentTheme.getProperties(path);
-		if (properties!=null) return properties;
-		
-		properties = internalTheme.getProperties(path);
-		if (properties!=null) return properties;
+	public static Properties getProperties(Context context, String path) {
 		
-		return new Properties();
+		Themes snapshot = acquireThemes(context);
+		try {
+			Properties properties = snapshot.current.getProperties(path);
+			if (properties!=null) return properties;
+			
+			properties = snapshot.internal.getProperties(path);
+			if (properties!=null) return properties;
+			
+			return new Properties();
+		} finally {
+			snapshot.release();
+		}
 	}
 	
 	public static Bitmap getDefaultThemeBanner(Context context) {
-		return internalTheme.getBanner();
+		return getThemes(context).internal.getBanner();
+	}
+	
+	/*
+	 * Drops the current theme, so the next lookup opens whichever one
+	 * Preferences.themeName names.  Called when the preference changes
+	 * and when the observer sees the theme's file replaced.  Lookups
+	 * already holding the old snapshot carry on with it, and the last of
+	 * them closes it.
+	 */
+	public static synchronized void invalidate() {
+		Themes snapshot = themes;
+		themes = null;
+		if (snapshot != null)
+			snapshot.retire();
+		// Widgets look the same to WidgetManager, but are drawn from the theme
+		WidgetManager.invalidateContent();
 	}
 	
-	private static void updateCache(Context context) {
+	/* The current snapshot, counted in until release() */
+	private static Themes acquireThemes(Context context) {
+		while (true) {
+			Themes snapshot = getThemes(context);
+			snapshot.users.incrementAndGet();
+			if (!snapshot.retired)
+				return snapshot;
+			// Replaced meanwhile, and maybe closed already
+			snapshot.release();
+		}
+	}
+	
+	private static Themes getThemes(Context context) {
+		Themes snapshot = themes;
+		return snapshot != null ? snapshot : loadThemes(context);
+	}
+	
+	private static synchronized Themes loadThemes(Context context) {
+		if (themes != null)
+			return themes;
 		
 		if (internalTheme==null) {
 			internalTheme = new DefaultTheme(context);
 		}
 		
-		File themeFile = getThemeFile(context, Preferences.themeName);
-		
-		if (currentTheme == null || Preferences.themeName != currentTheme.themeName || (themeFile.lastModified() != currentTheme.timeStamp)) {
-			currentTheme = loadTheme(context, Preferences.themeName, themeFile);
+		if (observer==null) {
+			File searchDir = Utils.getExternalFilesDir(context, "Themes");
+			if (searchDir != null) {
+				observer = new Observer(searchDir.getAbsolutePath(), context.getApplicationContext());
+				observer.startWatching();
+			}
 		}
+		
+		themes = new Themes(internalTheme, loadTheme(context, Preferences.themeName));
+		return themes;
 	}
 	
 	public static ThemeData getInternalTheme(Context context) {
-		updateCache(context);
-		return internalTheme;
+		return getThemes(context).internal;
 	}
 	
 	public static ThemeData loadTheme(Context context, String themeName) {
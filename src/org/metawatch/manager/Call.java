@@ -118,7 +118,7 @@ public class Call {
 			canvas.drawBitmap(Utils.getBitmap(context, "menu.bmp"), 87, 87, null);
 			
 			
-			Protocol.sendLcdBitmap(bitmap, MetaWatchService.WatchBuffers.NOTIFICATION);		
+			Protocol.sendLcdFrame(MonoFrame.fromBitmap(bitmap), MetaWatchService.WatchBuffers.NOTIFICATION);		
 			Protocol.updateLcdDisplay(MetaWatchService.WatchBuffers.NOTIFICATION);
 		} else {
 			Bitmap icon = Utils.getBitmap(context, "phone.bmp");
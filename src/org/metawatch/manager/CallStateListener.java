@@ -111,7 +111,7 @@ class CallStateListener extends PhoneStateListener {
 			if (messageWaiting) {
 				NotificationBuilder.createNewVoicemail(context);
 			}
-			Idle.updateIdle(context, true);
+			Monitors.publish(context, Monitors.DataSource.VOICEMAIL);
 			
 		}
 	}
@@ -0,0 +1,77 @@
+package org.metawatch.manager;
+
+/*
+ * CRC-CCITT (poly 0x1021, init 0xFFFF) as expected by the watch firmware.
+ *
+ * The firmware feeds the bits of each byte into the register LSB first,
+ * which is the same as running the reflected algorithm (poly 0x8408) and
+ * reflecting the 16 bit result at the end.  That lets us do a whole byte
+ * per table lookup instead of eight shift/test steps.
+ */
+public class Crc {
+
+	private static final int[] TABLE = new int[256];
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int j = 0; j < 8; j++) {
+				if ((crc & 1) != 0)
+					crc = (crc >>> 1) ^ 0x8408;
+				else
+					crc >>>= 1;
+			}
+			TABLE[i] = crc;
+		}
+	}
+
+	private Crc() {
+	}
+
+	/*
+	 * Returns the 16 bit CRC of len bytes of data starting at offset.
+	 */
+	public static int compute(byte[] data, int offset, int length) {
+		int crc = 0xFFFF;
+		final int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			crc = (crc >>> 8) ^ TABLE[(crc ^ data[i]) & 0xFF];
+		}
+		return Integer.reverse(crc) >>> 16;
+	}
+
+	/*
+	 * Computes the CRC of len bytes of data starting at offset, and writes it
+	 * (low byte first) to out[outOffset] and out[outOffset+1].
+	 *
+	 * Passing the same array as data and out, with outOffset == offset+len,
+	 * appends the CRC to a frame in place.
+	 */
+	public static void compute(byte[] data, int offset, int length, byte[] out, int outOffset) {
+		int crc = compute(data, offset, length);
+		out[outOffset] = (byte) crc;
+		out[outOffset + 1] = (byte) (crc >>> 8);
+	}
+
+	/*
+	 * Original bit by bit implementation, kept as a reference for the
+	 * benchmark to check the table driven version against.
+	 */
+	static byte[] reference(byte[] bytes) {
+		byte[] result = new byte[2];
+		short crc = (short) 0xFFFF;
+		for (int j = 0; j < bytes.length; j++) {
+			byte c = bytes[j];
+			for (int i = 7; i >= 0; i--) {
+				boolean c15 = ((crc >> 15 & 1) == 1);
+				boolean bit = ((c >> (7 - i) & 1) == 1);
+				crc <<= 1;
+				if (c15 ^ bit)
+					crc ^= 0x1021; // 0001 0000 0010 0001 (0, 5, 12)
+			}
+		}
+		int crc2 = crc - 0xffff0000;
+		result[0] = (byte) (crc2 % 256);
+		result[1] = (byte) (crc2 / 256);
+		return result;
+	}
+}
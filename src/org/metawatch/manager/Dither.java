@@ -0,0 +1,274 @@
+package org.metawatch.manager;
+
+import java.util.Arrays;
+
+import android.graphics.Bitmap;
+
+/*
+ * Reduces images to 1 bit per pixel for the watch.  Works on bulk ARGB
+ * pixel arrays with integer arithmetic, a band of rows at a time, and
+ * produces packed rows (leftmost pixel in the least significant bit, set
+ * bits black, like MonoFrame) which can be unpacked to a Bitmap for code
+ * that draws with a Canvas.
+ *
+ * Error diffusion (Floyd-Steinberg, Atkinson) carries error down the image,
+ * so when a large image is split between threads each tile starts afresh;
+ * the seams this leaves are not visible at that size.  Ordered (Bayer)
+ * dithering has no such dependency.
+ */
+public class Dither {
+
+	public enum Method {
+		FLOYD_STEINBERG,
+		ATKINSON,
+		BAYER
+	}
+
+	/* Pixels read from a bitmap at once */
+	private static final int BAND_PIXELS = 32 * 1024;
+	/* Smaller images aren't worth splitting between threads */
+	private static final int PARALLEL_PIXELS = 512 * 512;
+	private static final int MIN_TILE_ROWS = 64;
+
+	private static final int BLACK = 0xff000000;
+	private static final int WHITE = 0xffffffff;
+
+	/* 8x8 Bayer matrix, scaled to thresholds between 0 and 255 */
+	private static final int[] BAYER = new int[64];
+	static {
+		final int[] matrix = {
+			 0, 32,  8, 40,  2, 34, 10, 42,
+			48, 16, 56, 24, 50, 18, 58, 26,
+			12, 44,  4, 36, 14, 46,  6, 38,
+			60, 28, 52, 20, 62, 30, 54, 22,
+			 3, 35, 11, 43,  1, 33,  9, 41,
+			51, 19, 59, 27, 49, 17, 57, 25,
+			15, 47,  7, 39, 13, 45,  5, 37,
+			63, 31, 55, 23, 61, 29, 53, 21 };
+		for (int i = 0; i < 64; i++)
+			BAYER[i] = matrix[i] * 4 + 2;
+	}
+
+	private Dither() {
+	}
+
+	/* Luminance 0-255 with the weights ditherTo1bit always used, .3 .59 .11 */
+	private static int luminance(int pixel) {
+		return (((pixel >> 16) & 0xff) * 77 + ((pixel >> 8) & 0xff) * 151 + (pixel & 0xff) * 28) >> 8;
+	}
+
+	/*
+	 * Dithers consecutive rows of one image or tile.  Diffused error is kept
+	 * for the current row and the two below it, in 1/16ths of a level.
+	 */
+	private static final class Ditherer {
+		private final Method method;
+		private final boolean inverted;
+		private final int width;
+		private int y;
+
+		/* Indexed by x+2, so neighbours either side need no bounds checks */
+		private int[] current;
+		private int[] next;
+		private int[] afterNext;
+
+		Ditherer(Method method, boolean inverted, int width, int firstRow) {
+			this.method = method;
+			this.inverted = inverted;
+			this.width = width;
+			this.y = firstRow;
+			if (method != Method.BAYER) {
+				current = new int[width + 4];
+				next = new int[width + 4];
+				afterNext = new int[width + 4];
+			}
+		}
+
+		/* Dithers width pixels from pixels[offset] into packed[packedOffset] on */
+		void row(int[] pixels, int offset, byte[] packed, int packedOffset) {
+			switch (method) {
+			case FLOYD_STEINBERG:
+				floydSteinberg(pixels, offset, packed, packedOffset);
+				break;
+			case ATKINSON:
+				atkinson(pixels, offset, packed, packedOffset);
+				break;
+			case BAYER:
+				bayer(pixels, offset, packed, packedOffset);
+				break;
+			}
+
+			if (method != Method.BAYER) {
+				int[] done = current;
+				current = next;
+				next = afterNext;
+				afterNext = done;
+				Arrays.fill(afterNext, 0);
+			}
+			y++;
+		}
+
+		private void floydSteinberg(int[] pixels, int offset, byte[] packed, int packedOffset) {
+			final int[] current = this.current;
+			final int[] next = this.next;
+			int bits = 0;
+			for (int x = 0; x < width; x++) {
+				final int value = luminance(pixels[offset + x]) + (current[x + 2] >> 4);
+				final boolean black = value < 128;
+				final int error = black ? value : value - 255;
+				current[x + 3] += error * 7;
+				next[x + 1] += error * 3;
+				next[x + 2] += error * 5;
+				next[x + 3] += error;
+
+				if (black != inverted)
+					bits |= 1 << (x & 7);
+				if ((x & 7) == 7 || x == width - 1) {
+					packed[packedOffset + (x >> 3)] = (byte) bits;
+					bits = 0;
+				}
+			}
+		}
+
+		/* Spreads 6/8 of the error, which keeps highlights and shadows clean */
+		private void atkinson(int[] pixels, int offset, byte[] packed, int packedOffset) {
+			final int[] current = this.current;
+			final int[] next = this.next;
+			final int[] afterNext = this.afterNext;
+			int bits = 0;
+			for (int x = 0; x < width; x++) {
+				final int value = luminance(pixels[offset + x]) + (current[x + 2] >> 4);
+				final boolean black = value < 128;
+				final int share = (black ? value : value - 255) * 2;
+				current[x + 3] += share;
+				current[x + 4] += share;
+				next[x + 1] += share;
+				next[x + 2] += share;
+				next[x + 3] += share;
+				afterNext[x + 2] += share;
+
+				if (black != inverted)
+					bits |= 1 << (x & 7);
+				if ((x & 7) == 7 || x == width - 1) {
+					packed[packedOffset + (x >> 3)] = (byte) bits;
+					bits = 0;
+				}
+			}
+		}
+
+		private void bayer(int[] pixels, int offset, byte[] packed, int packedOffset) {
+			final int matrixRow = (y & 7) * 8;
+			int bits = 0;
+			for (int x = 0; x < width; x++) {
+				final boolean black = luminance(pixels[offset + x]) < BAYER[matrixRow + (x & 7)];
+				if (black != inverted)
+					bits |= 1 << (x & 7);
+				if ((x & 7) == 7 || x == width - 1) {
+					packed[packedOffset + (x >> 3)] = (byte) bits;
+					bits = 0;
+				}
+			}
+		}
+	}
+
+	public static int bytesPerRow(int width) {
+		return (width + 7) / 8;
+	}
+
+	/*
+	 * Dithers a width x height array of ARGB pixels into packed, which
+	 * must hold bytesPerRow(width) * height bytes.
+	 */
+	public static void dither(int[] pixels, int width, int height, Method method, boolean inverted, byte[] packed) {
+		final int bytesPerRow = bytesPerRow(width);
+		Ditherer ditherer = new Ditherer(method, inverted, width, 0);
+		for (int y = 0; y < height; y++)
+			ditherer.row(pixels, y * width, packed, y * bytesPerRow);
+	}
+
+	/* Dithers rows firstRow to endRow of a bitmap, reading a band at a time */
+	private static void ditherRows(Bitmap input, int firstRow, int endRow, Method method, boolean inverted, byte[] packed) {
+		final int width = input.getWidth();
+		final int bytesPerRow = bytesPerRow(width);
+		final int bandRows = Math.max(1, Math.min(BAND_PIXELS / width, endRow - firstRow));
+		final int[] band = new int[width * bandRows];
+
+		Ditherer ditherer = new Ditherer(method, inverted, width, firstRow);
+		for (int y = firstRow; y < endRow; y += bandRows) {
+			final int rows = Math.min(bandRows, endRow - y);
+			input.getPixels(band, 0, width, 0, y, width, rows);
+			for (int r = 0; r < rows; r++)
+				ditherer.row(band, r * width, packed, (y + r) * bytesPerRow);
+		}
+	}
+
+	/*
+	 * Dithers a bitmap to packed rows of bytesPerRow(width) bytes, splitting
+	 * large images into tiles across the available processors.
+	 */
+	public static byte[] toPacked(Bitmap input, Method method, boolean inverted) {
+		final int threads = input.getWidth() * input.getHeight() >= PARALLEL_PIXELS
+				? Runtime.getRuntime().availableProcessors() : 1;
+		return toPacked(input, method, inverted, threads);
+	}
+
+	public static byte[] toPacked(final Bitmap input, final Method method, final boolean inverted, int threads) {
+		final int height = input.getHeight();
+		final byte[] packed = new byte[bytesPerRow(input.getWidth()) * height];
+
+		threads = Math.max(1, Math.min(threads, height / MIN_TILE_ROWS));
+		if (threads == 1) {
+			ditherRows(input, 0, height, method, inverted, packed);
+			return packed;
+		}
+
+		Thread[] workers = new Thread[threads - 1];
+		final int tileRows = (height + threads - 1) / threads;
+		for (int i = 0; i < workers.length; i++) {
+			final int firstRow = (i + 1) * tileRows;
+			final int endRow = Math.min(height, firstRow + tileRows);
+			workers[i] = new Thread("Dither-" + (i + 1)) {
+				public void run() {
+					ditherRows(input, firstRow, endRow, method, inverted, packed);
+				}
+			};
+			workers[i].start();
+		}
+		// The first tile on this thread
+		ditherRows(input, 0, Math.min(height, tileRows), method, inverted, packed);
+
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return packed;
+	}
+
+	/* Expands packed rows into a black and white RGB_565 bitmap */
+	public static Bitmap unpack(byte[] packed, int width, int height) {
+		final int bytesPerRow = bytesPerRow(width);
+		final int bandRows = Math.max(1, Math.min(BAND_PIXELS / width, height));
+		final int[] band = new int[width * bandRows];
+
+		Bitmap output = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+		for (int y = 0; y < height; y += bandRows) {
+			final int rows = Math.min(bandRows, height - y);
+			for (int r = 0; r < rows; r++) {
+				final int rowBase = (y + r) * bytesPerRow;
+				final int p0 = r * width;
+				for (int x = 0; x < width; x++)
+					band[p0 + x] = (packed[rowBase + (x >> 3)] & (1 << (x & 7))) != 0 ? BLACK : WHITE;
+			}
+			output.setPixels(band, 0, width, 0, y, width, rows);
+		}
+		return output;
+	}
+
+	public static Bitmap toBitmap(Bitmap input, Method method, boolean inverted) {
+		return unpack(toPacked(input, method, inverted), input.getWidth(), input.getHeight());
+	}
+}
@@ -0,0 +1,113 @@
+package org.metawatch.manager;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Splits a byte stream from the watch (or, in the simulator, from the
+ * phone) into frames:
+ *
+ *   0x01, length, type, options, payload..., crc low, crc high
+ *
+ * where length counts the whole frame including the CRC.  Reads go into one
+ * reused buffer and frames are copied out into another, so decoding doesn't
+ * allocate.  Frames with a bad length or CRC are dropped, and the decoder
+ * resynchronises by hunting for the next start byte.
+ */
+public class FrameDecoder {
+
+	public static final int MIN_FRAME_LENGTH = 6;
+	/* Well above anything the watch firmware sends */
+	public static final int MAX_FRAME_LENGTH = 64;
+
+	private static final int BUFFER_SIZE = 512;
+
+	private final InputStream inputStream;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int start = 0;
+	private int end = 0;
+
+	private final byte[] frame = new byte[MAX_FRAME_LENGTH];
+
+	private int crcErrors = 0;
+	private int discardedBytes = 0;
+
+	public FrameDecoder(InputStream inputStream) {
+		this.inputStream = inputStream;
+	}
+
+	/*
+	 * Blocks until a valid frame has been read, copies it to the start of
+	 * frame() and returns its length.
+	 */
+	public int next() throws IOException {
+		while (true) {
+			while (start < end && buffer[start] != eMessageType.start) {
+				start++;
+				discardedBytes++;
+			}
+
+			if (end - start >= 2) {
+				final int length = buffer[start + 1] & 0xFF;
+				if (length < MIN_FRAME_LENGTH || length > MAX_FRAME_LENGTH) {
+					start++;
+					discardedBytes++;
+					continue;
+				}
+
+				if (end - start >= length) {
+					final int crc = Crc.compute(buffer, start, length - 2);
+					final int received = (buffer[start + length - 2] & 0xFF)
+							| (buffer[start + length - 1] & 0xFF) << 8;
+					if (crc != received) {
+						crcErrors++;
+						start++;
+						discardedBytes++;
+						continue;
+					}
+
+					System.arraycopy(buffer, start, frame, 0, length);
+					start += length;
+					return length;
+				}
+			}
+
+			fill();
+		}
+	}
+
+	private void fill() throws IOException {
+		if (start == end) {
+			start = end = 0;
+		} else if (BUFFER_SIZE - end < MAX_FRAME_LENGTH) {
+			System.arraycopy(buffer, start, buffer, 0, end - start);
+			end -= start;
+			start = 0;
+		}
+
+		int read = inputStream.read(buffer, end, BUFFER_SIZE - end);
+		if (read < 0)
+			throw new EOFException("Watch closed the connection");
+		end += read;
+	}
+
+	public InputStream getInputStream() {
+		return inputStream;
+	}
+
+	/*
+	 * The last frame returned by next().  Only valid until the next call.
+	 */
+	public byte[] frame() {
+		return frame;
+	}
+
+	public int getCrcErrors() {
+		return crcErrors;
+	}
+
+	public int getDiscardedBytes() {
+		return discardedBytes;
+	}
+}
@@ -0,0 +1,177 @@
+package org.metawatch.manager;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.metawatch.manager.FontCache.FontInfo;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/*
+ * One of the FontCache fonts rasterized at 1 bit per pixel, a glyph at a
+ * time as characters are first used.  Each glyph keeps its ink packed in
+ * rows the way the LCD wants them (leftmost pixel in the least significant
+ * bit), so TextLayout can put text on a screen by OR-ing bytes rather than
+ * going through the platform text stack.
+ *
+ * A pixel is ink if drawing the glyph in black on white left it anything
+ * but white - which is what PixelPacker makes of it - so text looks the
+ * same as when it was drawn on a Canvas.
+ *
+ * Advances and kerning are in 1/SUBPIXELS of a pixel, as the platform
+ * places glyphs at fractional positions.
+ */
+public class GlyphAtlas {
+
+	public static final int SUBPIXELS = 64;
+
+	public static final class Glyph {
+		/* Distance from this glyph's origin to the next one's, in subpixels */
+		public final int advance;
+		/* Top left of the ink relative to the origin on the baseline */
+		public final int left;
+		public final int top;
+		public final int width;
+		public final int height;
+		public final int bytesPerRow;
+		public final byte[] rows;
+
+		Glyph(int advance, int left, int top, int width, int height, byte[] rows) {
+			this.advance = advance;
+			this.left = left;
+			this.top = top;
+			this.width = width;
+			this.height = height;
+			this.bytesPerRow = (width + 7) / 8;
+			this.rows = rows;
+		}
+
+		public boolean hasInk() {
+			for (byte b : rows)
+				if (b != 0)
+					return true;
+			return false;
+		}
+	}
+
+	private static final Map<FontInfo, GlyphAtlas> atlases = new HashMap<FontInfo, GlyphAtlas>();
+
+	public static synchronized GlyphAtlas get(FontInfo font) {
+		GlyphAtlas atlas = atlases.get(font);
+		if (atlas == null) {
+			atlas = new GlyphAtlas(font);
+			atlases.put(font, atlas);
+		}
+		return atlas;
+	}
+
+	/* Kerning is measured between pairs of these, others get none */
+	private static final int KERNED_CHARS = 128;
+	private static final short UNMEASURED = Short.MIN_VALUE;
+
+	/* Pixels above and below the baseline a line of text takes */
+	public final int ascent;
+	public final int descent;
+
+	private final Paint paint;
+	private final Glyph[] latin1 = new Glyph[256];
+	private final Map<Character, Glyph> others = new HashMap<Character, Glyph>();
+	private final short[] kerning = new short[KERNED_CHARS * KERNED_CHARS];
+
+	private GlyphAtlas(FontInfo font) {
+		paint = new Paint();
+		paint.setColor(Color.BLACK);
+		paint.setTextSize(font.size);
+		paint.setTypeface(font.face);
+
+		Paint.FontMetricsInt metrics = paint.getFontMetricsInt();
+		ascent = -metrics.ascent;
+		descent = metrics.descent;
+
+		Arrays.fill(kerning, UNMEASURED);
+	}
+
+	public synchronized Glyph glyph(char c) {
+		if (c < latin1.length) {
+			Glyph glyph = latin1[c];
+			if (glyph == null) {
+				glyph = rasterize(c);
+				latin1[c] = glyph;
+			}
+			return glyph;
+		}
+
+		Glyph glyph = others.get(c);
+		if (glyph == null) {
+			glyph = rasterize(c);
+			others.put(c, glyph);
+		}
+		return glyph;
+	}
+
+	/* Adjustment to the advance of a when followed by b, in subpixels */
+	public synchronized int kerning(char a, char b) {
+		if (a >= KERNED_CHARS || b >= KERNED_CHARS)
+			return 0;
+
+		final int i = a * KERNED_CHARS + b;
+		if (kerning[i] == UNMEASURED) {
+			final float pair = paint.measureText(new char[] { a, b }, 0, 2);
+			kerning[i] = (short) (Math.round(pair * SUBPIXELS) - glyph(a).advance - glyph(b).advance);
+		}
+		return kerning[i];
+	}
+
+	/* Width of text[start, end) in subpixels */
+	public int measure(CharSequence text, int start, int end) {
+		int width = 0;
+		char previous = 0;
+		for (int i = start; i < end; i++) {
+			final char c = text.charAt(i);
+			if (i > start)
+				width += kerning(previous, c);
+			width += glyph(c).advance;
+			previous = c;
+		}
+		return width;
+	}
+
+	private Glyph rasterize(char c) {
+		final String s = String.valueOf(c);
+		final int advance = Math.round(paint.measureText(s) * SUBPIXELS);
+
+		Rect bounds = new Rect();
+		paint.getTextBounds(s, 0, 1, bounds);
+		if (bounds.isEmpty())
+			return new Glyph(advance, 0, 0, 0, 0, new byte[0]);
+
+		// The bounds aren't always exact, leave a pixel around them
+		final int left = bounds.left - 1;
+		final int top = bounds.top - 1;
+		final int width = bounds.width() + 2;
+		final int height = bounds.height() + 2;
+
+		Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		Canvas canvas = new Canvas(bitmap);
+		canvas.drawColor(Color.WHITE);
+		canvas.drawText(s, -left, -top, paint);
+		int[] pixels = new int[width * height];
+		bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+		bitmap.recycle();
+
+		final int bytesPerRow = (width + 7) / 8;
+		byte[] rows = new byte[bytesPerRow * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				if (pixels[y * width + x] != Color.WHITE)
+					rows[y * bytesPerRow + (x >> 3)] |= 1 << (x & 7);
+			}
+		}
+		return new Glyph(advance, left, top, width, height, rows);
+	}
+}
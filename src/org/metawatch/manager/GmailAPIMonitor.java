@@ -182,7 +182,7 @@ public class GmailAPIMonitor implements GmailMonitor {
 			
 			if (currentUnreadCount != lastUnreadCount)
 			{
-				Idle.updateIdle(context, true);
+				Monitors.publish(context, Monitors.DataSource.GMAIL);
 			}
 			
 			lastUnreadCount = currentUnreadCount;
@@ -117,7 +117,7 @@ public class GmailLSMonitor implements GmailMonitor {
 			
 			if (currentUnreadCount != lastUnreadCount)
 			{
-				Idle.updateIdle(context, true);
+				Monitors.publish(context, Monitors.DataSource.GMAIL);
 			}
 			
 			lastUnreadCount = currentUnreadCount;
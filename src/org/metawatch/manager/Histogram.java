@@ -0,0 +1,96 @@
+package org.metawatch.manager;
+
+/*
+ * Fixed size, log-linear histogram of non-negative values, in the spirit of
+ * HdrHistogram: each power of two is split into 8 buckets, so any value is
+ * recorded to within 12.5% with a few hundred counters and no allocation.
+ */
+public class Histogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final long[] counts = new long[BUCKETS];
+	private long total = 0;
+	private long sum = 0;
+	private long min = Long.MAX_VALUE;
+	private long max = 0;
+
+	/* Values below 2 * SUB_BUCKETS get a bucket each, above that 8 per power of two */
+	private static int indexFor(long value) {
+		if (value < 2 * SUB_BUCKETS)
+			return (int) value;
+		final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	/* Largest value that falls in the bucket */
+	private static long highestFor(int index) {
+		if (index < 2 * SUB_BUCKETS)
+			return index;
+		final int shift = index / SUB_BUCKETS - 1;
+		final long lowest = (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	public synchronized void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts[indexFor(value)]++;
+		total++;
+		sum += value;
+		if (value < min)
+			min = value;
+		if (value > max)
+			max = value;
+	}
+
+	public synchronized void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts[i] = 0;
+		total = 0;
+		sum = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+
+	public synchronized long getCount() {
+		return total;
+	}
+
+	public synchronized long getMin() {
+		return total == 0 ? 0 : min;
+	}
+
+	public synchronized long getMax() {
+		return max;
+	}
+
+	public synchronized long getMean() {
+		return total == 0 ? 0 : sum / total;
+	}
+
+	/*
+	 * Value at or below which the given percentage of recorded values fall,
+	 * e.g. getPercentile(99).
+	 */
+	public synchronized long getPercentile(double percentile) {
+		if (total == 0)
+			return 0;
+		final long target = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= target)
+				return Math.min(highestFor(i), max);
+		}
+		return max;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "n=" + total + " min=" + getMin() + " p50=" + getPercentile(50)
+				+ " p90=" + getPercentile(90) + " p99=" + getPercentile(99) + " max=" + max;
+	}
+}
@@ -33,6 +33,7 @@
 package org.metawatch.manager;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -101,11 +102,77 @@ public class Idle {
 		private List<WidgetRow> rows;
 		private int pageIndex;
 		
+		/* Last frame drawn for the LCD, and what it was drawn from */
+		private MonoFrame frame = null;
+		private long[] frameVersions = null;
+		private int frameGeneration = 0;
+		private int frameWatchType = WatchType.UNKNOWN;
+		private boolean frameSilent = false;
+		
 		public WidgetPage(List<WidgetRow> r, int p) {
 			rows = r;
 			pageIndex = p;
 		}
 		
+		private ArrayList<CharSequence> widgetIds() {
+			ArrayList<CharSequence> ids = new ArrayList<CharSequence>();
+			for(WidgetRow row : rows) {
+				ids.addAll(row.getIds());
+			}
+			return ids;
+		}
+		
+		/* Versions of the widget data this page shows, 0 for missing widgets */
+		private long[] widgetVersions() {
+			ArrayList<CharSequence> ids = widgetIds();
+			long[] versions = new long[ids.size()];
+			for (int i = 0; i < versions.length; i++) {
+				WidgetData data = widgetData != null ? widgetData.get(ids.get(i)) : null;
+				versions[i] = data != null ? data.version : 0;
+			}
+			return versions;
+		}
+		
+		/* Takes over the cached frame of the page it replaces, if that
+		 * showed the same widgets in the same place. */
+		void inheritFrame(WidgetPage previous) {
+			if (previous.pageIndex != pageIndex || !previous.widgetIds().equals(widgetIds()))
+				return;
+			frame = previous.frame;
+			frameVersions = previous.frameVersions;
+			frameGeneration = previous.frameGeneration;
+			frameWatchType = previous.frameWatchType;
+			frameSilent = previous.frameSilent;
+		}
+		
+		/* Draws the page for the LCD, unless nothing it shows has changed
+		 * since the last time. */
+		MonoFrame drawFrame(Context context, Bitmap scratch, int watchType) {
+			final long[] versions = widgetVersions();
+			final boolean silent = MetaWatchService.SilentMode();
+			if (frameCurrent(versions, silent, watchType)) {
+				if (Preferences.logging) Log.d(MetaWatch.TAG, "Idle: page "+pageIndex+" unchanged, not redrawn");
+				return frame;
+			}
+			
+			frame = MonoFrame.fromBitmap(draw(context, false, scratch, watchType));
+			frameVersions = versions;
+			frameGeneration = renderGeneration;
+			frameWatchType = watchType;
+			frameSilent = silent;
+			return frame;
+		}
+		
+		/* Whether drawFrame would just return the last frame */
+		boolean frameCurrent(int watchType) {
+			return frameCurrent(widgetVersions(), MetaWatchService.SilentMode(), watchType);
+		}
+		
+		private boolean frameCurrent(long[] versions, boolean silent, int watchType) {
+			return frame != null && frameGeneration == renderGeneration && frameWatchType == watchType
+					&& frameSilent == silent && Arrays.equals(versions, frameVersions);
+		}
+		
 		public void activate(final Context context, int watchType) {
 			//if (Preferences.quickButton != QuickButton.DISABLED) {
 				if (watchType == MetaWatchService.WatchType.DIGITAL) {
@@ -134,7 +201,7 @@ public class Idle {
 			} 
 			
 			if (MetaWatchService.SilentMode()) {
-				if (MetaWatchService.watchType==WatchType.DIGITAL) {
+				if (watchType==WatchType.DIGITAL) {
 					
 					Paint paint = new Paint();
 					paint.setColor(Color.BLACK);		
@@ -188,6 +255,10 @@ public class Idle {
 			return bitmap;
 		}
 		
+		boolean showsClock() {
+			return pageIndex==0 || Preferences.clockOnEveryPage;
+		}
+		
 		public int screenMode(int watchType) {
 			// Always use app buffer for clockless pages on gen2 watches
 			// this works around a bug in the fw that stops clockless idle
@@ -323,6 +394,13 @@ public class Idle {
 	private static ArrayList<IdlePage> idlePages = null;
 	private static Map<String,WidgetData> widgetData = null;
 	
+	/* Widget pages laid out for secondary watches of the other type than
+	 * the primary, if any are connected */
+	private static ArrayList<IdlePage> secondaryPages = null;
+	private static int secondaryType = WatchType.UNKNOWN;
+	/* The 32px screen last drawn for analog secondaries */
+	private static Bitmap secondaryOledIdle = null;
+	
 	public static void reset(Context context) {
 		toPage(context, 0);
 		if (idlePages != null)
@@ -346,51 +424,38 @@ public class Idle {
 			
 			List<WidgetRow> rows = WidgetManager.getDesiredWidgetsFromPrefs(context);
 			
+			final int otherType = WatchSession.getOtherWatchType();
+			List<WidgetRow> otherRows = null;
+			if (otherType != WatchType.UNKNOWN)
+				otherRows = WidgetManager.getDesiredWidgetsFromPrefs(context, otherType);
+			
 			ArrayList<CharSequence> widgetsDesired = new ArrayList<CharSequence>();
 			for(WidgetRow row : rows) {
 				widgetsDesired.addAll(row.getIds());
 			}
+			if (otherRows != null) {
+				for(WidgetRow row : otherRows) {
+					widgetsDesired.addAll(row.getIds());
+				}
+			}
 			
 			if (refresh)
-				widgetData = WidgetManager.refreshWidgets(context, widgetsDesired);
+				widgetData = WidgetManager.refreshInvalidWidgets(context, widgetsDesired);
 			else
 				widgetData = WidgetManager.getCachedWidgets(context, widgetsDesired);
 			
-			for(WidgetRow row : rows) { 
-				row.doLayout(widgetData);
-			}
-			
-			int maxScreenSize = 0;
+			ArrayList<IdlePage> screens = layoutPages(rows, MetaWatchService.watchType);
 			
-			if (MetaWatchService.watchType == MetaWatchService.WatchType.DIGITAL)
-				maxScreenSize = 96;
-			else if (MetaWatchService.watchType == MetaWatchService.WatchType.ANALOG)
-				maxScreenSize = 32;
-			
-			// Bucket rows into pages
-			ArrayList<IdlePage> screens = new ArrayList<IdlePage>();
-		
-			int screenSize = 0;
-			if (MetaWatchService.watchType == MetaWatchService.WatchType.DIGITAL) {
-				screenSize = 32; // Initial screen has top part used by the fw clock
-			}
-			
-			ArrayList<WidgetRow> screenRow = new ArrayList<WidgetRow>();
-			for(WidgetRow row : rows) { 
-				if(screenSize+row.getHeight() > maxScreenSize) {
-					screens.add(new WidgetPage(screenRow, screens.size()));
-					screenRow = new ArrayList<WidgetRow>();
-					if (MetaWatchService.watchType == MetaWatchService.WatchType.DIGITAL &&
-							Preferences.clockOnEveryPage) {
-						screenSize = 32;
-					} else { 
-						screenSize = 0;
-					}
-				}
-				screenRow.add(row);
-				screenSize += row.getHeight();
+			if (otherRows != null) {
+				ArrayList<IdlePage> otherScreens = layoutPages(otherRows, otherType);
+				if (secondaryPages != null && secondaryType == otherType)
+					inheritFrames(otherScreens, secondaryPages);
+				secondaryPages = otherScreens;
+			} else {
+				secondaryPages = null;
+				secondaryOledIdle = null;
 			}
-			screens.add(new WidgetPage(screenRow, screens.size()));
+			secondaryType = otherType;
 			
 			if (prevList == null) {			
 				SharedPreferences sharedPreferences = PreferenceManager
@@ -412,6 +477,9 @@ public class Idle {
 				}
 			}
 			
+			if (prevList != null)
+				inheritFrames(screens, prevList);
+			
 			idlePages = screens;
 			
 			if (prevList == null) {
@@ -426,6 +494,53 @@ public class Idle {
 		
 		if (Preferences.logging) Log.d(MetaWatch.TAG, "Idle.updateIdlePages end");
 	}
+	
+	/* Lays out the rows for the given type of watch and buckets them into pages */
+	private static ArrayList<IdlePage> layoutPages(List<WidgetRow> rows, int watchType) {
+		for(WidgetRow row : rows) { 
+			row.doLayout(widgetData, watchType);
+		}
+		
+		int maxScreenSize = 0;
+		
+		if (watchType == MetaWatchService.WatchType.DIGITAL)
+			maxScreenSize = 96;
+		else if (watchType == MetaWatchService.WatchType.ANALOG)
+			maxScreenSize = 32;
+		
+		// Bucket rows into pages
+		ArrayList<IdlePage> screens = new ArrayList<IdlePage>();
+	
+		int screenSize = 0;
+		if (watchType == MetaWatchService.WatchType.DIGITAL) {
+			screenSize = 32; // Initial screen has top part used by the fw clock
+		}
+		
+		ArrayList<WidgetRow> screenRow = new ArrayList<WidgetRow>();
+		for(WidgetRow row : rows) { 
+			if(screenSize+row.getHeight() > maxScreenSize) {
+				screens.add(new WidgetPage(screenRow, screens.size()));
+				screenRow = new ArrayList<WidgetRow>();
+				if (watchType == MetaWatchService.WatchType.DIGITAL &&
+						Preferences.clockOnEveryPage) {
+					screenSize = 32;
+				} else { 
+					screenSize = 0;
+				}
+			}
+			screenRow.add(row);
+			screenSize += row.getHeight();
+		}
+		screens.add(new WidgetPage(screenRow, screens.size()));
+		return screens;
+	}
+	
+	private static void inheritFrames(List<IdlePage> screens, List<IdlePage> prevList) {
+		for (int i = 0; i < screens.size() && i < prevList.size(); i++) {
+			if (screens.get(i) instanceof WidgetPage && prevList.get(i) instanceof WidgetPage)
+				((WidgetPage) screens.get(i)).inheritFrame((WidgetPage) prevList.get(i));
+		}
+	}
 
 	static Bitmap createIdle(Context context) {
 		return createIdle(context, false, currentPage);
@@ -445,6 +560,38 @@ public class Idle {
 		return bitmap;
 	}
 	
+	/* Bumped whenever something other than widget data may change how pages
+	 * look, e.g. preferences, so every cached page frame is redrawn */
+	private static volatile int renderGeneration = 0;
+	
+	static void invalidateFrames() {
+		renderGeneration++;
+	}
+	
+	/* Scratch bitmap for rendering LCD idle screens, only used under the createIdle lock */
+	private static Bitmap lcdScratch = null;
+	
+	static MonoFrame createIdleFrame(Context context) {
+		return createIdleFrame(context, currentPage);
+	}
+	
+	/* Renders a page for the LCD and packs it straight away, so the
+	 * rendered bitmap never outlives the call. */
+	static synchronized MonoFrame createIdleFrame(Context context, int page) {
+		if (lcdScratch == null)
+			lcdScratch = Bitmap.createBitmap(MonoFrame.WIDTH, MonoFrame.HEIGHT, Bitmap.Config.RGB_565);
+		
+		if(idlePages != null && idlePages.size()>page) {
+			IdlePage idlePage = idlePages.get(page);
+			if (idlePage instanceof WidgetPage)
+				return ((WidgetPage) idlePage).drawFrame(context, lcdScratch, MetaWatchService.watchType);
+			return MonoFrame.fromBitmap(idlePage.draw(context, false, lcdScratch, MetaWatchService.watchType));
+		}
+		
+		lcdScratch.eraseColor(Color.WHITE);
+		return MonoFrame.fromBitmap(lcdScratch);
+	}
+	
 	public static Canvas drawLine(Canvas canvas, int y) {
 	  Paint paint = new Paint();
 	  paint.setColor(Color.BLACK);
@@ -472,7 +619,8 @@ public class Idle {
 		}
 		
 		if (isBusy()) {
-			if (Preferences.logging) Log.d(MetaWatch.TAG, "Ignoring sendLcdIdle as Idle is busy");
+			if (Preferences.logging) Log.d(MetaWatch.TAG, "Idle is busy, retrying sendLcdIdle later");
+			scheduler.request(context, refresh);
 			return;
 		}
 		
@@ -494,16 +642,92 @@ public class Idle {
 			}
 		}
 		
-		Protocol.sendLcdBitmap(createIdle(context), mode);
+		Protocol.sendLcdFrame(createIdleFrame(context), mode);
 		if (mode == MetaWatchService.WatchBuffers.IDLE)
 			Protocol.configureIdleBufferSize(showClock, true);
 		
 		if (Preferences.logging) Log.d(MetaWatch.TAG, "sendLcdIdle: Drawing idle screen on buffer "+mode);
 		Protocol.updateLcdDisplay(mode);
 		
+		prepareNextPage(context, mode);
+		
 		if (Preferences.logging) Log.d(MetaWatch.TAG, "sendLcdIdle end");
 	}
 	
+	/* The next widget page, already rendered and written to the buffer it
+	 * is shown from while the current page is on screen, so flipping to it
+	 * only takes an UpdateDisplay. */
+	private static IdlePage preparedPage = null;
+	private static MonoFrame preparedFrame = null;
+	
+	/* What was last written by prepareNextPage, and to which buffer */
+	private static WidgetPage lastPreparedPage = null;
+	private static MonoFrame lastPreparedFrame = null;
+	private static int lastPreparedMode = -1;
+	
+	/* Renders the page after the current one into its buffer, if that isn't
+	 * the buffer being shown.  Only widget pages are prepared, app pages may
+	 * not like being drawn while they're not active.  Nothing is drawn or
+	 * sent if the page hasn't changed since it was last prepared. */
+	private static synchronized void prepareNextPage(Context context, int mode) {
+		preparedPage = null;
+		preparedFrame = null;
+		
+		if (!Preferences.speculativeIdlePages || idlePages == null || idlePages.size() < 2)
+			return;
+		
+		final int next = (currentPage + 1) % idlePages.size();
+		if (!(idlePages.get(next) instanceof WidgetPage))
+			return;
+		final WidgetPage page = (WidgetPage) idlePages.get(next);
+		
+		final int nextMode = page.screenMode(MetaWatchService.WatchType.DIGITAL);
+		if (nextMode == mode)
+			return;
+		
+		if (page == lastPreparedPage && nextMode == lastPreparedMode
+				&& page.frameCurrent(MetaWatchService.WatchType.DIGITAL)) {
+			// showPreparedPage still diffs it against whatever the buffer
+			// holds by then
+			preparedPage = page;
+			preparedFrame = lastPreparedFrame;
+			if (Preferences.logging) Log.d(MetaWatch.TAG, "Idle: page "+next+" unchanged since prepared");
+			return;
+		}
+		
+		MonoFrame frame = createIdleFrame(context, next);
+		Protocol.sendLcdFrame(frame, nextMode);
+		preparedPage = page;
+		preparedFrame = frame;
+		lastPreparedPage = page;
+		lastPreparedFrame = frame;
+		lastPreparedMode = nextMode;
+		
+		if (Preferences.logging) Log.d(MetaWatch.TAG, "Idle: prepared page "+next+" on buffer "+nextMode);
+	}
+	
+	/* Shows the current page straight away if it was prepared in advance.
+	 * Returns false if it still has to be drawn. */
+	static synchronized boolean showPreparedPage(Context context) {
+		if (preparedPage == null || idlePages == null || currentPage >= idlePages.size()
+				|| idlePages.get(currentPage) != preparedPage)
+			return false;
+		
+		final int mode = preparedPage.screenMode(MetaWatchService.WatchType.DIGITAL);
+		
+		// Normally sends nothing, unless something else wrote to the buffer since
+		Protocol.sendLcdFrame(preparedFrame, mode);
+		if (mode == MetaWatchService.WatchBuffers.IDLE)
+			Protocol.configureIdleBufferSize(MetaWatchService.SilentMode() || ((WidgetPage) preparedPage).showsClock(), true);
+		Protocol.updateLcdDisplay(mode);
+		
+		preparedPage = null;
+		preparedFrame = null;
+		
+		if (Preferences.logging) Log.d(MetaWatch.TAG, "Idle: showed prepared page "+currentPage);
+		return true;
+	}
+	
 	public static void toIdle(Context context) {
 		if (Preferences.logging) Log.d(MetaWatch.TAG, "Idle.toIdle()");
 		
@@ -545,6 +769,17 @@ public class Idle {
 	}
 	
 	public static void updateIdle(final Context context, final boolean refresh) {
+		updateIdle(context, refresh ? Monitors.DataSource.ALL : 0);
+	}
+	
+	/*
+	 * Updates the idle screen after a change to the given Monitors.DataSources,
+	 * refreshing just the widgets depending on them.  With no sources the
+	 * screen is only redrawn.
+	 */
+	public static void updateIdle(final Context context, final int sources) {
+		
+		WidgetManager.invalidate(sources);
 		
 		if (MetaWatchService.watchType == MetaWatchService.WatchType.UNKNOWN) {
 			if (Preferences.logging) Log.d(MetaWatch.TAG, "Idle.updateIdle() skipped - yet unknown watch type");
@@ -552,30 +787,99 @@ public class Idle {
 		}
 		
 		if (MetaWatchService.watchState == MetaWatchService.WatchStates.IDLE ) {
-			Thread thread = new Thread("UpdateIdle") {
-	
-				@Override
-				public void run() {
-					if (Preferences.logging) Log.d(MetaWatch.TAG, "Idle.updateIdle()");
-					long timestamp = System.currentTimeMillis();
-					
-					if (MetaWatchService.watchType == MetaWatchService.WatchType.DIGITAL)
-						sendLcdIdle(context, refresh);
-					else if (MetaWatchService.watchType == MetaWatchService.WatchType.ANALOG)
-						updateOledIdle(context, refresh);
-					
-					if (Preferences.logging) Log.d(MetaWatch.TAG, "updateIdle took " + (System.currentTimeMillis()-timestamp) + " ms" );
-				}
-			};
-			thread.start();
+			scheduler.request(context, sources != 0);
 		}
 		
 	}
+	
+	/* Merges and runs the requests from updateIdle */
+	private static final IdleScheduler scheduler = new IdleScheduler(new IdleScheduler.Renderer() {
+		public void render(Context context, boolean refresh) {
+			if (Preferences.logging) Log.d(MetaWatch.TAG, "Idle.updateIdle()");
+			
+			if (MetaWatchService.watchType == MetaWatchService.WatchType.DIGITAL)
+				sendLcdIdle(context, refresh);
+			else if (MetaWatchService.watchType == MetaWatchService.WatchType.ANALOG)
+				updateOledIdle(context, refresh);
+			
+			updateSecondaryIdle(context);
+		}
+	});
+	
+	/* The page secondary watches of the other type show, they don't page
+	 * through them themselves */
+	private static WidgetPage secondaryPage() {
+		final ArrayList<IdlePage> pages = secondaryPages;
+		if (pages == null || pages.isEmpty())
+			return null;
+		return (WidgetPage) pages.get(currentPage < pages.size() ? currentPage : 0);
+	}
+	
+	/*
+	 * Draws the idle screen for secondary watches of the other type than the
+	 * primary, whose frames they can't use.  Digital ones are sent it right
+	 * away, analog ones when their button asks for it.
+	 */
+	private static void updateSecondaryIdle(Context context) {
+		final int type = WatchSession.getOtherWatchType();
+		if (type == WatchType.UNKNOWN) {
+			secondaryOledIdle = null;
+			return;
+		}
+		if (type != secondaryType && !isBusy())
+			updateIdlePages(context, false);
+		
+		final WidgetPage page = secondaryPage();
+		if (page == null)
+			return;
 		
+		if (type == WatchType.DIGITAL) {
+			final MonoFrame frame = createSecondaryFrame(context, page);
+			final boolean showClock = MetaWatchService.SilentMode() || page.showsClock();
+			for (WatchSession session : WatchSession.getSessions()) {
+				if (session.isPrimary() || session.getWatchType() != type)
+					continue;
+				Protocol.toSession(session, new Runnable() {
+					public void run() {
+						Protocol.sendLcdFrame(frame, MetaWatchService.WatchBuffers.IDLE);
+						Protocol.configureIdleBufferSize(showClock, true);
+						Protocol.updateLcdDisplay(MetaWatchService.WatchBuffers.IDLE);
+					}
+				});
+			}
+		} else {
+			secondaryOledIdle = createSecondaryOled(context, page);
+		}
+	}
+	
+	private static synchronized MonoFrame createSecondaryFrame(Context context, WidgetPage page) {
+		if (lcdScratch == null)
+			lcdScratch = Bitmap.createBitmap(MonoFrame.WIDTH, MonoFrame.HEIGHT, Bitmap.Config.RGB_565);
+		return page.drawFrame(context, lcdScratch, WatchType.DIGITAL);
+	}
+	
+	private static synchronized Bitmap createSecondaryOled(Context context, WidgetPage page) {
+		Bitmap bitmap = Bitmap.createBitmap(80, 32, Bitmap.Config.RGB_565);
+		return page.draw(context, false, bitmap, WatchType.ANALOG);
+	}
+	
+	/* Shows the idle screen on an analog secondary's OLEDs */
+	static void sendSecondaryOledIdle(Context context, WatchSession session) {
+		final Bitmap oled = secondaryOledIdle;
+		if (oled == null)
+			return;
+		Protocol.toSession(session, new Runnable() {
+			public void run() {
+				sendOled(oled, MetaWatchService.WatchBuffers.IDLE);
+			}
+		});
+	}
 	
 	private static void updateOledIdle(Context context, boolean refresh) {	
-		if (isBusy())
+		if (isBusy()) {
+			scheduler.request(context, refresh);
 			return;
+		}
 		
 		final int mode = getScreenMode(MetaWatchService.WatchType.ANALOG);
 		
@@ -592,13 +896,15 @@ public class Idle {
 	 		updateOledIdle(context, true);
 		}
 	 		
-		final int mode = getScreenMode(MetaWatchService.WatchType.ANALOG);
-			
+		sendOled(oledIdle, getScreenMode(MetaWatchService.WatchType.ANALOG));
+	}
+	
+	private static void sendOled(Bitmap oled, int mode) {
 		// Split into top/bottom, and send
 		for(int i=0; i<2; ++i) {
 			Bitmap bitmap = Bitmap.createBitmap(80, 16, Bitmap.Config.RGB_565);
 			Canvas canvas = new Canvas(bitmap);
-			canvas.drawBitmap(oledIdle, 0, -(i*16), null);
+			canvas.drawBitmap(oled, 0, -(i*16), null);
 			Protocol.sendOledBitmap(bitmap, mode, i);
 		}
 		Protocol.oledChangeMode(mode);					
@@ -0,0 +1,103 @@
+package org.metawatch.manager;
+
+import org.metawatch.manager.MetaWatchService.Preferences;
+
+import android.content.Context;
+import android.util.Log;
+
+/*
+ * Runs idle screen updates one at a time on a single long lived thread.
+ *
+ * Requests that arrive while an update is waiting are merged into it, a
+ * refresh of the widget data winning over a plain redraw.  The update only
+ * starts Preferences.renderDebounce after the first of them, so a burst of
+ * content observer callbacks costs one render.  A request that arrives
+ * while a render is running is kept for the next one, so the final state
+ * is always drawn.
+ */
+class IdleScheduler {
+
+	interface Renderer {
+		/* Called on the scheduler thread */
+		void render(Context context, boolean refresh);
+	}
+
+	private final Renderer renderer;
+
+	private Context context = null;
+	private boolean pending = false;
+	private boolean pendingRefresh = false;
+	private long due = 0;
+
+	private Thread thread = null;
+
+	private int requests = 0;
+	private int renders = 0;
+
+	IdleScheduler(Renderer renderer) {
+		this.renderer = renderer;
+	}
+
+	synchronized void request(Context context, boolean refresh) {
+		this.context = context;
+		requests++;
+		pendingRefresh |= refresh;
+		if (!pending) {
+			pending = true;
+			due = System.currentTimeMillis() + Preferences.renderDebounce;
+		}
+
+		if (thread == null) {
+			thread = new Thread(scheduler, "IdleRenderer");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		notify();
+	}
+
+	synchronized int getRequests() {
+		return requests;
+	}
+
+	synchronized int getRenders() {
+		return renders;
+	}
+
+	private Runnable scheduler = new Runnable() {
+		public void run() {
+			while (true) {
+				Context context;
+				boolean refresh;
+				synchronized (IdleScheduler.this) {
+					try {
+						long now = System.currentTimeMillis();
+						while (!pending || now < due) {
+							IdleScheduler.this.wait(pending ? due - now : 0);
+							now = System.currentTimeMillis();
+						}
+					} catch (InterruptedException e) {
+						thread = null;
+						return;
+					}
+					context = IdleScheduler.this.context;
+					refresh = pendingRefresh;
+					pending = false;
+					pendingRefresh = false;
+				}
+
+				long timestamp = System.currentTimeMillis();
+				try {
+					renderer.render(context, refresh);
+				} catch (RuntimeException e) {
+					Log.e(MetaWatch.TAG, "Idle update failed", e);
+				}
+
+				synchronized (IdleScheduler.this) {
+					renders++;
+					if (Preferences.logging) Log.d(MetaWatch.TAG, "updateIdle took " + (System.currentTimeMillis()-timestamp)
+							+ " ms (" + renders + " renders for " + requests + " requests)");
+				}
+			}
+		}
+	};
+}
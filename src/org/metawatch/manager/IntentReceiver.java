@@ -131,7 +131,7 @@ public class IntentReceiver extends BroadcastReceiver {
 									+ recipient + "' is "
 									+ Monitors.getGmailUnreadCount(recipient));
 					
-					Idle.updateIdle(context, true);
+					Monitors.publish(context, Monitors.DataSource.GMAIL);
 					
 					return;
 				}
@@ -210,7 +210,7 @@ public class IntentReceiver extends BroadcastReceiver {
 				Call.inCall = true;
 				if(intent.hasExtra("android.intent.extra.PHONE_NUMBER"))
 					Call.phoneNumber = intent.getStringExtra("android.intent.extra.PHONE_NUMBER");
-				Idle.updateIdle(context, true);
+				Monitors.publish(context, Monitors.DataSource.CALLS);
 				
 			}
 			else if (action.equals("com.fsck.k9.intent.action.EMAIL_RECEIVED")) {
@@ -224,7 +224,7 @@ public class IntentReceiver extends BroadcastReceiver {
 					NotificationBuilder.createK9(context, sender, subject, account+":"+folder);
 				}
 				Utils.refreshUnreadK9Count(context);
-				Idle.updateIdle(context, true);
+				Monitors.publish(context, Monitors.DataSource.K9);
 	
 				return;
 			}
@@ -247,7 +247,7 @@ public class IntentReceiver extends BroadcastReceiver {
 				
 				if (bundle.containsKey("windroid.extra.SMARTWATCH_COUNT")) {
 					Monitors.TouchDownData.unreadMailCount = bundle.getInt("windroid.extra.SMARTWATCH_COUNT");
-					Idle.updateIdle(context, true);
+					Monitors.publish(context, Monitors.DataSource.TOUCHDOWN);
 				}
 				
 				return;
@@ -315,7 +315,7 @@ public class IntentReceiver extends BroadcastReceiver {
 					 intent.getAction().equals("org.metawatch.manager.UPDATE_APPSCREEN_CLOCK")){
 				
 				if (MetaWatchService.watchType == MetaWatchService.WatchType.DIGITAL) {
-					Idle.updateIdle(context, true);
+					Monitors.publish(context, Monitors.DataSource.CALENDAR | Monitors.DataSource.TIME);
 				}
 				
 			}
@@ -0,0 +1,208 @@
+package org.metawatch.manager;
+
+import android.os.Bundle;
+
+/*
+ * Counters and histograms describing what goes over the link to the watch,
+ * for tuning the pacer and checking that rendering changes actually reduce
+ * the traffic:
+ *
+ *  - frames and bytes sent and received, per message type;
+ *  - enqueue-to-wire latency, from a frame being queued until the write
+ *    containing it returned;
+ *  - send queue depth, sampled every burst;
+ *  - LCD rows not sent because they hadn't changed, or because a newer
+ *    version replaced them in the queue;
+ *  - connections and lost connections;
+ *  - how often TextLayoutCache had the text to draw already laid out.
+ *
+ * Rates are averaged since the last reset().  Everything is available as a
+ * Bundle for clients and as text for the log.
+ */
+public class LinkMetrics {
+
+	private static final long[] framesSent = new long[256];
+	private static final long[] bytesSent = new long[256];
+	private static final long[] framesReceived = new long[256];
+	private static final long[] bytesReceived = new long[256];
+
+	/* Latency in microseconds, depth in frames */
+	private static final Histogram latency = new Histogram();
+	private static final Histogram queueDepth = new Histogram();
+
+	private static long rowsSent = 0;
+	private static long rowsUnchanged = 0;
+	private static int connects = 0;
+	private static int connectionsLost = 0;
+
+	private static long since = System.currentTimeMillis();
+
+	private static String[] typeNames = null;
+
+	private LinkMetrics() {
+	}
+
+	/*
+	 * A frame of the given type, length including CRC, went out in a write
+	 * that finished at nowNanos.
+	 */
+	static synchronized void frameSent(int type, int length, long enqueuedNanos, long nowNanos) {
+		framesSent[type & 0xFF]++;
+		bytesSent[type & 0xFF] += length;
+		if (enqueuedNanos != 0)
+			latency.record((nowNanos - enqueuedNanos) / 1000);
+	}
+
+	static synchronized void frameReceived(int type, int length) {
+		framesReceived[type & 0xFF]++;
+		bytesReceived[type & 0xFF] += length;
+	}
+
+	static void queueDepth(int depth) {
+		queueDepth.record(depth);
+	}
+
+	/* Of the rows in a screen, how many were queued and how many skipped */
+	static synchronized void rows(int sent, int unchanged) {
+		rowsSent += sent;
+		rowsUnchanged += unchanged;
+	}
+
+	static synchronized void connected() {
+		connects++;
+	}
+
+	static synchronized void connectionLost() {
+		connectionsLost++;
+	}
+
+	public static synchronized void reset() {
+		for (int i = 0; i < 256; i++) {
+			framesSent[i] = 0;
+			bytesSent[i] = 0;
+			framesReceived[i] = 0;
+			bytesReceived[i] = 0;
+		}
+		latency.reset();
+		queueDepth.reset();
+		TextLayoutCache.resetStats();
+		rowsSent = 0;
+		rowsUnchanged = 0;
+		connects = 0;
+		connectionsLost = 0;
+		since = System.currentTimeMillis();
+	}
+
+	/* Enqueue-to-wire latency in microseconds at the given percentile */
+	public static long getLatency(double percentile) {
+		return latency.getPercentile(percentile);
+	}
+
+	private static long sum(long[] counts) {
+		long total = 0;
+		for (long count : counts)
+			total += count;
+		return total;
+	}
+
+	private static float perSecond(long count, long millis) {
+		return millis <= 0 ? 0 : count * 1000.0f / millis;
+	}
+
+	private static String typeName(int type) {
+		if (typeNames == null) {
+			typeNames = new String[256];
+			for (eMessageType messageType : eMessageType.values()) {
+				if (typeNames[messageType.msg & 0xFF] == null)
+					typeNames[messageType.msg & 0xFF] = messageType.name();
+			}
+		}
+		String name = typeNames[type];
+		return name != null ? name : "0x" + Integer.toHexString(type);
+	}
+
+	/*
+	 * Per type arrays are indexed by message type, rates are per second
+	 * since "since".
+	 */
+	public static synchronized Bundle toBundle() {
+		final long elapsed = System.currentTimeMillis() - since;
+
+		float[] framesPerSecond = new float[256];
+		float[] bytesPerSecond = new float[256];
+		for (int i = 0; i < 256; i++) {
+			framesPerSecond[i] = perSecond(framesSent[i], elapsed);
+			bytesPerSecond[i] = perSecond(bytesSent[i], elapsed);
+		}
+
+		Bundle bundle = new Bundle();
+		bundle.putLong("since", since);
+		bundle.putLongArray("frames_sent", framesSent.clone());
+		bundle.putLongArray("bytes_sent", bytesSent.clone());
+		bundle.putLongArray("frames_received", framesReceived.clone());
+		bundle.putLongArray("bytes_received", bytesReceived.clone());
+		bundle.putFloatArray("frames_per_second", framesPerSecond);
+		bundle.putFloatArray("bytes_per_second", bytesPerSecond);
+		bundle.putFloat("total_bytes_per_second", perSecond(sum(bytesSent), elapsed));
+		bundle.putInt("throughput", Protocol.getBytesPerSecond());
+		bundle.putInt("link_rate", Protocol.getLinkRate());
+
+		bundle.putLong("latency_count", latency.getCount());
+		bundle.putLong("latency_mean_us", latency.getMean());
+		bundle.putLong("latency_p50_us", latency.getPercentile(50));
+		bundle.putLong("latency_p90_us", latency.getPercentile(90));
+		bundle.putLong("latency_p99_us", latency.getPercentile(99));
+		bundle.putLong("latency_max_us", latency.getMax());
+
+		bundle.putInt("queue_depth", Protocol.getQueueLength());
+		bundle.putLong("queue_depth_mean", queueDepth.getMean());
+		bundle.putLong("queue_depth_p50", queueDepth.getPercentile(50));
+		bundle.putLong("queue_depth_p99", queueDepth.getPercentile(99));
+		bundle.putLong("queue_depth_max", queueDepth.getMax());
+
+		bundle.putLong("rows_sent", rowsSent);
+		bundle.putLong("rows_unchanged", rowsUnchanged);
+		bundle.putInt("rows_superseded", Protocol.getSupersededRows());
+		bundle.putInt("connects", connects);
+		bundle.putInt("connections_lost", connectionsLost);
+		bundle.putInt("stalls", Protocol.getStallCount());
+		bundle.putLong("text_layout_hits", TextLayoutCache.getHits());
+		bundle.putLong("text_layout_misses", TextLayoutCache.getMisses());
+		return bundle;
+	}
+
+	public static synchronized String dump() {
+		final long elapsed = System.currentTimeMillis() - since;
+
+		StringBuilder str = new StringBuilder();
+		str.append("Link metrics over ").append(elapsed / 1000).append("s\n");
+		str.append("Sent: ").append(sum(framesSent)).append(" frames, ").append(sum(bytesSent))
+			.append(" bytes, ").append((int) perSecond(sum(bytesSent), elapsed)).append(" bytes/s\n");
+		for (int i = 0; i < 256; i++) {
+			if (framesSent[i] == 0)
+				continue;
+			str.append("  ").append(typeName(i)).append(": ").append(framesSent[i]).append(" frames ")
+				.append(String.format("%.2f", perSecond(framesSent[i], elapsed))).append("/s, ")
+				.append(bytesSent[i]).append(" bytes ")
+				.append(String.format("%.1f", perSecond(bytesSent[i], elapsed))).append("/s\n");
+		}
+		str.append("Received: ").append(sum(framesReceived)).append(" frames, ")
+			.append(sum(bytesReceived)).append(" bytes\n");
+		for (int i = 0; i < 256; i++) {
+			if (framesReceived[i] == 0)
+				continue;
+			str.append("  ").append(typeName(i)).append(": ").append(framesReceived[i]).append(" frames, ")
+				.append(bytesReceived[i]).append(" bytes\n");
+		}
+		str.append("Enqueue-to-wire latency (us): ").append(latency).append('\n');
+		str.append("Queue depth: ").append(queueDepth).append('\n');
+		str.append("LCD rows: ").append(rowsSent).append(" queued, ").append(rowsUnchanged)
+			.append(" unchanged, ").append(Protocol.getSupersededRows()).append(" superseded\n");
+		str.append("Connects: ").append(connects).append(", lost: ").append(connectionsLost)
+			.append(", stalls: ").append(Protocol.getStallCount()).append('\n');
+		str.append("Text layouts: ").append(TextLayoutCache.getHits()).append(" cached, ")
+			.append(TextLayoutCache.getMisses()).append(" built (")
+			.append(String.format("%.1f", TextLayoutCache.getHitRate())).append("% hit rate)\n");
+		return str.toString();
+	}
+}
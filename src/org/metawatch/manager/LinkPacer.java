@@ -0,0 +1,155 @@
+package org.metawatch.manager;
+
+import org.metawatch.manager.MetaWatchService.Preferences;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.util.Log;
+
+/*
+ * Works out how fast we can send to the watch, AIMD style: the rate goes up
+ * a little after every burst that went out cleanly while there was more
+ * waiting to be sent, and is halved whenever the link shows signs of
+ * stalling:
+ *
+ *  - a write blocks, meaning the Bluetooth stack's buffers are full;
+ *  - the protocol watchdog finds the queue stuck;
+ *  - the watch stops acknowledging UpdateDisplay with a StatusChangeEvent
+ *    (only once it has been seen to do so on this connection).
+ *
+ * The learned rate is remembered per watch address, so a reconnect starts
+ * where the last session left off.  Preferences.byteWait is only used as the
+ * starting point for a watch we haven't seen before.  Rates are kept in their
+ * own preferences file, so saving one isn't taken for a settings change.
+ */
+class LinkPacer {
+
+	/* Bytes per second */
+	static final int MIN_RATE = 200;
+	static final int MAX_RATE = 50000;
+
+	private static final float ADDITIVE_INCREASE = 25.0f; // bytes/s per burst
+	private static final float MULTIPLICATIVE_DECREASE = 0.5f;
+
+	private static final long WRITE_BLOCKED_NANOS = 100 * 1000000L;
+	private static final long ACK_TIMEOUT = 3000; // ms
+	private static final long SAVE_INTERVAL = 60 * 1000; // ms
+
+	private static final String RATES_FILE = "link_rates";
+	private static final String RATE_KEY_PREFIX = "LinkRate_";
+
+	private String address = null;
+	private float rate = rateForByteWait(Preferences.byteWait);
+	private boolean dirty = false;
+	private long lastSave = 0;
+
+	private boolean acksSeen = false;
+	private long ackDeadline = 0;
+
+	private int backoffs = 0;
+
+	private static float rateForByteWait(int byteWait) {
+		if (byteWait <= 0)
+			return MAX_RATE;
+		return clamp(1000000.0f / byteWait);
+	}
+
+	private static float clamp(float rate) {
+		return Math.max(MIN_RATE, Math.min(MAX_RATE, rate));
+	}
+
+	/*
+	 * Picks up the rate learned for this watch, if any.
+	 */
+	synchronized void load(Context context, String address) {
+		this.address = address;
+		float initial = rateForByteWait(Preferences.byteWait);
+		if (context != null) {
+			SharedPreferences sharedPreferences = context.getSharedPreferences(RATES_FILE, Context.MODE_PRIVATE);
+			rate = clamp(sharedPreferences.getFloat(RATE_KEY_PREFIX + address, initial));
+		} else {
+			rate = initial;
+		}
+		dirty = false;
+		acksSeen = false;
+		ackDeadline = 0;
+		if (Preferences.logging) Log.d(MetaWatch.TAG, "LinkPacer: starting at " + (int) rate + " bytes/s for " + address);
+	}
+
+	synchronized void save(Context context) {
+		if (!dirty || context == null || address == null)
+			return;
+		Editor editor = context.getSharedPreferences(RATES_FILE, Context.MODE_PRIVATE).edit();
+		editor.putFloat(RATE_KEY_PREFIX + address, rate);
+		editor.commit();
+		dirty = false;
+		lastSave = System.currentTimeMillis();
+	}
+
+	/*
+	 * How long to wait after sending length bytes.
+	 */
+	synchronized long delayNanos(int length) {
+		return (long) (length * 1000000000.0 / rate);
+	}
+
+	/*
+	 * Called after every burst.  writeNanos is how long the write and flush
+	 * took, backlog whether more frames were waiting when it finished.
+	 */
+	void burstSent(Context context, int length, long writeNanos, boolean backlog, boolean updateDisplay) {
+		boolean save = false;
+		synchronized (this) {
+			final long now = System.currentTimeMillis();
+			if (ackDeadline != 0 && now > ackDeadline) {
+				ackDeadline = 0;
+				if (acksSeen)
+					backOff("no status change from the watch");
+			}
+			if (updateDisplay && ackDeadline == 0)
+				ackDeadline = now + ACK_TIMEOUT;
+
+			if (writeNanos > WRITE_BLOCKED_NANOS) {
+				backOff("write blocked for " + (writeNanos / 1000000) + "ms");
+			} else if (backlog && rate < MAX_RATE) {
+				rate = clamp(rate + ADDITIVE_INCREASE);
+				dirty = true;
+			}
+
+			save = dirty && now - lastSave > SAVE_INTERVAL;
+		}
+		if (save)
+			save(context);
+	}
+
+	/*
+	 * The watch acknowledged a display update.
+	 */
+	synchronized void acknowledged() {
+		acksSeen = true;
+		ackDeadline = 0;
+	}
+
+	/*
+	 * Something outside the sender noticed the link stalling.
+	 */
+	synchronized void stalled(String reason) {
+		backOff(reason);
+	}
+
+	private void backOff(String reason) {
+		rate = clamp(rate * MULTIPLICATIVE_DECREASE);
+		dirty = true;
+		backoffs++;
+		if (Preferences.logging) Log.d(MetaWatch.TAG, "LinkPacer: " + reason + ", backing off to " + (int) rate + " bytes/s");
+	}
+
+	synchronized int getRate() {
+		return (int) rate;
+	}
+
+	synchronized int getBackoffs() {
+		return backoffs;
+	}
+}
@@ -204,7 +204,7 @@ public class MediaControl {
 		lastTrack = new TrackInfo(artist, album, track);
 		lastTimeUpdate = System.currentTimeMillis();
 		
-		Idle.updateIdle(context, true);
+		Monitors.publish(context, Monitors.DataSource.MEDIA);
 		
 		int mediaPlayerState = AppManager.getAppState(MediaPlayerApp.APP_ID);
 		if (mediaPlayerState == ApplicationBase.ACTIVE_POPUP)
@@ -247,6 +247,6 @@ public class MediaControl {
 		lastTrack = new TrackInfo();
 		lastTimeUpdate = System.currentTimeMillis();
 		
-		Idle.updateIdle(context, true);
+		Monitors.publish(context, Monitors.DataSource.MEDIA);
 	}
 }
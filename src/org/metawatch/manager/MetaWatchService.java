@@ -33,17 +33,18 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.UUID;
 
 import org.metawatch.communityedition.R;
 import org.metawatch.manager.Notification.VibratePattern;
 import org.metawatch.manager.actions.ActionManager;
 import org.metawatch.manager.apps.ApplicationBase;
+import org.metawatch.manager.simulator.VirtualWatch;
+import org.metawatch.manager.transport.LoopbackTransport;
+import org.metawatch.manager.transport.RfcommTransport;
+import org.metawatch.manager.transport.TcpTransport;
+import org.metawatch.manager.transport.WatchTransport;
 import org.metawatch.manager.widgets.WidgetManager;
 
 import android.annotation.TargetApi;
@@ -54,8 +55,6 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -79,9 +78,6 @@ public class MetaWatchService extends Service {
 	static volatile Context context;
 	
 	public static BluetoothAdapter bluetoothAdapter;
-	BluetoothSocket bluetoothSocket;
-	static InputStream inputStream;
-	static OutputStream outputStream;
 	static ServiceThread serviceThread;
 	static Service instance = null;
 
@@ -142,6 +138,8 @@ public class MetaWatchService extends Service {
 		static final int UPDATE_STATUS = 2;
 		static final int SEND_TOAST = 3;
 		static final int DISCONNECT = 4;
+		/* Replies to msg.replyTo with LinkMetrics.toBundle() as its data */
+		static final int GET_METRICS = 5;
 	}
 	
 	public final static class WeatherProvider {
@@ -185,7 +183,10 @@ public class MetaWatchService extends Service {
 		public static boolean notifyNMA = true;
 		public static boolean notifyNewVoicemail = true;
 		public static String watchMacAddress = "";
-		public static int packetWait = 10;
+		public static int byteWait = 100;
+		public static int stallBudget = 750;
+		public static int renderDebounce = 200;
+		public static int widgetDeadline = 1500;
 		public static boolean skipSDP = false;
 		public static boolean insecureBtSocket = false;
 		public static boolean invertLCD = false;
@@ -215,6 +216,7 @@ public class MetaWatchService extends Service {
 		public static boolean overlayWeatherText = false;
 		public static boolean clockOnEveryPage = false;
 		public static boolean appBufferForClocklessPages = true;
+		public static boolean speculativeIdlePages = true;
 		public static boolean showNotificationQueue = false;
 		public static boolean dumpWatchScreenshots = false;
 		public static int appLaunchMode = AppLaunchMode.POPUP;
@@ -258,6 +260,8 @@ public class MetaWatchService extends Service {
 					"onSharedPreferenceChanged "+key);
 			
 			MetaWatchService.loadPreferences(context);
+			Idle.invalidateFrames();
+			WidgetManager.invalidateContent();
 			
 			if (key.contains("Weather")) {
 				Monitors.restart(context);
@@ -281,7 +285,7 @@ public class MetaWatchService extends Service {
 			
 			if (key.contains("Calendar")) {
 				Monitors.calendarChangedTimestamp = System.currentTimeMillis();
-				Idle.updateIdle(context, true);
+				Monitors.publish(context, Monitors.DataSource.CALENDAR);
 			}
 		}
 	};
@@ -370,6 +374,8 @@ public class MetaWatchService extends Service {
 				Preferences.clockOnEveryPage);
 		Preferences.appBufferForClocklessPages = sharedPreferences.getBoolean("AppBufferForClocklessPages",
 				Preferences.appBufferForClocklessPages);
+		Preferences.speculativeIdlePages = sharedPreferences.getBoolean("PrepareNextWidgetPage",
+				Preferences.speculativeIdlePages);
 		Preferences.showNotificationQueue = sharedPreferences.getBoolean("ShowNotificationQueue",
 				Preferences.showNotificationQueue);
 		Preferences.dumpWatchScreenshots = sharedPreferences.getBoolean("DumpWatchScreenshots",
@@ -378,8 +384,11 @@ public class MetaWatchService extends Service {
 				Preferences.autoSpeakerphone);
 		Preferences.showActionsInCall = sharedPreferences.getBoolean("showActionsInCall",
 				Preferences.showActionsInCall);
+		String themeName = Preferences.themeName;
 		Preferences.themeName = sharedPreferences.getString("ThemeName",
 				Preferences.themeName);
+		if (!Preferences.themeName.equals(themeName))
+			BitmapCache.invalidate();
 		Preferences.hideEmptyWidgets = sharedPreferences.getBoolean("HideEmptyWidgets",
 				Preferences.hideEmptyWidgets);
 		Preferences.inverseMediaPlayerButtons = sharedPreferences.getBoolean("InverseMediaPlayerButtons",
@@ -405,9 +414,22 @@ public class MetaWatchService extends Service {
 		try {
 			Preferences.fontSize = Integer.valueOf(sharedPreferences.getString(
 					"FontSize", Integer.toString(Preferences.fontSize)));
-			Preferences.packetWait = Integer.valueOf(sharedPreferences
-					.getString("PacketWait",
-							Integer.toString(Preferences.packetWait)));
+			// Older versions waited PacketWait ms after each frame, mostly 30 byte LCD rows
+			int byteWait = Preferences.byteWait;
+			if (!sharedPreferences.contains("ByteWait") && sharedPreferences.contains("PacketWait"))
+				byteWait = Integer.valueOf(sharedPreferences.getString("PacketWait", "10")) * 1000 / 30;
+			Preferences.byteWait = Integer.valueOf(sharedPreferences
+					.getString("ByteWait",
+							Integer.toString(byteWait)));
+			Preferences.stallBudget = Integer.valueOf(sharedPreferences
+					.getString("StallBudget",
+							Integer.toString(Preferences.stallBudget)));
+			Preferences.renderDebounce = Integer.valueOf(sharedPreferences
+					.getString("RenderDebounce",
+							Integer.toString(Preferences.renderDebounce)));
+			Preferences.widgetDeadline = Integer.valueOf(sharedPreferences
+					.getString("WidgetDeadline",
+							Integer.toString(Preferences.widgetDeadline)));
 			Preferences.smsLoopInterval = Integer.valueOf(sharedPreferences
 					.getString("SmsLoopInterval",
 							Integer.toString(Preferences.smsLoopInterval)));
@@ -454,9 +476,15 @@ public class MetaWatchService extends Service {
 
 		editor.putString("ThemeName", theme);
 		editor.commit();
+		
+		BitmapCache.invalidate();
 	}
 	
 	public static String getWidgets(Context context) {
+		return getWidgets(context, watchType);
+	}
+	
+	public static String getWidgets(Context context, int watchType) {
 		SharedPreferences sharedPreferences = PreferenceManager
 				.getDefaultSharedPreferences(context);
 		
@@ -572,6 +600,7 @@ public class MetaWatchService extends Service {
 		instance = this;
 		context = this;
 		
+		createFrameHandlers();
 		initialize();
 	}
 	
@@ -587,7 +616,6 @@ public class MetaWatchService extends Service {
 		watchState = WatchStates.OFF;
 		watchType = WatchType.UNKNOWN;
 		watchGen = WatchGen.UNKNOWN;
-		Monitors.getRTCTimestamp = 0;
 
 		if (bluetoothAdapter == null)
 			bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
@@ -658,7 +686,7 @@ public class MetaWatchService extends Service {
 			if (Preferences.logging) Log.d(MetaWatch.TAG, "Remote device address: '"
 					+ Preferences.watchMacAddress + "'");
 			
-			if (!MetaWatchService.fakeWatch) {
+			if (!MetaWatchService.fakeWatch && isBluetoothAddress(Preferences.watchMacAddress.split(",")[0].trim())) {
 	
 				if (bluetoothAdapter == null) {
 					sendToast(getResources().getString(R.string.error_bluetooth_not_supported));
@@ -668,46 +696,35 @@ public class MetaWatchService extends Service {
 					return;
 				}
 				
-				wakeLock.acquire();
-				
-				BluetoothDevice bluetoothDevice = bluetoothAdapter
-						.getRemoteDevice(Preferences.watchMacAddress);
+			}
 			
-				int currentapiVersion = android.os.Build.VERSION.SDK_INT;
+			if (!MetaWatchService.fakeWatch) {
+				wakeLock.acquire();
 				
-				if (Preferences.skipSDP) {
-				    Method method;
-				    if (Preferences.insecureBtSocket && currentapiVersion >= android.os.Build.VERSION_CODES.GINGERBREAD_MR1) {
-				    	method = bluetoothDevice.getClass().getMethod("createInsecureRfcommSocket", new Class[] { int.class });
-				    } else {
-				    	method = bluetoothDevice.getClass().getMethod("createRfcommSocket", new Class[] { int.class });
-				    }
-				    bluetoothSocket = (BluetoothSocket) method.invoke(bluetoothDevice, 1);
-				} else {
-					UUID uuid = UUID
-							.fromString("00001101-0000-1000-8000-00805F9B34FB");
-										
-					if (Preferences.insecureBtSocket && currentapiVersion >= android.os.Build.VERSION_CODES.GINGERBREAD_MR1) {
-						bluetoothSocket = bluetoothDevice
-								.createInsecureRfcommSocketToServiceRecord(uuid);
-					} else {
-						bluetoothSocket = bluetoothDevice
-								.createRfcommSocketToServiceRecord(uuid);
-					}				
-				}
-
-				bluetoothAdapter.cancelDiscovery();
-				bluetoothSocket.connect();
-		
-				inputStream = bluetoothSocket.getInputStream();
-				outputStream = bluetoothSocket.getOutputStream();
+				WatchSession.open(Preferences.watchMacAddress, new WatchSession.FrameListener() {
+					public void onFrame(WatchSession session, byte[] bytes, int length) throws IOException {
+						wakeLock.acquire();
+						try {
+							handleFrame(session, bytes, length);
+						} finally {
+							if (wakeLock.isHeld())
+								wakeLock.release();
+						}
+					}
+					
+					public void onConnected(WatchSession session) {
+						Protocol.toSession(session, new Runnable() {
+							public void run() {
+								Protocol.getDeviceType();
+							}
+						});
+					}
+				});
 			}
 			
 			connectionState = ConnectionState.CONNECTED;
 			setPreviousConnectionState(context, true);
 			updateNotification();
-
-			Protocol.startProtocolSender();
 			
 			// RM: This is disabled for now, as it seems to confuse the watch fw (3.1.0S tested)
 			// and get it into a state where it won't accept any date/time format updates :-S
@@ -723,14 +740,8 @@ public class MetaWatchService extends Service {
 			if (Preferences.logging) Log.d(MetaWatch.TAG, ioexception.toString());
 		} catch (SecurityException e) {
 			if (Preferences.logging) Log.d(MetaWatch.TAG, e.toString());
-		} catch (NoSuchMethodException e) {
-			if (Preferences.logging) Log.d(MetaWatch.TAG, e.toString());
 		} catch (IllegalArgumentException e) {
 			if (Preferences.logging) Log.d(MetaWatch.TAG, e.toString());
-		} catch (IllegalAccessException e) {
-			if (Preferences.logging) Log.d(MetaWatch.TAG, e.toString());
-		} catch (InvocationTargetException e) {
-			if (Preferences.logging) Log.d(MetaWatch.TAG, e.toString());
 		} catch (NullPointerException e) {
 			if (Preferences.logging) Log.d(MetaWatch.TAG, e.toString());
 		} finally {
@@ -742,6 +753,39 @@ public class MetaWatchService extends Service {
 		return;
 	}
 	
+	private static final String LOOPBACK_ADDRESS = "LOOPBACK";
+	private static final String TCP_PREFIX = "tcp:";
+	private static final int DEFAULT_TCP_PORT = 8888;
+	
+	private static boolean isBluetoothAddress(String address) {
+		return !address.equals(LOOPBACK_ADDRESS) && !address.startsWith(TCP_PREFIX);
+	}
+	
+	/* Picks the transport for a watch address: a Bluetooth MAC address,
+	 * tcp:host[:port] for a simulated watch on the network, or LOOPBACK for
+	 * an in-process one. */
+	static WatchTransport createTransport(String address) {
+		if (address.equals(LOOPBACK_ADDRESS)) {
+			LoopbackTransport loopback = new LoopbackTransport();
+			new VirtualWatch(loopback.getWatchInputStream(), loopback.getWatchOutputStream(),
+					VirtualWatch.DIGITAL).start();
+			return loopback;
+		}
+		
+		if (address.startsWith(TCP_PREFIX)) {
+			String host = address.substring(TCP_PREFIX.length());
+			int port = DEFAULT_TCP_PORT;
+			int colon = host.lastIndexOf(':');
+			if (colon >= 0) {
+				port = Integer.parseInt(host.substring(colon + 1));
+				host = host.substring(0, colon);
+			}
+			return new TcpTransport(host, port);
+		}
+		
+		return new RfcommTransport(bluetoothAdapter, address, Preferences.skipSDP, Preferences.insecureBtSocket);
+	}
+	
 	public void sendToast(String text) {
 		Message m = new Message();
 		m.what = Msg.SEND_TOAST;
@@ -764,6 +808,17 @@ public class MetaWatchService extends Service {
             case Msg.UNREGISTER_CLIENT:
                 mClients.remove(msg.replyTo);
                 break;
+            case Msg.GET_METRICS:
+                if (msg.replyTo != null) {
+                    Message reply = Message.obtain(null, Msg.GET_METRICS);
+                    reply.setData(LinkMetrics.toBundle());
+                    try {
+                        msg.replyTo.send(reply);
+                    } catch (RemoteException e) {
+                        mClients.remove(msg.replyTo);
+                    }
+                }
+                break;
             case Msg.SEND_TOAST:
             	Toast.makeText(context, 
             			(CharSequence) msg.obj,
@@ -798,23 +853,8 @@ public class MetaWatchService extends Service {
     }
 	
 	void disconnect() {
-		Protocol.stopProtocolSender();
+		WatchSession.closeAll();
 		Notification.stopNotificationSender();
-		try {
-			if (outputStream != null)
-				outputStream.close();
-		} catch (IOException e) {
-		}
-		try {
-			if (inputStream != null)
-				inputStream.close();
-		} catch (IOException e) {
-		}
-		try {
-			if (bluetoothSocket != null)
-				bluetoothSocket.close();
-		} catch (IOException e) {
-		}
 		broadcastConnection(false);
 	}
 
@@ -951,74 +991,69 @@ public class MetaWatchService extends Service {
 
 	}
 
-	void readFromDevice() {
-
-		if (MetaWatchService.fakeWatch) {
-			try {
-				Thread.sleep(10000);
-			} catch (InterruptedException e) {
-			}
-			return;
-		}
-		
-		try {
-			byte[] bytes = new byte[256];
-			if (Preferences.logging) Log.d(MetaWatch.TAG, "before blocking read");
-			// Do a proper read loop 
-			int haveread = 0;
-			int lengthtoread = 4;
-			while((lengthtoread-haveread) != 0)
-			{
-			    haveread += inputStream.read(bytes, haveread, lengthtoread-haveread);
-			    if(haveread > 1)
-			    {
-			        lengthtoread = bytes[1];
-			    }
+	/* Handlers for messages from the watch, indexed by message type */
+	private final FrameHandler[] frameHandlers = new FrameHandler[256];
+	/* Secondary watches only need setting up, they don't drive the app */
+	private final FrameHandler[] secondaryFrameHandlers = new FrameHandler[256];
+	
+	interface FrameHandler {
+		void handle(WatchSession session, byte[] bytes, int length) throws IOException;
+	}
+	
+	private void registerFrameHandler(eMessageType type, FrameHandler handler) {
+		frameHandlers[type.msg & 0xFF] = handler;
+	}
+	
+	private void registerSecondaryFrameHandler(eMessageType type, FrameHandler handler) {
+		secondaryFrameHandlers[type.msg & 0xFF] = handler;
+	}
+	
+	private FrameHandler handlerFor(WatchSession session, int type) {
+		return (session.isPrimary() ? frameHandlers : secondaryFrameHandlers)[type];
+	}
+	
+	/* Handle the answers to Protocol's queries, set while the service runs */
+	static WatchQueries.Callback deviceTypeReceived = null;
+	static WatchQueries.Callback batteryVoltageReceived = null;
+	static WatchQueries.Callback lightSensorReceived = null;
+	
+	private static WatchQueries.Callback queryCallback(final String query, final FrameHandler handler) {
+		return new WatchQueries.Callback() {
+			public void onResponse(WatchSession session, byte[] bytes, int length, long roundTrip) {
+				try {
+					handler.handle(session, bytes, length);
+				} catch (IOException e) {
+					if (Preferences.logging) Log.d(MetaWatch.TAG, query + ": " + e.toString());
+				}
 			}
 			
-			wakeLock.acquire();
-
-			// print received
-			String str = "received: ";
-			int len = (bytes[1] & 0xFF);
-			if (Preferences.logging) Log.d(MetaWatch.TAG, "packet length: " + len);
-
-			for (int i = 0; i < len; i++) {
-				// str+= Byte.toString(bytes[i]) + ", ";
-				str += "0x"
-						+ Integer.toString((bytes[i] & 0xff) + 0x100, 16)
-								.substring(1) + ", ";
+			public void onTimeout() {
+				if (Preferences.logging) Log.d(MetaWatch.TAG, query + " got no answer");
+			}
+		};
+	}
+	
+	private void createFrameHandlers() {
+		registerFrameHandler(eMessageType.NvalOperationResponseMsg, new FrameHandler() {
+			public void handle(WatchSession session, byte[] bytes, int length) {
+				if (Preferences.logging) Log.d(MetaWatch.TAG,
+						"MetaWatchService.readFromDevice(): NvalOperationResponseMsg");
+				// Do something here?
 			}
-			if (Preferences.logging) Log.d(MetaWatch.TAG, str);
-			/*
-			 * switch (bytes[2]) { case eMessageType.GetDeviceTypeResponse.msg:
-			 * if (Preferences.logging) Log.d(MetaWatch.TAG, "received: device type response"); break;
-			 * case eMessageType.NvalOperationResponseMsg.msg:
-			 * if (Preferences.logging) Log.d(MetaWatch.TAG, "received: nval response"); break; case
-			 * eMessageType.StatusChangeEvent.msg: if (Preferences.logging) Log.d(MetaWatch.TAG,
-			 * "received: status change event"); break; }
-			 */
-			/*
-			 * if (bytes[2] == 0x31) { // nval response if (bytes[3] == 0x00) //
-			 * success if (bytes[4] == 0x00) // set to 12 hour format
-			 * Protocol.setNvalTime(true); }
-			 */
-			if (bytes[2] == eMessageType.NvalOperationResponseMsg.msg) {
-			    if (Preferences.logging) Log.d(MetaWatch.TAG,
-                        "MetaWatchService.readFromDevice(): NvalOperationResponseMsg");
-			    // Do something here?
-			} else if (bytes[2] == eMessageType.StatusChangeEvent.msg) { // status
-																	// change
-																	// event
-			    if (Preferences.logging) Log.d(MetaWatch.TAG,
-                        "MetaWatchService.readFromDevice(): status change");
-			    if (bytes[4] == 0x01) {
+		});
+
+		registerFrameHandler(eMessageType.StatusChangeEvent, new FrameHandler() {
+			public void handle(WatchSession session, byte[] bytes, int length) {
+				if (Preferences.logging) Log.d(MetaWatch.TAG,
+						"MetaWatchService.readFromDevice(): status change");
+				session.statusChanged();
+				if (bytes[4] == 0x01) {
 					if (Preferences.logging) Log.d(MetaWatch.TAG,
 							"MetaWatchService.readFromDevice(): mode changed");
 					synchronized (Notification.modeChanged) {
 						Notification.modeChanged.notify();
 					}
-			    } else if (bytes[4] == 0x11) {
+				} else if (bytes[4] == 0x11) {
 					if (Preferences.logging) Log.d(MetaWatch.TAG,
 							"MetaWatchService.readFromDevice(): scroll request notification");
 
@@ -1036,49 +1071,53 @@ public class MetaWatchService extends Service {
 					Idle.toIdle(context);
 				}
 			}
+		});
 
-			else if (bytes[2] == eMessageType.ButtonEventMsg.msg) { // button
-																	// press
+		registerFrameHandler(eMessageType.ButtonEventMsg, new FrameHandler() {
+			public void handle(WatchSession session, byte[] bytes, int length) {
 				if (Preferences.logging) Log.d(MetaWatch.TAG,
 						"MetaWatchService.readFromDevice(): button event");
 				pressedButton(bytes[3]&0xFF); // 
 			}
+		});
 
-			else if (bytes[2] == eMessageType.GetDeviceTypeResponse.msg) { // device
-																			// type
+		registerFrameHandler(eMessageType.GetDeviceTypeResponse, new FrameHandler() {
+			public void handle(WatchSession session, byte[] bytes, int length) {
 				if (bytes[4] == 1 || bytes[4] == 4) {
-					watchType = WatchType.ANALOG;
-					watchGen = WatchGen.GEN1;
+					session.watchType = WatchType.ANALOG;
+					session.watchGen = WatchGen.GEN1;
+					adoptWatchType(session);
 					if (Preferences.logging) Log.d(MetaWatch.TAG,
 							"MetaWatchService.readFromDevice(): device type response; analog watch (gen1)");
 
 					if (watchState == WatchStates.OFF || watchState == WatchStates.IDLE) {
-						Idle.toIdle(this);
-						Idle.updateIdle(this, true);
+						Idle.toIdle(MetaWatchService.this);
+						Idle.updateIdle(MetaWatchService.this, true);
 					}
-					
+				
 					SharedPreferences sharedPreferences = PreferenceManager
-							.getDefaultSharedPreferences(this);
+							.getDefaultSharedPreferences(MetaWatchService.this);
 					boolean displaySplash = sharedPreferences.getBoolean("DisplaySplashScreen", true);
 					if (displaySplash) {
-						Protocol.sendOledBitmap(Utils.getBitmap(this, "splash_16_0.bmp"), MetaWatchService.WatchBuffers.NOTIFICATION, 0);
-						Protocol.sendOledBitmap(Utils.getBitmap(this, "splash_16_1.bmp"), MetaWatchService.WatchBuffers.NOTIFICATION, 1);
+						Protocol.sendOledBitmap(Utils.getBitmap(MetaWatchService.this, "splash_16_0.bmp"), MetaWatchService.WatchBuffers.NOTIFICATION, 0);
+						Protocol.sendOledBitmap(Utils.getBitmap(MetaWatchService.this, "splash_16_1.bmp"), MetaWatchService.WatchBuffers.NOTIFICATION, 1);
 					}
-					
+				
 				} else {
-					watchType = WatchType.DIGITAL;
-					
+					session.watchType = WatchType.DIGITAL;
+				
 					if (bytes[4] == 5 || bytes[4] == 6) {
-						watchGen = WatchGen.GEN2; 
+						session.watchGen = WatchGen.GEN2; 
 						if (Preferences.logging) Log.d(MetaWatch.TAG,
 								"MetaWatchService.readFromDevice(): device type response; Strata/Frame (gen2)");
 					}
 					else {
-						watchGen = WatchGen.GEN1;
+						session.watchGen = WatchGen.GEN1;
 						if (Preferences.logging) Log.d(MetaWatch.TAG,
 								"MetaWatchService.readFromDevice(): device type response; digital watch (gen1)");
 					}
-					
+					adoptWatchType(session);
+				
 					Protocol.configureMode();
 					Protocol.setNvalLcdInvert(Preferences.invertLCD);
 
@@ -1090,17 +1129,17 @@ public class MetaWatchService extends Service {
 					Protocol.disableButton(0, 0, MetaWatchService.WatchBuffers.NOTIFICATION); 					
 				
 					if (watchState == WatchStates.OFF || watchState == WatchStates.IDLE) {
-						Idle.toIdle(this);
-						Idle.updateIdle(this, true);
+						Idle.toIdle(MetaWatchService.this);
+						Idle.updateIdle(MetaWatchService.this, true);
 					}
-					
+				
 					SharedPreferences sharedPreferences = PreferenceManager
-							.getDefaultSharedPreferences(this);
+							.getDefaultSharedPreferences(MetaWatchService.this);
 					boolean displaySplash = sharedPreferences.getBoolean("DisplaySplashScreen", true);
 					if (displaySplash) {
-						Notification.addBitmapNotification(this, Utils.getBitmap(this, "splash.png"), new VibratePattern(false, 0, 0, 0), 10000, "Splash");
+						Notification.addBitmapNotification(MetaWatchService.this, Utils.getBitmap(MetaWatchService.this, "splash.png"), new VibratePattern(false, 0, 0, 0), 10000, "Splash");
 					}
-					
+				
 				}
 			
 				Protocol.getRealTimeClock();
@@ -1115,9 +1154,73 @@ public class MetaWatchService extends Service {
 					NotificationBuilder.createOtherNotification(context, null, "MetaWatch", getResources().getString(R.string.connection_connected), 1);
 				}
 				
-				Idle.activateButtons(this);
-								
-			} else if (bytes[2] == eMessageType.ReadBatteryVoltageResponse.msg) {
+				Idle.activateButtons(MetaWatchService.this);
+			}
+		});
+		
+		registerSecondaryFrameHandler(eMessageType.StatusChangeEvent, new FrameHandler() {
+			public void handle(WatchSession session, byte[] bytes, int length) {
+				session.statusChanged();
+			}
+		});
+		
+		registerSecondaryFrameHandler(eMessageType.ButtonEventMsg, new FrameHandler() {
+			public void handle(WatchSession session, byte[] bytes, int length) {
+				// Only the primary pages through the idle screen, an analog
+				// secondary can just have it shown on its OLEDs
+				if ((bytes[3] & 0xFF) == Idle.IDLE_OLED_DISPLAY)
+					Idle.sendSecondaryOledIdle(MetaWatchService.this, session);
+				else if (Preferences.logging) Log.d(MetaWatch.TAG,
+						"MetaWatchService.readFromDevice(): ignoring button event from " + session.getAddress());
+			}
+		});
+		
+		registerSecondaryFrameHandler(eMessageType.GetDeviceTypeResponse, new FrameHandler() {
+			public void handle(final WatchSession session, byte[] bytes, int length) {
+				if (bytes[4] == 1 || bytes[4] == 4) {
+					session.watchType = WatchType.ANALOG;
+					session.watchGen = WatchGen.GEN1;
+				} else {
+					session.watchType = WatchType.DIGITAL;
+					session.watchGen = (bytes[4] == 5 || bytes[4] == 6) ? WatchGen.GEN2 : WatchGen.GEN1;
+				}
+				if (Preferences.logging) Log.d(MetaWatch.TAG,
+						"MetaWatchService.readFromDevice(): device type response from " + session.getAddress()
+								+ "; type " + session.watchType + ", gen " + session.watchGen);
+				
+				Protocol.toSession(session, new Runnable() {
+					public void run() {
+						if (session.watchType == WatchType.DIGITAL) {
+							Protocol.configureMode();
+							Protocol.setNvalLcdInvert(Preferences.invertLCD);
+							Protocol.configureIdleBufferSize(true, true);
+							
+							// Disable built in action for Right top immediate
+							Protocol.disableButton(0, 0, MetaWatchService.WatchBuffers.IDLE); 
+							Protocol.disableButton(0, 0, MetaWatchService.WatchBuffers.APPLICATION); 
+							Protocol.disableButton(0, 0, MetaWatchService.WatchBuffers.NOTIFICATION);
+						} else {
+							Protocol.disableButton(1, 0, MetaWatchService.WatchBuffers.IDLE); // Disable built in action for Middle immediate
+							Protocol.enableButton(1, 1, Idle.IDLE_OLED_DISPLAY, MetaWatchService.WatchBuffers.IDLE); // Middle press
+						}
+						Protocol.getRealTimeClock();
+					}
+				});
+				
+				// Draws the idle screen for it, laid out for its type if
+				// that's not the primary's
+				Idle.updateIdle(MetaWatchService.this, false);
+			}
+		});
+		
+		deviceTypeReceived = queryCallback("GetDeviceType", new FrameHandler() {
+			public void handle(WatchSession session, byte[] bytes, int length) throws IOException {
+				handlerFor(session, eMessageType.GetDeviceTypeResponse.msg & 0xFF).handle(session, bytes, length);
+			}
+		});
+
+		batteryVoltageReceived = queryCallback("ReadBatteryVoltage", new FrameHandler() {
+			public void handle(WatchSession session, byte[] bytes, int length) throws IOException {
 				boolean powerGood = bytes[4] > 0;
 				boolean batteryCharging = bytes[5] > 0;
 				float batterySense = (((int) bytes[7] << 8) + (int) bytes[6]) / 1000.0f;
@@ -1128,7 +1231,7 @@ public class MetaWatchService extends Service {
 								+ " battery_charging=" + batteryCharging
 								+ " battery_sense=" + batterySense
 								+ " battery_average=" + batteryAverage);
-				String voltageFrequencyString = PreferenceManager.getDefaultSharedPreferences(this).getString(
+				String voltageFrequencyString = PreferenceManager.getDefaultSharedPreferences(MetaWatchService.this).getString(
 						"collectWatchVoltage", "0");
 				final int voltageFrequency = Integer.parseInt(voltageFrequencyString);
 				if (voltageFrequency > 0) {
@@ -1144,29 +1247,53 @@ public class MetaWatchService extends Service {
 					fw.flush();
 					fw.close();
 				}		
-			} else if (bytes[2] == eMessageType.ReadLightSensorResponse.msg) {
+			}
+		});
+
+		lightSensorReceived = queryCallback("ReadLightSensor", new FrameHandler() {
+			public void handle(WatchSession session, byte[] bytes, int length) {
 				float lightSense = (((int) bytes[1] << 8) + (int) bytes[0]) / 1000.0f;
 				float lightAverage = (((int) bytes[3] << 8) + (int) bytes[2]) / 1000.0f;
 				if (Preferences.logging) Log.d(MetaWatch.TAG,
 						"MetaWatchService.readFromDevice(): received light sensor response."
 								+ " light_sense=" + lightSense
 								+ " light_average=" + lightAverage);
-			} else if (bytes[2] == eMessageType.GetRealTimeClockResponse.msg) {
-				long timeNow = System.currentTimeMillis();
-				long roundTrip = timeNow - Monitors.getRTCTimestamp;
-				
-				if (Preferences.logging) Log.d(MetaWatch.TAG, 
-						"MetaWatchService.readFromDevice(): received rtc response."
-								+ " round trip= "+roundTrip );
-				
-				Monitors.rtcOffset = (int)(roundTrip/2000);
-				
-				Protocol.setRealTimeClock(context);
-				
-			} else {
-				if (Preferences.logging) Log.d(MetaWatch.TAG,
-						"MetaWatchService.readFromDevice(): Unknown message : 0x"+Integer.toString((bytes[2] & 0xff) + 0x100, 16).substring(1) + ", ");
 			}
+		});
+	}
+	
+	/*
+	 * The primary watch decides what gets rendered.  Other watches are sent
+	 * whatever frames suit their type.
+	 */
+	private static void adoptWatchType(WatchSession session) {
+		if (session.isPrimary()) {
+			watchType = session.watchType;
+			watchGen = session.watchGen;
+		}
+	}
+	
+	void readFromDevice() {
+
+		if (MetaWatchService.fakeWatch) {
+			try {
+				Thread.sleep(10000);
+			} catch (InterruptedException e) {
+			}
+			return;
+		}
+		
+		try {
+			WatchSession session = WatchSession.getPrimary();
+			if (session == null)
+				throw new IOException("No watch session");
+			
+			if (Preferences.logging) Log.d(MetaWatch.TAG, "before blocking read");
+			final int length = session.readFrame();
+			
+			wakeLock.acquire();
+			
+			handleFrame(session, session.frame(), length);
 
 		} catch (IOException e) {
 			if (Preferences.logging) Log.d(MetaWatch.TAG, e.toString());
@@ -1183,6 +1310,37 @@ public class MetaWatchService extends Service {
 		
 	}
 	
+	/*
+	 * Handles a frame from any watch.  Secondary sessions call this from
+	 * their own threads, so frames are handled one at a time, each by the
+	 * handlers for the kind of session it came from.
+	 */
+	private void handleFrame(WatchSession session, byte[] bytes, int length) throws IOException {
+		synchronized (frameHandlers) {
+			LinkMetrics.frameReceived(bytes[2], length);
+			
+			if (Preferences.logging) {
+				StringBuilder str = new StringBuilder("received from " + session.getAddress() + ": ");
+				for (int i = 0; i < length; i++) {
+					str.append("0x")
+						.append(Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1))
+						.append(", ");
+				}
+				Log.d(MetaWatch.TAG, str.toString());
+			}
+			
+			FrameHandler handler = handlerFor(session, bytes[2] & 0xFF);
+			if (session.queries.received(bytes, length)) {
+				// Answered a query, or a late answer to one
+			} else if (handler != null) {
+				handler.handle(session, bytes, length);
+			} else {
+				if (Preferences.logging) Log.d(MetaWatch.TAG,
+						"MetaWatchService.readFromDevice(): Unknown message : 0x"+Integer.toString((bytes[2] & 0xff) + 0x100, 16).substring(1) + ", ");
+			}
+		}
+	}
+	
 	private void resetConnection() {
 		Log.d(MetaWatch.TAG, "MetaWatchService.resetConnection()");
 		
@@ -1191,6 +1349,7 @@ public class MetaWatchService extends Service {
 		try {
 		if (connectionState != ConnectionState.DISCONNECTING) {
 			connectionState = ConnectionState.CONNECTING;			
+			LinkMetrics.connectionLost();
 			disconnect();
 		}	
 		} finally {
@@ -1248,6 +1407,8 @@ public class MetaWatchService extends Service {
 					case Idle.IDLE_NEXT_PAGE:							
 						if (MetaWatchService.watchType == MetaWatchService.WatchType.DIGITAL) {
 							Idle.nextPage(this);
+							// Show the page if it's already on the watch, then bring it up to date
+							Idle.showPreparedPage(this);
 							Idle.updateIdle(this, true);	
 						}
 						break;
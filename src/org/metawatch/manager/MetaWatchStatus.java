@@ -165,6 +165,11 @@ public class MetaWatchStatus extends Activity {
     	textView.append("\n");
     
     	textView.append("\n"+res.getString(R.string.status_message_queue)+" " + Protocol.getQueueLength());
+    	textView.append("\n"+res.getString(R.string.status_link_throughput)+" " + Protocol.getBytesPerSecond() + " bytes/s");
+    	textView.append("\n"+res.getString(R.string.status_link_rate)+" " + Protocol.getLinkRate() + " bytes/s");
+    	textView.append("\n"+res.getString(R.string.status_link_stalls)+" " + Protocol.getStallCount());
+    	textView.append("\n"+res.getString(R.string.status_link_latency)+" " + LinkMetrics.getLatency(50) / 1000
+    			+ " / " + LinkMetrics.getLatency(99) / 1000 + " ms");
     	textView.append("\n"+res.getString(R.string.status_notification_queue)+" " + Notification.getQueueLength() + "\n");
     	
     	if(Preferences.showNotificationQueue) {
@@ -81,7 +81,6 @@ public class Monitors {
 	private static BroadcastReceiver batteryLevelReceiver;
 	
 	public static long calendarChangedTimestamp = 0;
-	public static long getRTCTimestamp = 0;
 	public static int rtcOffset = 0; // Offset in seconds to add to the RTC to allow for latency
 
 	public static WeatherData weatherData = new WeatherData();
@@ -102,6 +101,34 @@ public class Monitors {
 		public static int unreadMailCount = -1;
 	}
 	
+	/*
+	 * What widget content is derived from.  Changes are published with
+	 * publish(), and only widgets depending on a changed source are
+	 * refreshed.
+	 */
+	public static class DataSource {
+		public final static int SMS = 1 << 0;
+		public final static int CALLS = 1 << 1;
+		public final static int CALENDAR = 1 << 2;
+		public final static int WEATHER = 1 << 3;
+		public final static int BATTERY = 1 << 4;
+		public final static int MEDIA = 1 << 5;
+		public final static int GMAIL = 1 << 6;
+		public final static int K9 = 1 << 7;
+		public final static int TOUCHDOWN = 1 << 8;
+		public final static int VOICEMAIL = 1 << 9;
+		public final static int PICTURES = 1 << 10;
+		/* Content that goes stale by itself, refreshed by the periodic update */
+		public final static int TIME = 1 << 11;
+		
+		public final static int ALL = ~0;
+	}
+	
+	/* Publishes a change to the given DataSources, updating the idle screen */
+	public static void publish(Context context, int sources) {
+		Idle.updateIdle(context, sources);
+	}
+	
 	
 	public static void updateGmailUnreadCount(String account, int count) {
 		if (Preferences.logging) Log.d(MetaWatch.TAG, "Monitors.updateGmailUnreadCount(): account='"
@@ -296,7 +323,7 @@ public class Monitors {
 		public void onChange(boolean selfChange) {
 			super.onChange(selfChange);			
 			// change in SMS/MMS database			
-			Idle.updateIdle(context, true);
+			publish(context, DataSource.SMS);
 		}
 	}
 	
@@ -314,7 +341,7 @@ public class Monitors {
 			super.onChange(selfChange);			
 			// change in call history database
 			if (Preferences.logging) Log.d(MetaWatch.TAG, "call history change");
-			Idle.updateIdle(context, true);
+			publish(context, DataSource.CALLS);
 		}
 	}
 	
@@ -333,7 +360,7 @@ public class Monitors {
 			// change in calendar database
 			if (Preferences.logging) Log.d(MetaWatch.TAG, "calendar change");
 				calendarChangedTimestamp = System.currentTimeMillis();
-				Idle.updateIdle(context, true);
+				publish(context, DataSource.CALENDAR);
 			}
 		}
 
@@ -391,7 +418,7 @@ public class Monitors {
 				}
 				if(BatteryData.level != level) {
 					BatteryData.level = level;
-					Idle.updateIdle(context, true);
+					publish(context, DataSource.BATTERY);
 				}
 			}
 		};
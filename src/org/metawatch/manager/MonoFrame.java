@@ -0,0 +1,144 @@
+package org.metawatch.manager;
+
+import java.util.Arrays;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+/*
+ * A 96x96 watch screen packed at 1 bit per pixel, in the layout the LCD
+ * expects: 12 bytes per row, leftmost pixel in the least significant bit,
+ * set bits are black.
+ *
+ * Frames are treated as immutable once built, so they can be shared
+ * between the notification history, the send path and the diff buffers.
+ */
+public final class MonoFrame {
+
+	public static final int WIDTH = 96;
+	public static final int HEIGHT = 96;
+	public static final int BYTES_PER_ROW = WIDTH / 8;
+	public static final int SIZE = BYTES_PER_ROW * HEIGHT;
+
+	final byte[] data;
+	private int hash = 0;
+
+	private MonoFrame(byte[] data) {
+		this.data = data;
+	}
+
+	/*
+	 * Wraps a copy of an already packed 1152 byte buffer.
+	 */
+	public static MonoFrame fromBuffer(byte[] buffer) {
+		if (buffer == null || buffer.length < SIZE)
+			return null;
+		byte[] data = new byte[SIZE];
+		System.arraycopy(buffer, 0, data, 0, SIZE);
+		return new MonoFrame(data);
+	}
+
+	/*
+	 * Packs a 96x96 array of ARGB pixels.
+	 */
+	public static MonoFrame fromPixels(int[] pixels) {
+		if (pixels == null || pixels.length < WIDTH * HEIGHT)
+			return null;
+		byte[] data = new byte[SIZE];
+		PixelPacker.packRows(pixels, WIDTH * HEIGHT, data, 0);
+		return new MonoFrame(data);
+	}
+
+	/* Pixels are read a band at a time rather than copying the whole screen */
+	private static final int BAND_ROWS = 8;
+	private static final int[] bandPixels = new int[WIDTH * BAND_ROWS];
+
+	/*
+	 * Packs a 96x96 bitmap.  Returns null for any other size.
+	 */
+	public static MonoFrame fromBitmap(Bitmap bitmap) {
+		if (bitmap == null || bitmap.getWidth() != WIDTH || bitmap.getHeight() != HEIGHT)
+			return null;
+		byte[] data = new byte[SIZE];
+		synchronized (bandPixels) {
+			for (int y = 0; y < HEIGHT; y += BAND_ROWS) {
+				bitmap.getPixels(bandPixels, 0, WIDTH, 0, y, WIDTH, BAND_ROWS);
+				PixelPacker.packRows(bandPixels, bandPixels.length, data, y * BYTES_PER_ROW);
+			}
+		}
+		return new MonoFrame(data);
+	}
+
+	/*
+	 * Packs a 96x96 bitmap, then draws text straight into the packed frame
+	 * with its top left at x, y, only touching rows firstRow up to endRow.
+	 * The text never has to be turned into pixels of a bitmap.
+	 */
+	public static MonoFrame fromBitmap(Bitmap bitmap, TextLayout text, int x, int y, int firstRow, int endRow) {
+		MonoFrame frame = fromBitmap(bitmap);
+		if (frame == null || text == null)
+			return frame;
+		if (text.isDark()) {
+			text.draw(frame.data, BYTES_PER_ROW, firstRow, endRow, x, y);
+		} else {
+			// Light text clears the bits its ink covers
+			byte[] ink = new byte[SIZE];
+			text.draw(ink, BYTES_PER_ROW, firstRow, endRow, x, y);
+			for (int i = 0; i < SIZE; i++)
+				frame.data[i] &= ~ink[i];
+		}
+		return frame;
+	}
+
+	/*
+	 * Unpacks the frame into a new bitmap, for previews and screenshots.
+	 */
+	public Bitmap toBitmap() {
+		int[] pixels = new int[WIDTH * HEIGHT];
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = getPixel(i % WIDTH, i / WIDTH) ? Color.BLACK : Color.WHITE;
+		return Bitmap.createBitmap(pixels, WIDTH, HEIGHT, Bitmap.Config.RGB_565);
+	}
+
+	public boolean getPixel(int x, int y) {
+		return (data[y * BYTES_PER_ROW + (x >> 3)] & (1 << (x & 7))) != 0;
+	}
+
+	/*
+	 * Copies the 12 packed bytes of row y into out at offset.
+	 */
+	public void getRow(int y, byte[] out, int offset) {
+		System.arraycopy(data, y * BYTES_PER_ROW, out, offset, BYTES_PER_ROW);
+	}
+
+	public boolean rowEquals(MonoFrame other, int y) {
+		if (other == null)
+			return false;
+		final int start = y * BYTES_PER_ROW;
+		for (int i = start; i < start + BYTES_PER_ROW; i++) {
+			if (data[i] != other.data[i])
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o)
+			return true;
+		if (!(o instanceof MonoFrame))
+			return false;
+		MonoFrame other = (MonoFrame) o;
+		return hashCode() == other.hashCode() && Arrays.equals(data, other.data);
+	}
+
+	@Override
+	public int hashCode() {
+		int h = hash;
+		if (h == 0) {
+			h = Arrays.hashCode(data);
+			hash = h;
+		}
+		return h;
+	}
+}
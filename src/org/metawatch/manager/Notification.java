@@ -45,6 +45,8 @@ import android.util.Log;
 public class Notification {
 
 	private static NotificationType currentNotification = null;
+	/* The page of the current notification on screen */
+	private static volatile int shownPage = 0;
 	
 	public static final byte REPLAY = 30;
 
@@ -108,21 +110,16 @@ public class Notification {
 
 					if (MetaWatchService.watchType == WatchType.DIGITAL) {
 
-						if (notification.bitmaps != null && notification.bitmaps.length>0) {
-							Protocol.sendLcdBitmap(notification.bitmaps[0],
+						if (notification.frames != null && notification.frames.length>0) {
+							Protocol.sendLcdFrame(notification.frames[0],
 									MetaWatchService.WatchBuffers.NOTIFICATION);
 							currentNotificationPage = 0;
+							shownPage = 0;
 							
 							if (Preferences.logging) Log.d(MetaWatch.TAG,
-									"Notification contains " + notification.bitmaps.length + " bitmaps.");
+									"Notification contains " + notification.frames.length + " pages.");
 														
 						}
-						else if (notification.array != null)
-							Protocol.sendLcdArray(notification.array,
-									MetaWatchService.WatchBuffers.NOTIFICATION);
-						else if (notification.buffer != null)
-							Protocol.sendLcdBuffer(notification.buffer,
-									MetaWatchService.WatchBuffers.NOTIFICATION);
 						else {
 							continue;
 						}
@@ -220,7 +217,7 @@ public class Notification {
 					/* Send button configuration for sticky notifications. */
 					if (notification.timeout < 0) {
 						notifyButtonPress = NOTIFICATION_NONE;
-						if (notification.bitmaps!=null & notification.bitmaps.length>1) {
+						if (notification.frames!=null && notification.frames.length>1) {
 							Protocol.enableButton(0, 1, NOTIFICATION_UP, MetaWatchService.WatchBuffers.NOTIFICATION); // Right top press
 							Protocol.enableButton(1, 1, NOTIFICATION_DOWN, MetaWatchService.WatchBuffers.NOTIFICATION); // Right middle press
 						}
@@ -253,12 +250,14 @@ public class Notification {
 							
 							if (notifyButtonPress==NOTIFICATION_UP && currentNotificationPage>0) {
 								currentNotificationPage--;
-								Protocol.sendLcdBitmap(notification.bitmaps[currentNotificationPage],
+								shownPage = currentNotificationPage;
+								Protocol.sendLcdFrame(notification.frames[currentNotificationPage],
 										MetaWatchService.WatchBuffers.NOTIFICATION);
 							}
-							else if (notifyButtonPress==NOTIFICATION_DOWN && currentNotificationPage<notification.bitmaps.length-1) {
+							else if (notifyButtonPress==NOTIFICATION_DOWN && currentNotificationPage<notification.frames.length-1) {
 								currentNotificationPage++;
-								Protocol.sendLcdBitmap(notification.bitmaps[currentNotificationPage],
+								shownPage = currentNotificationPage;
+								Protocol.sendLcdFrame(notification.frames[currentNotificationPage],
 										MetaWatchService.WatchBuffers.NOTIFICATION);
 							}
 							
@@ -267,7 +266,7 @@ public class Notification {
 							}
 							
 							if (Preferences.logging) Log.d(MetaWatch.TAG,
-									"Displaying page " + currentNotificationPage +" / "+ notification.bitmaps.length );
+									"Displaying page " + currentNotificationPage +" / "+ notification.frames.length );
 							
 							Protocol.updateLcdDisplay(MetaWatchService.WatchBuffers.NOTIFICATION);
 						} while (notifyButtonPress != NOTIFICATION_DISMISS);
@@ -386,9 +385,8 @@ public class Notification {
 			this.timestamp = System.currentTimeMillis();
 		}
 		
-		Bitmap[] bitmaps;
-		int[] array;
-		byte[] buffer;
+		/* LCD pages, packed as soon as the notification is queued */
+		MonoFrame[] frames;
 
 		byte[] oledTop;
 		byte[] oledBottom;
@@ -424,7 +422,7 @@ public class Notification {
 	public static void addTextNotification(Context context, String text,
 			VibratePattern vibratePattern, int timeout) {
 		NotificationType notification = new NotificationType();
-		notification.bitmaps = new Bitmap[]{ Protocol.createTextBitmap(context, text) };
+		notification.frames = toFrames(new Bitmap[]{ Protocol.createTextBitmap(context, text) });
 		notification.timeout = timeout;
 		notification.description = "Text: "+text;
 		if (vibratePattern == null)
@@ -447,7 +445,42 @@ public class Notification {
 		}
 		
 		NotificationType notification = new NotificationType();
-		notification.bitmaps = bitmaps;
+		notification.frames = toFrames(bitmaps);
+		notification.timeout = timeout;
+		if (vibratePattern == null)
+			notification.vibratePattern = VibratePattern.NO_VIBRATE;
+		else
+			notification.vibratePattern = vibratePattern;
+		notification.description = description;
+		addToNotificationQueue(notification, false);
+	}
+
+	/*
+	 * Packs the pages of a notification, skipping any that aren't 96x96,
+	 * so the bitmaps don't have to be kept around in the history.
+	 */
+	private static MonoFrame[] toFrames(Bitmap[] bitmaps) {
+		if (bitmaps == null)
+			return null;
+		ArrayList<MonoFrame> frames = new ArrayList<MonoFrame>(bitmaps.length);
+		for (Bitmap bitmap : bitmaps) {
+			MonoFrame frame = MonoFrame.fromBitmap(bitmap);
+			if (frame != null)
+				frames.add(frame);
+		}
+		return frames.toArray(new MonoFrame[frames.size()]);
+	}
+
+	public static void addFrameNotification(Context context, MonoFrame frame,
+			VibratePattern vibratePattern, int timeout, String description) {
+		addFrameNotification(context, new MonoFrame[] {frame}, vibratePattern, timeout, description);
+	}
+
+	/* For screens already packed, e.g. with their text drawn straight in */
+	public static void addFrameNotification(Context context, MonoFrame[] frames,
+			VibratePattern vibratePattern, int timeout, String description) {
+		NotificationType notification = new NotificationType();
+		notification.frames = frames;
 		notification.timeout = timeout;
 		if (vibratePattern == null)
 			notification.vibratePattern = VibratePattern.NO_VIBRATE;
@@ -460,7 +493,7 @@ public class Notification {
 	public static void addArrayNotification(Context context, int[] array,
 			VibratePattern vibratePattern, String description) {
 		NotificationType notification = new NotificationType();
-		notification.array = array;
+		notification.frames = new MonoFrame[] { MonoFrame.fromPixels(array) };
 
 		int notificationTimeout = getDefaultNotificationTimeout(context);
 		notification.timeout = notificationTimeout;
@@ -476,7 +509,7 @@ public class Notification {
 	public static void addBufferNotification(Context context, byte[] buffer,
 			VibratePattern vibratePattern, String description) {
 		NotificationType notification = new NotificationType();
-		notification.buffer = buffer;
+		notification.frames = new MonoFrame[] { MonoFrame.fromBuffer(buffer) };
 		int notificationTimeout = getDefaultNotificationTimeout(context);
 		notification.timeout = notificationTimeout;
 		if (vibratePattern == null)
@@ -599,5 +632,26 @@ public class Notification {
 	public static boolean isActive() {
 		return currentNotification != null;
 	}
+	
+	/*
+	 * Sends the notification on screen again, e.g. after the queued
+	 * screens were dropped.  A scrolling OLED notification only gets
+	 * its first lines back.
+	 */
+	public static void resend() {
+		NotificationType notification = currentNotification;
+		if (notification == null)
+			return;
+		
+		if (notification.frames != null && notification.frames.length > 0) {
+			final int page = Math.min(shownPage, notification.frames.length - 1);
+			Protocol.sendLcdFrame(notification.frames[page], MetaWatchService.WatchBuffers.NOTIFICATION);
+			Protocol.updateLcdDisplay(MetaWatchService.WatchBuffers.NOTIFICATION);
+		} else if (notification.oledTop != null) {
+			Protocol.sendOledBuffer(notification.oledTop, WatchBuffers.NOTIFICATION, 0, false);
+			if (notification.oledBottom != null)
+				Protocol.sendOledBuffer(notification.oledBottom, WatchBuffers.NOTIFICATION, 1, false);
+		}
+	}
 
 }
@@ -50,8 +50,6 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.preference.PreferenceManager;
-import android.text.StaticLayout;
-import android.text.TextPaint;
 import android.text.format.DateFormat;
 
 public class NotificationBuilder {
@@ -74,12 +72,12 @@ public class NotificationBuilder {
 		String description = "SMS: "+name;
 		if (MetaWatchService.watchType == WatchType.DIGITAL) {
 			if (Preferences.stickyNotifications & !number.equals("Google Chat")) {
-				Bitmap[] bitmaps = smartNotify(context, icon, name, text);
-				Notification.addBitmapNotification(context, bitmaps, vibratePattern, -1, description);				
+				MonoFrame[] frames = smartNotify(context, icon, name, text);
+				Notification.addFrameNotification(context, frames, vibratePattern, -1, description);				
 			}
 			else {
-				Bitmap bitmap = smartLines(context, icon, "SMS from", new String[] {name});		
-				Notification.addBitmapNotification(context, bitmap, vibratePattern, 4000, description);
+				MonoFrame frame = smartLines(context, icon, "SMS from", new String[] {name});		
+				Notification.addFrameNotification(context, frame, vibratePattern, 4000, description);
 				Notification.addTextNotification(context, text, Notification.VibratePattern.NO_VIBRATE, Notification.getDefaultNotificationTimeout(context));				
 			}
 		} else {
@@ -95,8 +93,8 @@ public class NotificationBuilder {
 		Bitmap icon = Utils.getBitmap(context, "message.bmp");
 		String description = "MMS: "+name;
 		if (MetaWatchService.watchType == WatchType.DIGITAL) {
-			Bitmap bitmap = smartLines(context, icon, "MMS from", new String[] {name});		
-			Notification.addBitmapNotification(context, bitmap, vibratePattern, Notification.getDefaultNotificationTimeout(context), description);
+			MonoFrame frame = smartLines(context, icon, "MMS from", new String[] {name});		
+			Notification.addFrameNotification(context, frame, vibratePattern, Notification.getDefaultNotificationTimeout(context), description);
 		} else {
 			byte[] scroll = new byte[800];
 			int len = Protocol.createOled2linesLong(context, name, scroll);
@@ -115,13 +113,13 @@ public class NotificationBuilder {
 		}
 		String description = "Smart: "+text;
 		if (MetaWatchService.watchType == WatchType.DIGITAL) {
-			Bitmap[] bitmaps;
+			MonoFrame[] frames;
 			if (sticky) {
-				bitmaps = smartNotify(context, icon, title, text);
+				frames = smartNotify(context, icon, title, text);
 			} else {
-				bitmaps = new Bitmap[] { smartLines(context, icon, title, new String[] { text }) };
+				frames = new MonoFrame[] { smartLines(context, icon, title, new String[] { text }) };
 			}
-			Notification.addBitmapNotification(context, bitmaps, vibratePattern, -1, description);
+			Notification.addFrameNotification(context, frames, vibratePattern, -1, description);
 		} else {
 			byte[] scroll = new byte[800];
 			int len = Protocol.createOled2linesLong(context, text, scroll);
@@ -134,8 +132,8 @@ public class NotificationBuilder {
 		Bitmap icon = Utils.getBitmap(context, "email.bmp");
 		String description = "K9: "+sender;
 		if (MetaWatchService.watchType == WatchType.DIGITAL) {
-			Bitmap bitmap = smartLines(context, icon, "K9 mail", new String[] {sender, subject, folder});
-			Notification.addBitmapNotification(context, bitmap, vibratePattern, Notification.getDefaultNotificationTimeout(context), description);
+			MonoFrame frame = smartLines(context, icon, "K9 mail", new String[] {sender, subject, folder});
+			Notification.addFrameNotification(context, frame, vibratePattern, Notification.getDefaultNotificationTimeout(context), description);
 		} else {
 			byte[] scroll = new byte[800];
 			int len = Protocol.createOled2linesLong(context, subject, scroll);
@@ -148,8 +146,8 @@ public class NotificationBuilder {
 		Bitmap icon = Utils.getBitmap(context, "gmail.bmp");
 		String description = "Gmail: "+sender;
 		if (MetaWatchService.watchType == WatchType.DIGITAL) {
-			Bitmap bitmap = smartLines(context, icon, "Gmail", new String[] { sender, email, subject});
-			Notification.addBitmapNotification(context, bitmap, vibratePattern, Notification.getDefaultNotificationTimeout(context), description);	
+			MonoFrame frame = smartLines(context, icon, "Gmail", new String[] { sender, email, subject});
+			Notification.addFrameNotification(context, frame, vibratePattern, Notification.getDefaultNotificationTimeout(context), description);	
 			Notification.addTextNotification(context, snippet, Notification.VibratePattern.NO_VIBRATE, Notification.getDefaultNotificationTimeout(context));
 		} else {
 			byte[] scroll = new byte[800];
@@ -164,8 +162,8 @@ public class NotificationBuilder {
 		Bitmap icon = Utils.getBitmap(context, "gmail.bmp");
 		String description = "Gmail: unread "+count;
 		if (MetaWatchService.watchType == WatchType.DIGITAL) {
-			Bitmap bitmap = smartLines(context, icon, "Gmail", new String[] {messages, recipient});	
-			Notification.addBitmapNotification(context, bitmap, vibratePattern, Notification.getDefaultNotificationTimeout(context), description);
+			MonoFrame frame = smartLines(context, icon, "Gmail", new String[] {messages, recipient});	
+			Notification.addFrameNotification(context, frame, vibratePattern, Notification.getDefaultNotificationTimeout(context), description);
 		} else {
 			byte[] scroll = new byte[800];
 			int len = Protocol.createOled2linesLong(context, recipient, scroll);
@@ -178,8 +176,8 @@ public class NotificationBuilder {
 		Bitmap icon = Utils.getBitmap(context, "email.bmp");
 		String description = "TouchDown: "+title;
 		if (MetaWatchService.watchType == WatchType.DIGITAL) {
-			Bitmap bitmap = smartLines(context, icon, "TouchDown", new String[] {title, ticker});
-			Notification.addBitmapNotification(context, bitmap, vibratePattern, Notification.getDefaultNotificationTimeout(context), description);
+			MonoFrame frame = smartLines(context, icon, "TouchDown", new String[] {title, ticker});
+			Notification.addFrameNotification(context, frame, vibratePattern, Notification.getDefaultNotificationTimeout(context), description);
 		} else {
 			byte[] scroll = new byte[800];
 			int len = Protocol.createOled2linesLong(context, ticker, scroll);
@@ -192,8 +190,8 @@ public class NotificationBuilder {
 		Bitmap icon = Utils.getBitmap(context, "calendar.bmp");
 		String description = "Cal: "+text;
 		if (MetaWatchService.watchType == WatchType.DIGITAL) {
-			Bitmap bitmap = smartLines(context, icon, "Calendar", new String[] {text});	
-			Notification.addBitmapNotification(context, bitmap, vibratePattern, Notification.getDefaultNotificationTimeout(context), description);	
+			MonoFrame frame = smartLines(context, icon, "Calendar", new String[] {text});	
+			Notification.addFrameNotification(context, frame, vibratePattern, Notification.getDefaultNotificationTimeout(context), description);	
 		} else {
 			byte[] scroll = new byte[800];
 			int len = Protocol.createOled2linesLong(context, text, scroll);
@@ -208,8 +206,8 @@ public class NotificationBuilder {
 	    Bitmap icon = Utils.getBitmap(context, "timer.bmp");
 	    String description = "Alarm";
 		if (MetaWatchService.watchType == WatchType.DIGITAL) {
-			Bitmap bitmap = smartLines(context, icon, "Alarm", new String[] {currentTime}, FontCache.FontSize.LARGE);		
-			Notification.addBitmapNotification(context, bitmap, vibratePattern, Notification.getDefaultNotificationTimeout(context), description);
+			MonoFrame frame = smartLines(context, icon, "Alarm", new String[] {currentTime}, FontCache.FontSize.LARGE);		
+			Notification.addFrameNotification(context, frame, vibratePattern, Notification.getDefaultNotificationTimeout(context), description);
 		} else {
 			Notification.addOledNotification(context, Protocol.createOled1line(context, icon, "Alarm"), Protocol.createOled1line(context, null, currentTime), null, 0, vibratePattern, description);
 		}
@@ -220,8 +218,8 @@ public class NotificationBuilder {
 		Bitmap icon = Utils.getBitmap(context, "play.bmp");
 		String description = "Music: "+track;
 		if (MetaWatchService.watchType == WatchType.DIGITAL) {
-			Bitmap bitmap = smartLines(context, icon, "Music", new String[] { track, album, artist});
-			Notification.addBitmapNotification(context, bitmap, vibratePattern, Notification.getDefaultNotificationTimeout(context), description);
+			MonoFrame frame = smartLines(context, icon, "Music", new String[] { track, album, artist});
+			Notification.addFrameNotification(context, frame, vibratePattern, Notification.getDefaultNotificationTimeout(context), description);
 		} else {
 			byte[] scroll = new byte[800];
 			int len = Protocol.createOled2linesLong(context, track, scroll);
@@ -235,8 +233,8 @@ public class NotificationBuilder {
 		Bitmap icon = Utils.getBitmap(context, "timezone.bmp");
 		String description = "Timezone Changed";
 		if (MetaWatchService.watchType == WatchType.DIGITAL) {
-			Bitmap bitmap = smartLines(context, icon, "Timezone", new String[] {"Timezone Changed", tz.getDisplayName()});		
-			Notification.addBitmapNotification(context, bitmap, vibratePattern, Notification.getDefaultNotificationTimeout(context), description);
+			MonoFrame frame = smartLines(context, icon, "Timezone", new String[] {"Timezone Changed", tz.getDisplayName()});		
+			Notification.addFrameNotification(context, frame, vibratePattern, Notification.getDefaultNotificationTimeout(context), description);
 		} else {
 			Notification.addOledNotification(context, Protocol.createOled1line(
 					context, icon, "Timezone"), Protocol
@@ -257,8 +255,8 @@ public class NotificationBuilder {
 		}
 		String description = appName;
 		if (MetaWatchService.watchType == WatchType.DIGITAL) {
-			Bitmap bitmap = smartLines(context, icon, appName, new String[] {notificationText});		
-			Notification.addBitmapNotification(context, bitmap, vibratePattern, Notification.getDefaultNotificationTimeout(context), description);
+			MonoFrame frame = smartLines(context, icon, appName, new String[] {notificationText});		
+			Notification.addFrameNotification(context, frame, vibratePattern, Notification.getDefaultNotificationTimeout(context), description);
 		} else {
 			byte[] scroll = new byte[800];
 			int len = Protocol.createOled2linesLong(context, notificationText, scroll);
@@ -271,8 +269,8 @@ public class NotificationBuilder {
 		Bitmap icon = Utils.getBitmap(context, "winamp.bmp");
 		String description = "Winamp: "+track;
 		if (MetaWatchService.watchType == WatchType.DIGITAL) {
-			Bitmap bitmap = smartLines(context, icon, "Winamp", new String[] { track, album, artist});
-			Notification.addBitmapNotification(context, bitmap, vibratePattern, Notification.getDefaultNotificationTimeout(context), description);
+			MonoFrame frame = smartLines(context, icon, "Winamp", new String[] { track, album, artist});
+			Notification.addFrameNotification(context, frame, vibratePattern, Notification.getDefaultNotificationTimeout(context), description);
 		} else {
 			byte[] scroll = new byte[800];
 			int len = Protocol.createOled2linesLong(context, track, scroll);
@@ -289,9 +287,9 @@ public class NotificationBuilder {
 		String description = "Battery low";
 		Bitmap icon = Utils.getBitmap(context, "batterylow.bmp");
 		if (MetaWatchService.watchType == WatchType.DIGITAL) {
-			Bitmap bitmap = smartLines(context, icon,
+			MonoFrame frame = smartLines(context, icon,
 					"Battery", new String[] { "Phone battery at", builder.toString() });
-			Notification.addBitmapNotification(context, bitmap, vibratePattern,
+			Notification.addFrameNotification(context, frame, vibratePattern,
 					Notification.getDefaultNotificationTimeout(context), description);
 		} else {
 			Notification.addOledNotification(context, Protocol.createOled1line(
@@ -305,8 +303,8 @@ public class NotificationBuilder {
 		VibratePattern vibratePattern = createVibratePatternFromPreference(context, "settingsNMANumberBuzzes");		
 		Bitmap icon = Utils.getBitmap(context, "notifymyandroid.bmp");
 		if (MetaWatchService.watchType == WatchType.DIGITAL) {
-			Bitmap bitmap = smartLines(context, icon, appName, new String[] {event, desc});		
-			Notification.addBitmapNotification(context, bitmap, vibratePattern, Notification.getDefaultNotificationTimeout(context), appName+": "+event);
+			MonoFrame frame = smartLines(context, icon, appName, new String[] {event, desc});		
+			Notification.addFrameNotification(context, frame, vibratePattern, Notification.getDefaultNotificationTimeout(context), appName+": "+event);
 		} else {
 			byte[] scroll = new byte[800];
 			int len = Protocol.createOled2linesLong(context, desc, scroll);
@@ -320,9 +318,9 @@ public class NotificationBuilder {
 		String description = "New Voicemail";
 		Bitmap icon = Utils.getBitmap(context, "voicemail.bmp");
 		if (MetaWatchService.watchType == WatchType.DIGITAL) {
-			Bitmap bitmap = smartLines(context, icon,
+			MonoFrame frame = smartLines(context, icon,
 					"Voicemail", new String[] { "You have", "new voicemail" });
-			Notification.addBitmapNotification(context, bitmap, vibratePattern,
+			Notification.addFrameNotification(context, frame, vibratePattern,
 					Notification.getDefaultNotificationTimeout(context), description);
 		} else {
 			Notification.addOledNotification(context, Protocol.createOled1line(
@@ -332,11 +330,12 @@ public class NotificationBuilder {
 		}
 	}	
 	
-	static Bitmap smartLines(Context context, Bitmap icon, String header, String[] lines) {
+	static MonoFrame smartLines(Context context, Bitmap icon, String header, String[] lines) {
 		return smartLines(context, icon, header, lines, FontCache.FontSize.AUTO);
 	}
 	
-	static Bitmap smartLines(Context context, Bitmap icon, String header, String[] lines, FontCache.FontSize size) {
+	/* The text is drawn straight into the packed screen */
+	static MonoFrame smartLines(Context context, Bitmap icon, String header, String[] lines, FontCache.FontSize size) {
 		
 		Properties props = BitmapCache.getProperties(context, "notification.xml");
 		
@@ -390,22 +389,19 @@ public class NotificationBuilder {
 			body += line;
 		}
 		
-		TextPaint textPaint = new TextPaint(paint);
-		StaticLayout staticLayout = new StaticLayout(body, textPaint, textWidth,
-				android.text.Layout.Alignment.ALIGN_CENTER, 1.3f, 0, false);
+		TextLayout staticLayout = new TextLayout(GlyphAtlas.get(font), body, textWidth,
+				android.text.Layout.Alignment.ALIGN_CENTER, 1.3f, textColor);
 		
 		int layoutHeight = staticLayout.getHeight();
 		int textY = textTop + (textHeight/2) - (layoutHeight/2);
 		if (textY < textTop)
 			textY = textTop;
 		
-		canvas.translate(textLeft, textY); // position the text
-		staticLayout.draw(canvas);
-
-		return bitmap;
+		return MonoFrame.fromBitmap(bitmap, staticLayout, textLeft, textY, 0, MonoFrame.HEIGHT);
 	}
 		
-	static Bitmap[] smartNotify(Context context, Bitmap icon, String header, String body) {	
+	/* Pages of the body, each with its text drawn straight into the packed screen */
+	static MonoFrame[] smartNotify(Context context, Bitmap icon, String header, String body) {	
 		
 		Properties props = BitmapCache.getProperties(context, "notification_sticky.xml");
 		
@@ -434,7 +430,7 @@ public class NotificationBuilder {
 		
 		FontInfo font = FontCache.instance(context).Get();		
 		
-		List<Bitmap> bitmaps = new ArrayList<Bitmap>();	
+		List<MonoFrame> frames = new ArrayList<MonoFrame>();	
 		
 		Paint paintHead = new Paint();
 		paintHead.setColor(headerColor);		
@@ -449,9 +445,8 @@ public class NotificationBuilder {
 		Paint whitePaint = new Paint();
 		whitePaint.setColor(Color.WHITE);	
 		
-		TextPaint textPaint = new TextPaint(paint);
-		StaticLayout staticLayout = new StaticLayout(body, textPaint, textWidth,
-				android.text.Layout.Alignment.ALIGN_NORMAL, 1.0f, 0, false);
+		TextLayout staticLayout = new TextLayout(GlyphAtlas.get(font), body, textWidth,
+				android.text.Layout.Alignment.ALIGN_NORMAL, 1.0f, textColor);
 		
 
 		int iconHeight = 16;
@@ -479,12 +474,6 @@ public class NotificationBuilder {
 
 			canvas.drawBitmap(Utils.getBitmap(context, "notify_background_sticky.png"), 0, 0, null);
 			
-			canvas.save();
-			canvas.translate(textLeft, textTop - y); // position the text
-			canvas.clipRect(0, y, textWidth, textHeight+y);
-			staticLayout.draw(canvas);
-			canvas.restore();
-			
 			// Draw header
 			if (icon != null)
 				canvas.drawBitmap(icon, iconLeft, iconOffset+iconTop, paint);
@@ -501,13 +490,13 @@ public class NotificationBuilder {
 						
 			canvas.drawBitmap(Utils.getBitmap(context, "close.bmp"), closeLeft, closeTop, null);
 			
+			// The text, scrolled by y and clipped to its area
+			frames.add(MonoFrame.fromBitmap(bitmap, staticLayout, textLeft, textTop - y, textTop, textTop + textHeight));
+			
 			y += scroll;
-			bitmaps.add(bitmap);
 		} 
 		
-		Bitmap[] bitmapArray = new Bitmap[bitmaps.size()];
-		bitmaps.toArray(bitmapArray);
-		return bitmapArray;
+		return frames.toArray(new MonoFrame[frames.size()]);
 	}
 		
 }
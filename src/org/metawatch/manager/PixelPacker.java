@@ -0,0 +1,70 @@
+package org.metawatch.manager;
+
+/*
+ * Packs ARGB pixels (as returned by Bitmap.getPixels) into the 1 bit per
+ * pixel layouts used by the watch.  Any pixel that isn't pure white is
+ * packed as a set (black) bit.
+ *
+ * LCD buffers are row major, 8 horizontally adjacent pixels per byte with
+ * the leftmost pixel in the least significant bit.
+ *
+ * OLED buffers are column major, each byte holding 8 vertically adjacent
+ * pixels of one column with the top pixel in the least significant bit.
+ *
+ * None of these methods allocate, so callers can pack into reused buffers.
+ */
+public class PixelPacker {
+
+	private PixelPacker() {
+	}
+
+	/*
+	 * 1 for any pixel other than white (0xFFFFFFFF), 0 for white - without
+	 * branching: pixel+1 is zero only for white.
+	 */
+	private static int ink(int pixel) {
+		final int x = pixel + 1;
+		return (x | -x) >>> 31;
+	}
+
+	/*
+	 * Packs count pixels (a multiple of 8) starting at pixels[0] into
+	 * count/8 bytes of out starting at outOffset, LCD style.
+	 */
+	public static void packRows(int[] pixels, int count, byte[] out, int outOffset) {
+		for (int p = 0, o = outOffset; p < count; p += 8, o++) {
+			out[o] = (byte) (ink(pixels[p])
+					| ink(pixels[p + 1]) << 1
+					| ink(pixels[p + 2]) << 2
+					| ink(pixels[p + 3]) << 3
+					| ink(pixels[p + 4]) << 4
+					| ink(pixels[p + 5]) << 5
+					| ink(pixels[p + 6]) << 6
+					| ink(pixels[p + 7]) << 7);
+		}
+	}
+
+	/*
+	 * Packs one 8 pixel high band, starting at firstRow, of an image width
+	 * pixels wide into width bytes of out starting at outOffset, OLED style.
+	 */
+	public static void packBand(int[] pixels, int width, int firstRow, byte[] out, int outOffset) {
+		final int base = firstRow * width;
+		for (int x = 0; x < width; x++) {
+			int p = base + x;
+			int column = 0;
+			for (int bit = 0; bit < 8; bit++, p += width)
+				column |= ink(pixels[p]) << bit;
+			out[outOffset + x] = (byte) column;
+		}
+	}
+
+	/*
+	 * Packs a whole image, height a multiple of 8, band by band, OLED style.
+	 * An 80x16 OLED page packs into 160 bytes: the top band then the bottom.
+	 */
+	public static void packColumns(int[] pixels, int width, int height, byte[] out) {
+		for (int row = 0; row < height; row += 8)
+			packBand(pixels, width, row, out, row / 8 * width);
+	}
+}
@@ -29,28 +29,23 @@
 
 package org.metawatch.manager;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.List;
 
 import org.metawatch.manager.MetaWatchService.ConnectionState;
 import org.metawatch.manager.MetaWatchService.Preferences;
 import org.metawatch.manager.MetaWatchService.WatchBuffers;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Paint.Align;
 import android.os.Environment;
-import android.preference.PreferenceManager;
 import android.text.StaticLayout;
 import android.text.TextPaint;
 import android.text.format.DateFormat;
@@ -58,175 +53,98 @@ import android.util.Log;
 
 public class Protocol {
 	
-	private static volatile BlockingQueue<byte[]> sendQueue = new LinkedBlockingQueue<byte[]>();
-
 	private static boolean idleShowClock = true;
-	
-	private static byte[][][] LCDDiffBuffer = new byte[3][48][30];
-  
-	public static void resetLCDDiffBuffer() {
-		LCDDiffBuffer = new byte[3][48][30];
-	}
 
-	private static volatile boolean protocolSenderRunning = false;
-	private static Runnable protocolSender = new Runnable() {
-		public void run() {
-			while (protocolSenderRunning) {
-				try {
-					byte[] message = sendQueue.take();
-					send(message);
-					
-					Thread.sleep(Preferences.packetWait);
-
-				} catch (InterruptedException ie) {
-					/* If we've been interrupted, exit gracefully. */
-					if (Preferences.logging) Log.d(MetaWatch.TAG,
-							"ProtocolSender was interrupted waiting for next message, exiting.");
-					break;
-				} catch (IOException e) {
-					if (Preferences.logging) Log.e(MetaWatch.TAG,
-							"ProtocolSender encountered an I/O error sending message!");
-					sendQueue.clear();
-					break;
-				}
-			}
-		}
-	};
-	private static Thread protocolSenderThread = null;
-
-	private static Runnable protocolWatchdog = new Runnable() {
-		public void run() {
-
-			while (protocolSenderRunning) {
-				try {
-
-					/* Remember the current queue length */
-					int prevSentPackets=sentPackets;
-
-					/* Wait some time */
-					Thread.sleep(5*1000);
-
-					/* If the queue did not decrease, restart protocol */
-					if ((sendQueue.size()!=0)&&(prevSentPackets==sentPackets)) {
-						if (MetaWatchService.connectionState==ConnectionState.CONNECTED) {
-							if (Preferences.autoRestart) {
-								Protocol.stopProtocolSender();
-								Protocol.startProtocolSender();
-								Log.d(MetaWatch.TAG, "Protocol restarted due to stalled queue");  
-								return;
-							}
-						}
-					}
+	/* Clients are told about queue changes at most this often */
+	private static final long CLIENT_UPDATE_INTERVAL = 500; // ms
+	private static volatile long lastClientUpdate = 0;
 
-				}
-				catch (InterruptedException ioe) {
-					//if (Preferences.logging) Log.d(MetaWatch.TAG, "Timeout aborted");        
-				}
+	/* Set while frames are meant for one watch only, see toSession */
+	private static final ThreadLocal<WatchSession> onlySession = new ThreadLocal<WatchSession>();
 
-			}      
-		}
-	};
-	private static int sentPackets = 0;  
-	private static Thread protocolWatchdogThread = null;
-
-	public static synchronized void startProtocolSender() {
-		if (protocolSenderRunning == false) {
-			protocolSenderRunning = true;
-			protocolSenderThread = new Thread(protocolSender, "ProtocolSender");
-			protocolSenderThread.setDaemon(true);
-			protocolSenderThread.start();
-			protocolWatchdogThread = new Thread(protocolWatchdog, "ProtocolWatchdog");
-			protocolWatchdogThread.start();
+	/*
+	 * Runs the given sends on this thread for the one session only, e.g. to
+	 * set up a secondary watch that has just connected.
+	 */
+	static void toSession(WatchSession session, Runnable sends) {
+		WatchSession previous = onlySession.get();
+		onlySession.set(session);
+		try {
+			sends.run();
+		} finally {
+			onlySession.set(previous);
 		}
 	}
 
-	public static synchronized void stopProtocolSender() {
-		if (protocolSenderRunning == true) {
-			/* Stops thread gracefully */
-			protocolSenderRunning = false;
-			/* Wakes up thread if it's sleeping on the queue */
-			protocolSenderThread.interrupt();
-			protocolWatchdogThread.interrupt();
-			/* Thread is dead, we can mark it for garbage collection. */
-			protocolSenderThread = null;
-			protocolWatchdogThread = null;
-		}
+	/* The sessions frames sent from this thread go to */
+	private static List<WatchSession> targetSessions() {
+		WatchSession session = onlySession.get();
+		if (session != null)
+			return Collections.singletonList(session);
+		return WatchSession.getSessions();
 	}
 
+	/* The generation of the watch being addressed, or of the primary */
+	private static int targetWatchGen() {
+		WatchSession session = onlySession.get();
+		if (session != null && session.watchGen != MetaWatchService.WatchGen.UNKNOWN)
+			return session.watchGen;
+		return MetaWatchService.watchGen;
+	}
+
+	public static void resetLCDDiffBuffer() {
+		for (WatchSession session : targetSessions())
+			session.resetLCDDiffBuffer();
+	}
+
+	/* Scratch buffers for packing OLED pages, only used while holding the Protocol lock */
+	private static final int[] oledPixels = new int[80 * 16];
+	private static final byte[] oledPacked = new byte[160];
+
 	public static boolean sendLcdBitmap(Bitmap bitmap, int bufferType) {
-		if (bitmap==null || bitmap.getWidth() != 96 || bitmap.getHeight() != 96 ) { 
+		MonoFrame frame = MonoFrame.fromBitmap(bitmap);
+		if (frame == null) { 
 			if (Preferences.logging) Log.d(MetaWatch.TAG, "Protocol.sendLcdBitmap - null or non 96px bitmap!");
 			return false;
 		}
 		
-		if (Preferences.dumpWatchScreenshots)
-			Utils.dumpBitmapToSdCard(bitmap, Environment.getExternalStorageDirectory().getPath()+ "MWM_"+System.currentTimeMillis()+".png");
-		
 		if (Preferences.logging) Log.d(MetaWatch.TAG, "Protocol.sendLcdBitmap()");
-		int pixelArray[] = new int[96 * 96];
-		bitmap.getPixels(pixelArray, 0, 96, 0, 0, 96, 96);
-
-		return sendLcdArray(pixelArray, bufferType);
+		return sendLcdFrame(frame, bufferType);
 	}
 
 	static boolean sendLcdArray(int[] pixelArray, int bufferType) {
-		byte send[] = new byte[1152];
-
-		for (int i = 0; i < 1152; i++) {
-			int p[] = new int[8];
-
-			for (int j = 0; j < 8; j++) {
-				if (pixelArray[i * 8 + j] == Color.WHITE)
-					/*
-					 * if (Preferences.invertLCD) p[j] = 1; else
-					 */
-					p[j] = 0;
-				else
-					/*
-					 * if (Preferences.invertLCD) p[j] = 0; else
-					 */
-					p[j] = 1;
-			}
-			send[i] = (byte) (p[7] * 128 + p[6] * 64 + p[5] * 32 + p[4] * 16
-					+ p[3] * 8 + p[2] * 4 + p[1] * 2 + p[0] * 1);
-		}
-		return sendLcdBuffer(send, bufferType);
+		return sendLcdFrame(MonoFrame.fromPixels(pixelArray), bufferType);
 	}
 
 	static boolean sendLcdBuffer(byte[] buffer, int bufferType) {
-		if (MetaWatchService.connectionState != MetaWatchService.ConnectionState.CONNECTED)
-			return false;
+		return sendLcdFrame(MonoFrame.fromBuffer(buffer), bufferType);
+	}
 
-		int i = 0;
-		//if (bufferType == MetaWatchService.WatchBuffers.IDLE && idleShowClock)
-		//	i = 30;
+	/*
+	 * Sends the frame to the given buffer of every connected digital watch,
+	 * each only getting the rows that changed since its last update.  Each
+	 * session goes by its own connection, so secondary watches still get
+	 * frames while the primary reconnects.
+	 */
+	static synchronized boolean sendLcdFrame(MonoFrame frame, int bufferType) {
+		if (frame == null)
+			return false;
+		
+		boolean connected = false;
+		List<WatchSession> sessions = targetSessions();
+		for (WatchSession session : sessions)
+			connected |= session.isConnected();
+		if (!connected)
+			return false;
 
+		if (Preferences.dumpWatchScreenshots)
+			Utils.dumpBitmapToSdCard(frame.toBitmap(), Environment.getExternalStorageDirectory().getPath()+ "MWM_"+System.currentTimeMillis()+".png");
+		
 		int sentLines = 0;
-		for (; i < 96; i += 2) {
-			byte[] bytes = new byte[30];
-
-			bytes[0] = 0x01;
-			bytes[1] = (byte) (bytes.length+2); // packet length
-			bytes[2] = eMessageType.WriteBuffer.msg; 
-			bytes[3] = (byte) (bufferType & 3); 
-
-			bytes[4] = (byte) i; // row A
-			for (int j = 0; j < 12; j++)
-				bytes[j + 5] = buffer[i * 12 + j];
-
-			bytes[4 + 13] = (byte) (i + 1); // row B
-			for (int j = 0; j < 12; j++)
-				bytes[j + 5 + 13] = buffer[i * 12 + j + 12];
-
-			// Only send the row packet if the data's changed since the
-			// last time we sent it
-			if( !Arrays.equals(LCDDiffBuffer[bufferType][i/2], bytes) ) {
-				enqueue(bytes);
-				LCDDiffBuffer[bufferType][i/2] = bytes;
-				sentLines += 2;
-			}
+		for (WatchSession session : sessions) {
+			if (session.isConnected())
+				sentLines += session.sendLcdFrame(frame, bufferType);
 		}
-		if (Preferences.logging) Log.d(MetaWatch.TAG, "Sent "+sentLines+ "/96");
 
 		return (sentLines>0);
 	}
@@ -240,62 +158,70 @@ public class Protocol {
 		if (MetaWatchService.fakeWatch)
 			return;
 		
-		sendQueue.add(bytes);
+		for (WatchSession session : targetSessions())
+			session.enqueue(bytes);
 
-		if (sendQueue.size() % 10 == 0)
-			MetaWatchService.notifyClients();
+		updateClients(false);
 	}
 	
-	// Force the message packet to the head of the queue
+	// Force the message packet to the head of its lane in the queue
 	// this should only be used when really necessary / time critical
 	public static void pushhead(byte[] bytes) {
 		
 		if (MetaWatchService.fakeWatch)
 			return;
 		
-		ArrayList<byte[]> temp = new ArrayList<byte[]>();		
-		sendQueue.drainTo(temp);		
-		sendQueue.add(bytes);
-		sendQueue.addAll(temp);
+		for (WatchSession session : targetSessions())
+			session.pushhead(bytes);
 
-		if (sendQueue.size() % 10 == 0)
-			MetaWatchService.notifyClients();
+		updateClients(false);
 	}
 
-	public static void send(byte[] bytes) throws IOException {
-		if (bytes == null)
+	/*
+	 * Lets clients know the queue has changed, no more than every
+	 * CLIENT_UPDATE_INTERVAL unless forced.
+	 */
+	static void updateClients(boolean force) {
+		final long now = System.currentTimeMillis();
+		if (!force && now - lastClientUpdate < CLIENT_UPDATE_INTERVAL)
 			return;
+		lastClientUpdate = now;
+		MetaWatchService.notifyClients();
+	}
 
-		ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-		byteArrayOutputStream.write(bytes);
-		byteArrayOutputStream.write(crc(bytes));
-
-		SharedPreferences sharedPreferences = PreferenceManager
-			.getDefaultSharedPreferences(MetaWatchService.context);
-		if (sharedPreferences.getBoolean("logPacketDetails", false)) {
-			String str = "sending: ";
-			byte[] b = byteArrayOutputStream.toByteArray();
-			for (int i = 0; i < b.length; i++) {
-				str += "0x"
-					+ Integer.toString((b[i] & 0xff) + 0x100, 16)
-					.substring(1) + ", ";
-			}
-			if (Preferences.logging) Log.d(MetaWatch.TAG, str);
-		}
+	/* Summed over all sessions */
+	public static int getBytesPerSecond() {
+		int total = 0;
+		for (WatchSession session : WatchSession.getSessions())
+			total += session.getBytesPerSecond();
+		return total;
+	}
+
+	/* LCD row frames replaced by newer versions before being sent, over all sessions */
+	public static int getSupersededRows() {
+		int total = 0;
+		for (WatchSession session : WatchSession.getSessions())
+			total += session.getSupersededRows();
+		return total;
+	}
 
-		if (MetaWatchService.outputStream == null)
-			throw new IOException("OutputStream is null");
+	public static int getStallCount() {
+		int total = 0;
+		for (WatchSession session : WatchSession.getSessions())
+			total += session.getStallCount();
+		return total;
+	}
 
-		MetaWatchService.outputStream
-			.write(byteArrayOutputStream.toByteArray());
-		MetaWatchService.outputStream.flush();
+	/* The most recent stalls on the primary watch, oldest first */
+	static List<StallDetector.Event> getStalls() {
+		WatchSession session = WatchSession.getPrimary();
+		return session != null ? session.getStalls() : new ArrayList<StallDetector.Event>();
+	}
 
-		sentPackets++;
-		if (sentPackets<0)
-		  sentPackets=1;
-		
-		if (sendQueue.size() % 10 == 0)
-			MetaWatchService.notifyClients();
+	/* The rate the pacer currently allows on the primary watch, in bytes/s */
+	public static int getLinkRate() {
+		WatchSession session = WatchSession.getPrimary();
+		return session != null ? session.getLinkRate() : 0;
 	}
 
 	public static void sendAdvanceHands(int hour, int minute, int second) {
@@ -350,36 +276,41 @@ public class Protocol {
 		}
 	}
 
+	/*
+	 * Reads the watch's clock, then sets it with half the measured round
+	 * trip added to allow for latency.
+	 */
 	public static void getRealTimeClock() {
 		if (Preferences.logging) Log.d(MetaWatch.TAG, "Protocol.getRealTimeClock()");
-		byte[] bytes = new byte[4];
-
-		bytes[0] = eMessageType.start;
-		bytes[1] = (byte) (bytes.length+2); // length
-		bytes[2] = eMessageType.GetRealTimeClock.msg;
-		bytes[3] = 0;
-	
+		for (final WatchSession session : targetSessions()) {
+			final Runnable setClock = new Runnable() {
+				public void run() {
+					Protocol.setRealTimeClock(MetaWatchService.context);
+				}
+			};
+			session.queries.request(eMessageType.GetRealTimeClock, eMessageType.GetRealTimeClockResponse, true,
+					new WatchQueries.Callback() {
+						public void onResponse(WatchSession session, byte[] bytes, int length, long roundTrip) {
+							if (Preferences.logging) Log.d(MetaWatch.TAG, 
+									"Protocol.getRealTimeClock(): received rtc response."
+											+ " round trip= "+roundTrip );
+							
+							Monitors.rtcOffset = (int)(roundTrip/2000);
+							
+							toSession(session, setClock);
+						}
 
-		Monitors.getRTCTimestamp = System.currentTimeMillis();	
-		pushhead(bytes);
+						public void onTimeout() {
+							// Set the clock anyway, without any latency correction
+							toSession(session, setClock);
+						}
+					}, 2000, 1);
+		}
 	}
 
 	public static byte[] crc(byte[] bytes) {
 		byte[] result = new byte[2];
-		short crc = (short) 0xFFFF;
-		for (int j = 0; j < bytes.length; j++) {
-			byte c = bytes[j];
-			for (int i = 7; i >= 0; i--) {
-				boolean c15 = ((crc >> 15 & 1) == 1);
-				boolean bit = ((c >> (7 - i) & 1) == 1);
-				crc <<= 1;
-				if (c15 ^ bit)
-					crc ^= 0x1021; // 0001 0000 0010 0001 (0, 5, 12)
-			}
-		}
-		int crc2 = crc - 0xffff0000;
-		result[0] = (byte) (crc2 % 256);
-		result[1] = (byte) (crc2 / 256);
+		Crc.compute(bytes, 0, bytes.length, result, 0);
 		return result;
 	}
 
@@ -451,7 +382,7 @@ public class Protocol {
 		bytes[1] = (byte) (bytes.length+2); // length
 		bytes[2] = eMessageType.UpdateDisplay.msg; // update display
 
-		if (MetaWatchService.watchGen == MetaWatchService.WatchGen.GEN2) {
+		if (targetWatchGen() == MetaWatchService.WatchGen.GEN2) {
 			//bytes[3] = (byte) (bufferType);
 			
 			final int mode = bufferType;
@@ -475,7 +406,7 @@ public class Protocol {
 
 		enqueue(bytes);
 		
-		if(MetaWatchService.watchGen == MetaWatchService.WatchGen.GEN2) {
+		if(targetWatchGen() == MetaWatchService.WatchGen.GEN2) {
 			changeMode(bufferType);
 		}
 	}
@@ -630,40 +561,37 @@ public class Protocol {
 		}
 	}
 	
+	/*
+	 * The responses to these are handled by MetaWatchService's callbacks.
+	 * Each watch is asked separately, so answers are matched to the watch
+	 * that gave them.
+	 */
 	public static void getDeviceType() {
 		if (Preferences.logging) Log.d(MetaWatch.TAG, "Protocol.getDeviceType()");
-		byte[] bytes = new byte[4];
-
-		bytes[0] = eMessageType.start;
-		bytes[1] = (byte) (bytes.length+2); // length
-		bytes[2] = eMessageType.GetDeviceType.msg;
-		bytes[3] = 0;
-
-		enqueue(bytes);
+		// Secondary watches are asked as they connect
+		WatchSession session = onlySession.get() != null ? onlySession.get() : WatchSession.getPrimary();
+		if (session != null && MetaWatchService.deviceTypeReceived != null)
+			session.queries.request(eMessageType.GetDeviceType, eMessageType.GetDeviceTypeResponse, false,
+					MetaWatchService.deviceTypeReceived, 5000, 2);
 	}
 
 	public static void readBatteryVoltage() {
 		if (Preferences.logging) Log.d(MetaWatch.TAG, "Protocol.readBatteryVoltage()");
-		byte[] bytes = new byte[4];
-
-		bytes[0] = eMessageType.start;
-		bytes[1] = (byte) (bytes.length+2); // length
-		bytes[2] = eMessageType.ReadBatteryVoltageMsg.msg;
-		bytes[3] = 0;
-
-		enqueue(bytes);		
+		request(eMessageType.ReadBatteryVoltageMsg, eMessageType.ReadBatteryVoltageResponse,
+				MetaWatchService.batteryVoltageReceived, 1);
 	}
 
 	public static void readLightSensor() {
 		if (Preferences.logging) Log.d(MetaWatch.TAG, "Protocol.readLightSensor()");
-		byte[] bytes = new byte[4];
-
-		bytes[0] = eMessageType.start;
-		bytes[1] = (byte) (bytes.length+2); // length
-		bytes[2] = eMessageType.ReadLightSensorMsg.msg;
-		bytes[3] = 0;
+		request(eMessageType.ReadLightSensorMsg, eMessageType.ReadLightSensorResponse,
+				MetaWatchService.lightSensorReceived, 1);
+	}
 
-		enqueue(bytes);		
+	private static void request(eMessageType query, eMessageType response, WatchQueries.Callback callback, int retries) {
+		if (callback == null)
+			return;
+		for (WatchSession session : targetSessions())
+			session.queries.request(query, response, false, callback, 5000, retries);
 	}
 
 	public static void setTimeDateFormat(Context context) {
@@ -785,27 +713,7 @@ public class Protocol {
 		image.getPixels(poleInt, 0, 80, 0, 0, 80, 16);
 
 		byte[] display = new byte[160];
-
-		for (int i = 0; i < 160; i++) {
-			boolean[] column = new boolean[8];
-			for (int j = 0; j < 8; j++) {
-				if (i < 80) {
-					if (poleInt[80 * j + i] == Color.WHITE)
-						column[j] = false;
-					else
-						column[j] = true;
-				} else {
-					if (poleInt[80 * 8 + 80 * j + i - 80] == Color.WHITE)
-						column[j] = false;
-					else
-						column[j] = true;
-				}
-			}
-			for (int j = 0; j < 8; j++) {
-				if (column[j])
-					display[i] += Math.pow(2, j);
-			}
-		}
+		PixelPacker.packColumns(poleInt, 80, 16, display);
 
 		return display;
 	}
@@ -832,27 +740,7 @@ public class Protocol {
 		image.getPixels(poleInt, 0, 80, 0, 0, 80, 16);
 
 		byte[] display = new byte[160];
-
-		for (int i = 0; i < 160; i++) {
-			boolean[] column = new boolean[8];
-			for (int j = 0; j < 8; j++) {
-				if (i < 80) {
-					if (poleInt[80 * j + i] == Color.WHITE)
-						column[j] = false;
-					else
-						column[j] = true;
-				} else {
-					if (poleInt[80 * 8 + 80 * j + i - 80] == Color.WHITE)
-						column[j] = false;
-					else
-						column[j] = true;
-				}
-			}
-			for (int j = 0; j < 8; j++) {
-				if (column[j])
-					display[i] += Math.pow(2, j);
-			}
-		}
+		PixelPacker.packColumns(poleInt, 80, 16, display);
 
 		return display;
 	}
@@ -878,60 +766,25 @@ public class Protocol {
 		int poleInt[] = new int[8 * width];
 		image.getPixels(poleInt, 0, width, 0, 0, width, 8);
 
-		for (int i = 0; i < width; i++) {
-			boolean[] column = new boolean[8];
-			for (int j = 0; j < 8; j++) {
-				if (poleInt[width * j + i] == Color.WHITE)
-					column[j] = false;
-				else
-					column[j] = true;
-			}
-			for (int j = 0; j < 8; j++) {
-				if (column[j])
-					display[i] += Math.pow(2, j);
-			}
-		}
+		PixelPacker.packBand(poleInt, width, 0, display, 0);
 
 		return (int) paint.measureText(line) - 79;
 	}
 
-	public static void sendOledBitmap(Bitmap bitmap, int bufferType, int page) {
+	public static synchronized void sendOledBitmap(Bitmap bitmap, int bufferType, int page) {
 		if (bitmap==null) 
 			return;
 		
 		if (Preferences.logging) Log.d(MetaWatch.TAG, "Protocol.sendOledBitmap()");
 		
-		int pixelArray[] = new int[16 * 80];
-		bitmap.getPixels(pixelArray, 0, 80, 0, 0, 80, 16);
+		bitmap.getPixels(oledPixels, 0, 80, 0, 0, 80, 16);
 
-		sendOledArray(pixelArray, bufferType, page);
+		sendOledArray(oledPixels, bufferType, page);
 	}
 
-	static void sendOledArray(int[] pixelArray, int bufferType, int page) {
-		byte[] send = new byte[160];
-
-		for (int i = 0; i < 160; i++) {
-			boolean[] column = new boolean[8];
-			for (int j = 0; j < 8; j++) {
-				if (i < 80) {
-					if (pixelArray[80 * j + i] == Color.WHITE)
-						column[j] = false;
-					else
-						column[j] = true;
-				} else {
-					if (pixelArray[80 * 8 + 80 * j + i - 80] == Color.WHITE)
-						column[j] = false;
-					else
-						column[j] = true;
-				}
-			}
-			for (int j = 0; j < 8; j++) {
-				if (column[j])
-					send[i] += Math.pow(2, j);
-			}
-		}
-
-		sendOledBuffer(send, bufferType, page, false);
+	static synchronized void sendOledArray(int[] pixelArray, int bufferType, int page) {
+		PixelPacker.packColumns(pixelArray, 80, 16, oledPacked);
+		sendOledBuffer(oledPacked, bufferType, page, false);
 	}
 	
 	public static void sendOledBuffer(byte[] display, int bufferType, int page,
@@ -1057,7 +910,10 @@ public class Protocol {
 	}
 
 	public static int getQueueLength() {
-		return sendQueue.size();
+		int total = 0;
+		for (WatchSession session : WatchSession.getSessions())
+			total += session.getQueueLength();
+		return total;
 	}
 
 }
@@ -0,0 +1,250 @@
+package org.metawatch.manager;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/*
+ * Queue of frames waiting to be sent to the watch, split into lanes so that
+ * small, time critical messages don't wait behind a screen's worth of row
+ * data.
+ *
+ * CONTROL frames (RTC, vibrate, LED...) always go first.  DISPLAY frames
+ * (UpdateDisplay, ChangeMode...) come next, but never overtake BULK frames
+ * (buffer writes) that were queued before them, so a screen is never shown
+ * before its rows have been written.  BULK frames go last.
+ *
+ * Configuration that changes how the watch treats what is already queued -
+ * idle buffer size, mode configuration, button setup - goes in the DISPLAY
+ * lane too, so it acts as a barrier and stays in order with the rows and
+ * updates around it.
+ *
+ * LCD row frames and UpdateDisplays are tagged with their buffer and the
+ * generation of the screen they belong to, so a newer screen for a buffer
+ * can drop what is left of an older one before it reaches the watch.
+ */
+class SendQueue {
+
+	static final int CONTROL = 0;
+	static final int DISPLAY = 1;
+	static final int BULK = 2;
+
+	/*
+	 * Maximum number of control frames sent in a row while other lanes
+	 * are waiting, so a chatty client can't starve the display.
+	 */
+	private static final int CONTROL_WEIGHT = 8;
+
+	/* LCD buffers tracked by supersede() */
+	private static final int LCD_BUFFERS = 3;
+
+	private static class Entry {
+		final byte[] frame;
+		final long sequence;
+		final long enqueuedAt = System.nanoTime();
+		/* LCD row frames and UpdateDisplays: the buffer and screen they belong to */
+		int buffer = -1;
+		int row = -1;
+		int generation;
+
+		Entry(byte[] frame, long sequence) {
+			this.frame = frame;
+			this.sequence = sequence;
+		}
+	}
+
+	private final List<LinkedList<Entry>> lanes = new ArrayList<LinkedList<Entry>>(3);
+	{
+		for (int i = 0; i < 3; i++)
+			lanes.add(new LinkedList<Entry>());
+	}
+
+	/* Generation of the newest screen queued for each LCD buffer */
+	private final int[] generations = new int[LCD_BUFFERS];
+
+	private long sequence = 0;
+	private int size = 0;
+	private int controlRun = 0;
+	private int supersededRows = 0;
+	private long lastEnqueuedAt = 0;
+
+	static int laneFor(byte[] frame) {
+		if (frame.length < 3)
+			return CONTROL;
+
+		final byte type = frame[2];
+		if (type == eMessageType.WriteBuffer.msg
+				|| type == eMessageType.LoadTemplate.msg
+				|| type == eMessageType.OledWriteBufferMsg.msg
+				|| type == eMessageType.OledWriteScrollBufferMsg.msg)
+			return BULK;
+
+		if (type == eMessageType.UpdateDisplay.msg
+				|| type == eMessageType.ChangeModeMsg.msg
+				|| type == eMessageType.OledChangeModeMsg.msg
+				|| type == eMessageType.ConfigureMode.msg
+				|| type == eMessageType.OledConfigureModeMsg.msg
+				|| type == eMessageType.ConfigureIdleBufferSize.msg
+				|| type == eMessageType.EnableButtonMsg.msg
+				|| type == eMessageType.DisableButtonMsg.msg)
+			return DISPLAY;
+
+		return CONTROL;
+	}
+
+	public synchronized void add(byte[] frame) {
+		enqueue(new Entry(frame, sequence++), false);
+	}
+
+	private void enqueue(Entry entry, boolean head) {
+		final int lane = laneFor(entry.frame);
+		if (entry.frame.length > 3 && entry.frame[2] == eMessageType.UpdateDisplay.msg) {
+			// Both generations of watch keep the buffer in the low bits
+			entry.buffer = entry.frame[3] & 3;
+			if (entry.buffer < LCD_BUFFERS)
+				entry.generation = generations[entry.buffer];
+		}
+		if (head)
+			lanes.get(lane).addFirst(entry);
+		else
+			lanes.get(lane).addLast(entry);
+		size++;
+		notify();
+	}
+
+	/*
+	 * Starts a new screen for an LCD buffer.  Row frames of older screens
+	 * for the buffer that haven't been sent yet are dropped, along with the
+	 * UpdateDisplays still waiting to show them, so the watch never shows
+	 * a screen that has already been replaced, nor a mix of two.  Returns
+	 * a mask of the row pairs dropped, which the new screen has to send
+	 * whether or not they changed.
+	 */
+	public synchronized long supersede(int buffer) {
+		final int generation = ++generations[buffer];
+
+		long dropped = 0;
+		for (Iterator<Entry> it = lanes.get(BULK).iterator(); it.hasNext();) {
+			Entry entry = it.next();
+			if (entry.buffer == buffer && entry.generation < generation) {
+				dropped |= 1L << entry.row;
+				it.remove();
+				size--;
+				supersededRows++;
+			}
+		}
+		for (Iterator<Entry> it = lanes.get(DISPLAY).iterator(); it.hasNext();) {
+			Entry entry = it.next();
+			if (entry.buffer == buffer && entry.generation < generation) {
+				it.remove();
+				size--;
+			}
+		}
+		return dropped;
+	}
+
+	/*
+	 * Queues an LCD row frame for the given buffer and row pair, as part of
+	 * the screen last started with supersede().
+	 */
+	public synchronized void addRow(byte[] frame, int buffer, int row) {
+		Entry entry = new Entry(frame, sequence++);
+		entry.buffer = buffer;
+		entry.row = row;
+		entry.generation = generations[buffer];
+		enqueue(entry, false);
+	}
+
+	/*
+	 * Puts the frame at the very front of its lane.
+	 */
+	public synchronized void pushhead(byte[] frame) {
+		enqueue(new Entry(frame, sequence++), true);
+	}
+
+	public synchronized byte[] take() throws InterruptedException {
+		while (size == 0)
+			wait();
+		return next();
+	}
+
+	public synchronized byte[] poll() {
+		if (size == 0)
+			return null;
+		return next();
+	}
+
+	private byte[] next() {
+		LinkedList<Entry> control = lanes.get(CONTROL);
+		LinkedList<Entry> display = lanes.get(DISPLAY);
+		LinkedList<Entry> bulk = lanes.get(BULK);
+
+		Entry entry = null;
+		if (!control.isEmpty() && (controlRun < CONTROL_WEIGHT || control.size() == size)) {
+			entry = control.removeFirst();
+			controlRun++;
+		} else {
+			controlRun = 0;
+			if (!display.isEmpty()
+					&& (bulk.isEmpty() || bulk.getFirst().sequence > display.getFirst().sequence))
+				entry = display.removeFirst();
+			else if (!bulk.isEmpty())
+				entry = bulk.removeFirst();
+			else
+				entry = control.removeFirst();
+		}
+
+		size--;
+		lastEnqueuedAt = entry.enqueuedAt;
+		return entry.frame;
+	}
+
+	/*
+	 * When the frame last returned by take() or poll() was queued, in
+	 * System.nanoTime() terms.
+	 */
+	public synchronized long getLastEnqueuedAt() {
+		return lastEnqueuedAt;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	public synchronized void clear() {
+		for (LinkedList<Entry> lane : lanes)
+			lane.clear();
+		size = 0;
+		controlRun = 0;
+	}
+
+	/*
+	 * Drops queued screen contents - buffer writes and the UpdateDisplays
+	 * that would show them - keeping control frames, queries and the mode
+	 * and button configuration the watch still needs.
+	 */
+	public synchronized void clearScreens() {
+		size -= lanes.get(BULK).size();
+		lanes.get(BULK).clear();
+
+		for (Iterator<Entry> it = lanes.get(DISPLAY).iterator(); it.hasNext();) {
+			if (it.next().frame[2] == eMessageType.UpdateDisplay.msg) {
+				it.remove();
+				size--;
+			}
+		}
+	}
+
+	/*
+	 * Number of LCD row frames that were dropped for a newer screen
+	 * before reaching the watch.
+	 */
+	public synchronized int getSupersededRows() {
+		return supersededRows;
+	}
+}
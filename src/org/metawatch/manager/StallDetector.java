@@ -0,0 +1,160 @@
+package org.metawatch.manager;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.metawatch.manager.MetaWatchService.Preferences;
+
+import android.util.Log;
+
+/*
+ * Watches the protocol sender's writes and reacts when one takes longer
+ * than Preferences.stallBudget.  The longer a write stays blocked, the
+ * harder it reacts:
+ *
+ *  REPACE     after 1x the budget - slow the link down
+ *  RESYNC     after 2x - drop queued screens and resend them whole
+ *  RECONNECT  after 4x - close the connection so the service reconnects
+ *
+ * Every stage reached is recorded as an Event, with how long the write had
+ * been blocked and how much was waiting to be sent.
+ */
+class StallDetector {
+
+	static final int REPACE = 1;
+	static final int RESYNC = 2;
+	static final int RECONNECT = 3;
+
+	private static final int MAX_EVENTS = 32;
+
+	/* How often to check the sender is still alive when nothing is being written */
+	private static final long IDLE_CHECK_INTERVAL = 5000; // ms
+
+	static class Event {
+		final long timestamp;
+		final int stage;
+		final int queueDepth;
+		final long writeMillis;
+
+		Event(int stage, int queueDepth, long writeMillis) {
+			this.timestamp = System.currentTimeMillis();
+			this.stage = stage;
+			this.queueDepth = queueDepth;
+			this.writeMillis = writeMillis;
+		}
+
+		@Override
+		public String toString() {
+			final String[] names = { "", "re-pace", "resync", "reconnect" };
+			return names[stage] + " after " + writeMillis + "ms in write, " + queueDepth + " frames queued";
+		}
+	}
+
+	interface Listener {
+		/* Called on the detector thread for each stage reached */
+		void onStall(int stage);
+		/* Called when nothing is being written, to check on the sender */
+		void onIdle();
+	}
+
+	private final SendQueue queue;
+	private final Listener listener;
+
+	/* When the current write started, 0 if not writing */
+	private long writeStart = 0;
+	private int stage = 0;
+
+	private final LinkedList<Event> events = new LinkedList<Event>();
+	private int totalEvents = 0;
+
+	private Thread thread = null;
+	private volatile boolean running = false;
+
+	StallDetector(SendQueue queue, Listener listener) {
+		this.queue = queue;
+		this.listener = listener;
+	}
+
+	synchronized void writeStarted() {
+		writeStart = System.currentTimeMillis();
+		stage = 0;
+		notify();
+	}
+
+	synchronized void writeFinished() {
+		writeStart = 0;
+	}
+
+	synchronized void start() {
+		if (running)
+			return;
+		running = true;
+		writeStart = 0;
+		thread = new Thread(checker, "ProtocolStallDetector");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	synchronized void stop() {
+		if (!running)
+			return;
+		running = false;
+		thread.interrupt();
+		thread = null;
+	}
+
+	synchronized List<Event> getEvents() {
+		return new ArrayList<Event>(events);
+	}
+
+	synchronized int getTotalEvents() {
+		return totalEvents;
+	}
+
+	private Runnable checker = new Runnable() {
+		public void run() {
+			while (running) {
+				int reached = 0;
+				try {
+					synchronized (StallDetector.this) {
+						if (writeStart == 0) {
+							StallDetector.this.wait(IDLE_CHECK_INTERVAL);
+							if (writeStart == 0 && running) {
+								// Checked outside the lock below
+								reached = -1;
+							}
+						} else if (stage < RECONNECT) {
+							final long now = System.currentTimeMillis();
+							final long deadline = writeStart + ((long) Preferences.stallBudget << stage);
+							if (now < deadline) {
+								StallDetector.this.wait(deadline - now);
+								continue;
+							}
+							stage++;
+							reached = stage;
+
+							Event event = new Event(stage, queue.size(), now - writeStart);
+							if (events.size() == MAX_EVENTS)
+								events.removeFirst();
+							events.addLast(event);
+							totalEvents++;
+							if (Preferences.logging) Log.w(MetaWatch.TAG, "Protocol stalled: " + event);
+						} else {
+							// Already gave up on this write, wait for the next one
+							StallDetector.this.wait(IDLE_CHECK_INTERVAL);
+							continue;
+						}
+					}
+				} catch (InterruptedException e) {
+					break;
+				}
+
+				if (reached > 0)
+					listener.onStall(reached);
+				else if (reached < 0)
+					listener.onIdle();
+			}
+		}
+	};
+}
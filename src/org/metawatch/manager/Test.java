@@ -35,6 +35,7 @@ package org.metawatch.manager;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Random;
+import java.util.concurrent.Callable;
 
 import org.metawatch.communityedition.R;
 import org.metawatch.manager.MetaWatchService.Preferences;
@@ -50,6 +51,7 @@ import android.preference.Preference.OnPreferenceClickListener;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceScreen;
 import android.util.Log;
+import android.widget.Toast;
 
 public class Test extends PreferenceActivity {
 	
@@ -269,6 +271,14 @@ public class Test extends PreferenceActivity {
 			}
 		});
 
+		preferenceScreen.findPreference("reset_metrics").setOnPreferenceClickListener(new OnPreferenceClickListener() {	
+			public boolean onPreferenceClick(Preference arg0) {
+				LinkMetrics.reset();
+				Toast.makeText(context, "Link metrics reset", Toast.LENGTH_SHORT).show();
+				return true;
+			}
+		});
+
 		preferenceScreen.findPreference("set_rtc").setOnPreferenceClickListener(new OnPreferenceClickListener() {	
 			public boolean onPreferenceClick(Preference arg0) {
 				// Query the time on the watch, which will trigger timing
@@ -444,6 +454,61 @@ public class Test extends PreferenceActivity {
 			}
 		});
 		
+		preferenceScreen.findPreference("benchmark_crc").setOnPreferenceClickListener(new OnPreferenceClickListener() {
+			public boolean onPreferenceClick(Preference preference) {
+				runBenchmark(new Callable<String>() {
+					public String call() {
+						return Benchmark.crc();
+					}
+				});
+				return true;
+			}
+		});
+		
+		preferenceScreen.findPreference("benchmark_pixel_packing").setOnPreferenceClickListener(new OnPreferenceClickListener() {
+			public boolean onPreferenceClick(Preference preference) {
+				runBenchmark(new Callable<String>() {
+					public String call() {
+						return Benchmark.pixelPacking();
+					}
+				});
+				return true;
+			}
+		});
+		
+		preferenceScreen.findPreference("benchmark_dithering").setOnPreferenceClickListener(new OnPreferenceClickListener() {
+			public boolean onPreferenceClick(Preference preference) {
+				runBenchmark(new Callable<String>() {
+					public String call() {
+						return Benchmark.dithering();
+					}
+				});
+				return true;
+			}
+		});
+		
+		preferenceScreen.findPreference("benchmark_theme_lookup").setOnPreferenceClickListener(new OnPreferenceClickListener() {
+			public boolean onPreferenceClick(Preference preference) {
+				runBenchmark(new Callable<String>() {
+					public String call() {
+						return Benchmark.themeLookup(context);
+					}
+				});
+				return true;
+			}
+		});
+
+		preferenceScreen.findPreference("benchmark_text_layout").setOnPreferenceClickListener(new OnPreferenceClickListener() {
+			public boolean onPreferenceClick(Preference preference) {
+				runBenchmark(new Callable<String>() {
+					public String call() {
+						return Benchmark.textLayout(context);
+					}
+				});
+				return true;
+			}
+		});
+		
 		super.onStart();
 	}
 	
@@ -455,6 +520,27 @@ public class Test extends PreferenceActivity {
 		thread.start();
 	}
 	
+	void runBenchmark(final Callable<String> benchmark) {
+		Toast.makeText(context, "Running benchmark...", Toast.LENGTH_SHORT).show();
+		Thread thread = new Thread("Benchmark") {
+			public void run() {
+				String result;
+				try {
+					result = benchmark.call();
+				} catch (Exception e) {
+					result = "Benchmark failed: " + e.toString();
+				}
+				final String text = result;
+				runOnUiThread(new Runnable() {
+					public void run() {
+						Toast.makeText(context, text, Toast.LENGTH_LONG).show();
+					}
+				});
+			}
+		};
+		thread.start();
+	}
+	
 	void stopSmsTestLoop() {
 		if (MetaWatchService.testSmsLoop != null)
 			MetaWatchService.testSmsLoop.stop();
@@ -0,0 +1,304 @@
+package org.metawatch.manager;
+
+import org.metawatch.manager.FontCache.FontInfo;
+import org.metawatch.manager.GlyphAtlas.Glyph;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.text.Layout;
+import android.text.TextUtils.TruncateAt;
+
+/*
+ * Text wrapped to a width and drawn from a GlyphAtlas, for the places that
+ * used a StaticLayout just to put words on the watch.  Lines break at
+ * newlines and spaces, or inside a word too long for a line, and the last
+ * line can be cut short with an ellipsis.
+ *
+ * Layouts don't change once built.  They draw straight into packed 1 bit
+ * buffers, or onto a Canvas through a bitmap made the first time.
+ */
+public class TextLayout {
+
+	private static final String ELLIPSIS = "\u2026";
+	private static final String ELLIPSIS_FALLBACK = "...";
+
+	private final GlyphAtlas atlas;
+	private final String text;
+	private final int width;
+	private final Layout.Alignment alignment;
+	private final int color;
+	private final int lineHeight;
+
+	private int lineCount = 0;
+	private int[] lineStart = new int[4];
+	private int[] lineEnd = new int[4];
+	private int[] lineWidth = new int[4];
+	/* Shown after the last line when the text was cut short */
+	private String ellipsis = null;
+
+	private Bitmap rendered = null;
+
+	public TextLayout(GlyphAtlas atlas, CharSequence text, int width, Layout.Alignment alignment, float spacingMult, int color) {
+		this(atlas, text, width, alignment, spacingMult, color, Integer.MAX_VALUE);
+	}
+
+	/* Keeps at most maxLines lines, ellipsizing the last if text is left over */
+	public TextLayout(GlyphAtlas atlas, CharSequence text, int width, Layout.Alignment alignment, float spacingMult, int color, int maxLines) {
+		this.atlas = atlas;
+		this.text = text.toString();
+		this.width = width;
+		this.alignment = alignment;
+		this.color = color;
+		this.lineHeight = Math.round((atlas.ascent + atlas.descent) * spacingMult);
+
+		breakLines(maxLines);
+	}
+
+	/* Builds the text in the Large, Medium or Small font, the first it fits height in */
+	public static TextLayout fit(Context context, CharSequence text, int width, int height, Layout.Alignment alignment, int color) {
+		final FontCache fonts = FontCache.instance(context);
+		final FontInfo[] sizes = { fonts.Large, fonts.Medium, fonts.Small };
+		TextLayout layout = null;
+		for (FontInfo font : sizes) {
+			layout = new TextLayout(GlyphAtlas.get(font), text, width, alignment, 1.0f, color);
+			if (layout.getHeight() <= height)
+				break;
+		}
+		return layout;
+	}
+
+	/* Like TextUtils.ellipsize, measuring with the atlas */
+	public static String ellipsize(GlyphAtlas atlas, String text, int width, TruncateAt where) {
+		final int limit = width * GlyphAtlas.SUBPIXELS;
+		if (atlas.measure(text, 0, text.length()) <= limit)
+			return text;
+
+		final String ellipsis = ellipsisFor(atlas);
+		final int available = limit - atlas.measure(ellipsis, 0, ellipsis.length());
+		if (where == TruncateAt.START) {
+			int start = text.length();
+			while (start > 0 && atlas.measure(text, start - 1, text.length()) <= available)
+				start--;
+			return ellipsis + text.substring(start);
+		} else {
+			int end = 0;
+			while (end < text.length() && atlas.measure(text, 0, end + 1) <= available)
+				end++;
+			return text.substring(0, end) + ellipsis;
+		}
+	}
+
+	private static String ellipsisFor(GlyphAtlas atlas) {
+		return atlas.glyph(ELLIPSIS.charAt(0)).hasInk() ? ELLIPSIS : ELLIPSIS_FALLBACK;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return lineCount * lineHeight;
+	}
+
+	public int getLineCount() {
+		return lineCount;
+	}
+
+	/* Pixels between the top of the layout and the first baseline */
+	public int getAscent() {
+		return atlas.ascent;
+	}
+
+	/* Whether the text shows up black on the watch, i.e. as set bits */
+	public boolean isDark() {
+		return (Color.red(color) * 77 + Color.green(color) * 151 + Color.blue(color) * 28) >> 8 < 128;
+	}
+
+	private void breakLines(int maxLines) {
+		final int limit = width * GlyphAtlas.SUBPIXELS;
+		final int length = text.length();
+
+		int paragraph = 0;
+		while (true) {
+			int paragraphEnd = text.indexOf('\n', paragraph);
+			if (paragraphEnd < 0)
+				paragraphEnd = length;
+
+			int start = paragraph;
+			do {
+				int end = start;
+				int lastSpace = -1;
+				int used = 0;
+				char previous = 0;
+				while (end < paragraphEnd) {
+					final char c = text.charAt(end);
+					final int advance = atlas.glyph(c).advance + (end > start ? atlas.kerning(previous, c) : 0);
+					// Spaces may hang past the edge, anything else starts a new line
+					if (c == ' ')
+						lastSpace = end;
+					else if (used + advance > limit && end > start)
+						break;
+					used += advance;
+					previous = c;
+					end++;
+				}
+
+				int next = end;
+				if (end < paragraphEnd && lastSpace > start) {
+					end = lastSpace;
+					next = lastSpace + 1;
+				}
+
+				if (lineCount == maxLines) {
+					ellipsizeLast(limit);
+					return;
+				}
+				addLine(start, end);
+
+				while (next < paragraphEnd && text.charAt(next) == ' ')
+					next++;
+				start = next;
+			} while (start < paragraphEnd);
+
+			if (paragraphEnd == length)
+				break;
+			paragraph = paragraphEnd + 1;
+		}
+	}
+
+	private void addLine(int start, int end) {
+		while (end > start && text.charAt(end - 1) == ' ')
+			end--;
+
+		if (lineCount == lineStart.length) {
+			lineStart = grow(lineStart);
+			lineEnd = grow(lineEnd);
+			lineWidth = grow(lineWidth);
+		}
+		lineStart[lineCount] = start;
+		lineEnd[lineCount] = end;
+		lineWidth[lineCount] = atlas.measure(text, start, end);
+		lineCount++;
+	}
+
+	private static int[] grow(int[] array) {
+		int[] grown = new int[array.length * 2];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	/* Shortens the last line so it and the ellipsis fit */
+	private void ellipsizeLast(int limit) {
+		if (lineCount == 0)
+			return;
+		ellipsis = ellipsisFor(atlas);
+		final int ellipsisWidth = atlas.measure(ellipsis, 0, ellipsis.length());
+		final int last = lineCount - 1;
+		int end = lineEnd[last];
+		while (end > lineStart[last] && atlas.measure(text, lineStart[last], end) + ellipsisWidth > limit)
+			end--;
+		lineEnd[last] = end;
+		lineWidth[last] = atlas.measure(text, lineStart[last], end) + ellipsisWidth;
+	}
+
+	/*
+	 * Sets the ink of the text in a packed 1 bit buffer (leftmost pixel in
+	 * the least significant bit, like a MonoFrame) with its top left at x, y.
+	 * Anything outside the buffer is clipped.
+	 */
+	public void draw(byte[] buffer, int bytesPerRow, int rows, int x, int y) {
+		draw(buffer, bytesPerRow, 0, rows, x, y);
+	}
+
+	/* As above, only touching rows firstRow up to endRow */
+	public void draw(byte[] buffer, int bytesPerRow, int firstRow, int endRow, int x, int y) {
+		for (int line = 0; line < lineCount; line++) {
+			final int baseline = y + line * lineHeight + atlas.ascent;
+			if (baseline - atlas.ascent >= endRow || baseline + atlas.descent < firstRow)
+				continue;
+
+			final int slack = width * GlyphAtlas.SUBPIXELS - lineWidth[line];
+			int pen = x * GlyphAtlas.SUBPIXELS;
+			if (alignment == Layout.Alignment.ALIGN_CENTER)
+				pen += slack / 2;
+			else if (alignment == Layout.Alignment.ALIGN_OPPOSITE)
+				pen += slack;
+
+			pen = drawRun(text, lineStart[line], lineEnd[line], pen, baseline, buffer, bytesPerRow, firstRow, endRow);
+			if (ellipsis != null && line == lineCount - 1)
+				drawRun(ellipsis, 0, ellipsis.length(), pen, baseline, buffer, bytesPerRow, firstRow, endRow);
+		}
+	}
+
+	private int drawRun(String run, int start, int end, int pen, int baseline, byte[] buffer, int bytesPerRow, int firstRow, int endRow) {
+		char previous = 0;
+		for (int i = start; i < end; i++) {
+			final char c = run.charAt(i);
+			if (i > start)
+				pen += atlas.kerning(previous, c);
+			final Glyph glyph = atlas.glyph(c);
+			final int originX = (pen + GlyphAtlas.SUBPIXELS / 2) / GlyphAtlas.SUBPIXELS;
+			blit(glyph, originX + glyph.left, baseline + glyph.top, buffer, bytesPerRow, firstRow, endRow);
+			pen += glyph.advance;
+			previous = c;
+		}
+		return pen;
+	}
+
+	private static void blit(Glyph glyph, int x, int y, byte[] buffer, int bytesPerRow, int firstRow, int endRow) {
+		// x >> 3 rounds towards minus infinity, so this works left of the buffer too
+		final int firstByte = x >> 3;
+		final int shift = x & 7;
+		for (int r = 0; r < glyph.height; r++) {
+			final int row = y + r;
+			if (row < firstRow || row >= endRow)
+				continue;
+			final int base = row * bytesPerRow;
+			for (int b = 0; b < glyph.bytesPerRow; b++) {
+				final int bits = (glyph.rows[r * glyph.bytesPerRow + b] & 0xFF) << shift;
+				if (bits == 0)
+					continue;
+				final int dest = firstByte + b;
+				if (dest >= 0 && dest < bytesPerRow)
+					buffer[base + dest] |= (byte) bits;
+				if (dest + 1 >= 0 && dest + 1 < bytesPerRow)
+					buffer[base + dest + 1] |= (byte) (bits >> 8);
+			}
+		}
+	}
+
+	/*
+	 * Draws the text in its colour with its top left at the canvas origin.
+	 * When the result ends up packed anyway, MonoFrame.fromBitmap can draw
+	 * the layout straight into the frame instead.
+	 */
+	public void draw(Canvas canvas) {
+		final Bitmap bitmap = getBitmap();
+		if (bitmap != null)
+			canvas.drawBitmap(bitmap, 0, 0, null);
+	}
+
+	private synchronized Bitmap getBitmap() {
+		if (rendered == null) {
+			final int height = getHeight();
+			if (width <= 0 || height <= 0)
+				return null;
+
+			final int bytesPerRow = (width + 7) / 8;
+			byte[] packed = new byte[bytesPerRow * height];
+			draw(packed, bytesPerRow, height, 0, 0);
+
+			int[] pixels = new int[width * height];
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					if ((packed[y * bytesPerRow + (x >> 3)] & (1 << (x & 7))) != 0)
+						pixels[y * width + x] = color;
+				}
+			}
+			rendered = Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+		}
+		return rendered;
+	}
+}
@@ -0,0 +1,143 @@
+package org.metawatch.manager;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.text.Layout;
+
+/*
+ * The most recently used TextLayouts, so that drawing the same label at the
+ * same width again - as widgets do on every idle refresh - reuses its line
+ * breaks and the bitmap it already rendered.
+ *
+ * Layouts are looked up by everything that affects them: text, font, width,
+ * alignment, line spacing and colour, plus the height for fitted text.
+ */
+public class TextLayoutCache {
+
+	private static final int MAX_ENTRIES = 64;
+
+	private static final class Key {
+		final String text;
+		/* null for text fitted to a height */
+		final GlyphAtlas atlas;
+		final int width;
+		final int height;
+		final Layout.Alignment alignment;
+		final float spacingMult;
+		final int color;
+
+		Key(String text, GlyphAtlas atlas, int width, int height, Layout.Alignment alignment, float spacingMult, int color) {
+			this.text = text;
+			this.atlas = atlas;
+			this.width = width;
+			this.height = height;
+			this.alignment = alignment;
+			this.spacingMult = spacingMult;
+			this.color = color;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key other = (Key) o;
+			return atlas == other.atlas && width == other.width && height == other.height
+					&& alignment == other.alignment && spacingMult == other.spacingMult
+					&& color == other.color && text.equals(other.text);
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = text.hashCode();
+			hash = hash * 31 + (atlas == null ? 0 : atlas.hashCode());
+			hash = hash * 31 + width;
+			hash = hash * 31 + height;
+			hash = hash * 31 + (alignment == null ? 0 : alignment.hashCode());
+			hash = hash * 31 + Float.floatToIntBits(spacingMult);
+			hash = hash * 31 + color;
+			return hash;
+		}
+	}
+
+	private static final LinkedHashMap<Key, TextLayout> layouts = new LinkedHashMap<Key, TextLayout>(MAX_ENTRIES, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, TextLayout> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	private static long hits = 0;
+	private static long misses = 0;
+
+	private TextLayoutCache() {
+	}
+
+	public static TextLayout get(GlyphAtlas atlas, String text, int width, Layout.Alignment alignment, float spacingMult, int color) {
+		final Key key = new Key(text, atlas, width, 0, alignment, spacingMult, color);
+		synchronized (layouts) {
+			TextLayout layout = layouts.get(key);
+			if (layout != null) {
+				hits++;
+				return layout;
+			}
+			misses++;
+		}
+
+		// Built outside the lock, another thread may build the same one meanwhile
+		TextLayout layout = new TextLayout(atlas, text, width, alignment, spacingMult, color);
+		synchronized (layouts) {
+			layouts.put(key, layout);
+		}
+		return layout;
+	}
+
+	/* As TextLayout.fit */
+	public static TextLayout fit(Context context, String text, int width, int height, Layout.Alignment alignment, int color) {
+		final Key key = new Key(text, null, width, height, alignment, 1.0f, color);
+		synchronized (layouts) {
+			TextLayout layout = layouts.get(key);
+			if (layout != null) {
+				hits++;
+				return layout;
+			}
+			misses++;
+		}
+
+		TextLayout layout = TextLayout.fit(context, text, width, height, alignment, color);
+		synchronized (layouts) {
+			layouts.put(key, layout);
+		}
+		return layout;
+	}
+
+	public static void resetStats() {
+		synchronized (layouts) {
+			hits = 0;
+			misses = 0;
+		}
+	}
+
+	public static long getHits() {
+		synchronized (layouts) {
+			return hits;
+		}
+	}
+
+	public static long getMisses() {
+		synchronized (layouts) {
+			return misses;
+		}
+	}
+
+	/* Percentage of lookups that found a layout, 0 before any */
+	public static float getHitRate() {
+		synchronized (layouts) {
+			final long lookups = hits + misses;
+			return lookups == 0 ? 0 : hits * 100.0f / lookups;
+		}
+	}
+}
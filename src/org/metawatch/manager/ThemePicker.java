@@ -157,7 +157,9 @@ public class ThemePicker extends ListActivity {
 			for (File file : themeFiles) {
 				String themeName = file.getName().replace(".zip", "");		
 				if (Preferences.logging) Log.d(MetaWatch.TAG, "Found theme "+themeName);
-				addTheme(BitmapCache.loadTheme(this, themeName));
+				BitmapCache.ThemeData themeData = BitmapCache.loadTheme(this, themeName);
+				addTheme(themeData);
+				themeData.close();
 			}
         }
         
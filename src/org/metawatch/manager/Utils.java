@@ -77,7 +77,6 @@ import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
@@ -488,53 +487,7 @@ public class Utils {
 	}
 	
 	public static Bitmap ditherTo1bit(Bitmap input, boolean inverted) {
-	
-		Bitmap output = input.copy(Config.RGB_565, true);
-		
-		double[][] pixels = new double[input.getWidth()][input.getHeight()];
-		
-		final int w=input.getWidth();
-		final int h=input.getHeight();
-		
-		for(int y=0; y<h; ++y) {
-		   for(int x=0; x<w; ++x) {
-			   int col = input.getPixel(x, y);
-			   
-			   double R = ((col >> 16) & 0xff)/256.0; 
-		       double G = ((col >> 8) & 0xff)/256.0;
-		       double B = (col & 0xff)/256.0;
-		        
-		       pixels[x][y] = ( (0.3*R) + (0.59*G) + (0.11*B) );		        
-		   }
-		}
-		
-		for(int y=0; y<h; ++y) {
-			   for(int x=0; x<w; ++x) {
-				   double oldpixel = pixels[x][y];
-				   double newpixel = oldpixel<0.5 ? 0 : 1;
-				   	   
-				   pixels[x][y] = newpixel;
-				   double quant_error = oldpixel - newpixel;
-				   if(x<w-1)
-					   pixels[x+1][y] += 7.0/16.0 * quant_error;
-				   if(x>0 && y<h-1)
-					   pixels[x-1][y+1] += 3.0/16.0 * quant_error;
-				   if(y<h-1)
-					   pixels[x][y+1] += 5.0/16.0 * quant_error;
-				   if(x<w-1 && y<h-1)
-					   pixels[x+1][y+1] += 1.0/16.0 * quant_error;
-			
-				   int col = 0;
-				   if (inverted)
-					   col = newpixel > 0.5 ? 0xff000000 : 0xffffffff;   
-				   else
-					   col = newpixel > 0.5 ? 0xffffffff : 0xff000000;
-				   output.setPixel(x, y, col);
-			   
-			   }
-		}
-
-		return output;
+		return Dither.toBitmap(input, Dither.Method.FLOYD_STEINBERG, inverted);
 	}
 	
 	public static Bitmap resize(Bitmap bm, int newHeight, int newWidth) {
@@ -964,25 +917,14 @@ public class Utils {
     	return builder.toString();
     }
     
-    public static StaticLayout buildText(Context context, String text, int width, Layout.Alignment alignment, int textCol,  FontSize size ) {
-		TextPaint tp = new TextPaint();
-		tp.setColor(textCol);
+    public static TextLayout buildText(Context context, String text, int width, Layout.Alignment alignment, int textCol,  FontSize size ) {
 		FontInfo info = FontCache.instance(context).Get(size);
-		tp.setTextSize(info.size);
-		tp.setTypeface(info.face);
-    	
-    	return new StaticLayout(text, tp, width, alignment, 1.0f, 0, false);
+    	return TextLayoutCache.get(GlyphAtlas.get(info), text, width, alignment, 1.0f, textCol);
     }
     
     public static void autoText(Context context, Canvas canvas, String text, int tX, int tY, int width, int height, Layout.Alignment alignment, int textCol) {
     	
-    	StaticLayout layout = buildText(context, text, width, alignment, textCol, FontSize.LARGE);
-    	if(layout.getHeight()>height) {
-    		layout = buildText(context, text, width, alignment, textCol, FontSize.MEDIUM);
-    	}
-    	if(layout.getHeight()>height) {
-    		layout = buildText(context, text, width, alignment, textCol, FontSize.SMALL);
-    	}
+    	TextLayout layout = TextLayoutCache.fit(context, text, width, height, alignment, textCol);
     	
     	int textHeight = layout.getHeight();
 		int textY = tY+(height/2) - (textHeight/2);
@@ -0,0 +1,304 @@
+package org.metawatch.manager;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.metawatch.manager.MetaWatchService.Preferences;
+
+import android.util.Log;
+
+/*
+ * Matches responses from a watch to the queries that asked for them.  Each
+ * WatchSession has its own, so answers are only matched to queries sent to
+ * the same watch.
+ *
+ * Each query is a frame with no payload (GetDeviceType, GetRealTimeClock,
+ * ReadBatteryVoltageMsg...) answered by a single response message type.
+ * Requests waiting for the same response type are answered in order.  The
+ * round trip is timed from when the query is actually written to the watch,
+ * not from when it was queued.
+ *
+ * A request has a deadline from when it was queued, whether or not it has
+ * been sent yet, so one whose frame was dropped from the send queue still
+ * times out.  At the deadline it is queued again until it runs out of
+ * retries.  Once a request is answered, the answers still to come for its
+ * other sends are swallowed rather than taken for unsolicited responses.
+ *
+ * Unsolicited responses are left for MetaWatchService's message handlers.
+ */
+public class WatchQueries {
+
+	public interface Callback {
+		/* Called on the reading thread with the response frame */
+		void onResponse(WatchSession session, byte[] bytes, int length, long roundTrip);
+		/* Called on the timeout thread once all retries have been used */
+		void onTimeout();
+	}
+
+	private static class Request {
+		final byte[] frame;
+		final boolean urgent;
+		final Callback callback;
+		final long timeout;
+		int retries;
+		/* Times the frame has been queued and written */
+		int attempts = 1;
+		int sends = 0;
+		long sentAt = 0;
+		long deadline;
+
+		Request(byte[] frame, boolean urgent, Callback callback, long timeout, int retries) {
+			this.frame = frame;
+			this.urgent = urgent;
+			this.callback = callback;
+			this.timeout = timeout;
+			this.retries = retries;
+			this.deadline = System.currentTimeMillis() + timeout;
+		}
+	}
+
+	private final WatchSession session;
+
+	/* Pending requests, indexed by the message type of their response */
+	private final List<LinkedList<Request>> pending = new ArrayList<LinkedList<Request>>(256);
+
+	private volatile int pendingCount = 0;
+
+	/* Answers still expected for sends of requests already answered, and until when */
+	private final int[] stale = new int[256];
+	private final long[] staleUntil = new long[256];
+
+	/* Round trip statistics, indexed by response type */
+	private final long[] lastRoundTrip = new long[256];
+	private final long[] totalRoundTrip = new long[256];
+	private final int[] responses = new int[256];
+	private final int[] timeouts = new int[256];
+
+	private Thread timeoutThread = null;
+
+	WatchQueries(WatchSession session) {
+		this.session = session;
+		for (int i = 0; i < 256; i++)
+			pending.add(null);
+	}
+
+	/*
+	 * Queues a query frame of the given type for this watch.  Urgent queries
+	 * go to the head of the send queue.
+	 */
+	public void request(eMessageType query, eMessageType response, boolean urgent,
+			Callback callback, long timeout, int retries) {
+		if (MetaWatchService.fakeWatch)
+			return;
+
+		byte[] bytes = new byte[4];
+
+		bytes[0] = eMessageType.start;
+		bytes[1] = (byte) (bytes.length+2); // length
+		bytes[2] = query.msg;
+		bytes[3] = 0;
+
+		Request request = new Request(bytes, urgent, callback, timeout, retries);
+		synchronized (this) {
+			final int type = response.msg & 0xFF;
+			if (pending.get(type) == null)
+				pending.set(type, new LinkedList<Request>());
+			pending.get(type).addLast(request);
+			pendingCount++;
+			startTimeoutThread();
+			notify();
+		}
+
+		send(request);
+	}
+
+	private void send(Request request) {
+		if (request.urgent)
+			session.pushhead(request.frame);
+		else
+			session.enqueue(request.frame);
+	}
+
+	boolean hasPending() {
+		return pendingCount > 0;
+	}
+
+	/*
+	 * Called by the protocol sender just before a frame is written, to
+	 * start the clock on the request it belongs to.
+	 */
+	synchronized void sent(byte[] frame) {
+		for (LinkedList<Request> requests : pending) {
+			if (requests == null)
+				continue;
+			for (Request request : requests) {
+				if (request.frame == frame) {
+					request.sentAt = System.currentTimeMillis();
+					request.sends++;
+					return;
+				}
+			}
+		}
+	}
+
+	/*
+	 * Called for every frame received from the watch.  Returns true if the
+	 * frame answered a request, or was a late answer to one already
+	 * answered, so needs no further handling.
+	 */
+	boolean received(byte[] bytes, int length) {
+		Request request = null;
+		long roundTrip = 0;
+
+		synchronized (this) {
+			final int type = bytes[2] & 0xFF;
+			final long now = System.currentTimeMillis();
+
+			if (stale[type] > 0) {
+				if (now < staleUntil[type]) {
+					stale[type]--;
+					if (Preferences.logging) Log.d(MetaWatch.TAG, "WatchQueries " + session.getAddress() + ": ignoring late response 0x"
+							+ Integer.toHexString(type));
+					return true;
+				}
+				stale[type] = 0;
+			}
+
+			LinkedList<Request> requests = pending.get(type);
+			if (requests == null)
+				return false;
+
+			for (Iterator<Request> it = requests.iterator(); it.hasNext();) {
+				Request candidate = it.next();
+				if (candidate.sends > 0) {
+					it.remove();
+					pendingCount--;
+					request = candidate;
+					break;
+				}
+			}
+			if (request == null)
+				return false;
+
+			// Every other time it was queued may still bring an answer
+			if (request.attempts > 1) {
+				stale[type] += request.attempts - 1;
+				staleUntil[type] = now + request.timeout;
+			}
+
+			roundTrip = now - request.sentAt;
+			lastRoundTrip[type] = roundTrip;
+			totalRoundTrip[type] += roundTrip;
+			responses[type]++;
+		}
+
+		if (Preferences.logging) Log.d(MetaWatch.TAG, "WatchQueries " + session.getAddress() + ": response 0x"
+				+ Integer.toHexString(bytes[2] & 0xFF) + " after " + roundTrip + "ms");
+
+		request.callback.onResponse(session, bytes, length, roundTrip);
+		return true;
+	}
+
+	/*
+	 * Drops all pending requests, e.g. when the connection goes away.
+	 */
+	synchronized void clear() {
+		for (int i = 0; i < pending.size(); i++) {
+			pending.set(i, null);
+			stale[i] = 0;
+		}
+		pendingCount = 0;
+		notify();
+	}
+
+	public synchronized long getLastRoundTrip(eMessageType response) {
+		return lastRoundTrip[response.msg & 0xFF];
+	}
+
+	public synchronized long getAverageRoundTrip(eMessageType response) {
+		final int type = response.msg & 0xFF;
+		return responses[type] == 0 ? 0 : totalRoundTrip[type] / responses[type];
+	}
+
+	public synchronized int getTimeouts(eMessageType response) {
+		return timeouts[response.msg & 0xFF];
+	}
+
+	private void startTimeoutThread() {
+		if (timeoutThread != null)
+			return;
+		timeoutThread = new Thread(timeoutChecker, "WatchQueries " + session.getAddress());
+		timeoutThread.setDaemon(true);
+		timeoutThread.start();
+	}
+
+	/*
+	 * Sleeps until the next deadline, then retries or gives up on every
+	 * request that has expired.  Exits once nothing is pending.
+	 */
+	private final Runnable timeoutChecker = new Runnable() {
+		public void run() {
+			ArrayList<Request> expired = new ArrayList<Request>();
+			ArrayList<Request> retry = new ArrayList<Request>();
+
+			while (true) {
+				synchronized (WatchQueries.this) {
+					if (pendingCount == 0) {
+						timeoutThread = null;
+						return;
+					}
+
+					long now = System.currentTimeMillis();
+					long nextDeadline = Long.MAX_VALUE;
+					for (int type = 0; type < pending.size(); type++) {
+						LinkedList<Request> requests = pending.get(type);
+						if (requests == null)
+							continue;
+						for (Iterator<Request> it = requests.iterator(); it.hasNext();) {
+							Request request = it.next();
+							if (request.deadline > now) {
+								nextDeadline = Math.min(nextDeadline, request.deadline);
+							} else if (request.retries > 0) {
+								request.retries--;
+								request.attempts++;
+								request.deadline = now + request.timeout;
+								nextDeadline = Math.min(nextDeadline, request.deadline);
+								retry.add(request);
+							} else {
+								it.remove();
+								pendingCount--;
+								timeouts[type]++;
+								expired.add(request);
+							}
+						}
+					}
+
+					if (expired.isEmpty() && retry.isEmpty()) {
+						try {
+							WatchQueries.this.wait(nextDeadline - now);
+						} catch (InterruptedException e) {
+							timeoutThread = null;
+							return;
+						}
+						continue;
+					}
+				}
+
+				for (Request request : retry) {
+					if (Preferences.logging) Log.d(MetaWatch.TAG, "WatchQueries " + session.getAddress() + ": retrying query 0x"
+							+ Integer.toHexString(request.frame[2] & 0xFF));
+					send(request);
+				}
+				for (Request request : expired) {
+					if (Preferences.logging) Log.d(MetaWatch.TAG, "WatchQueries " + session.getAddress() + ": query 0x"
+							+ Integer.toHexString(request.frame[2] & 0xFF) + " timed out");
+					request.callback.onTimeout();
+				}
+				retry.clear();
+				expired.clear();
+			}
+		}
+	};
+}
@@ -0,0 +1,632 @@
+package org.metawatch.manager;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.metawatch.manager.MetaWatchService.Preferences;
+import org.metawatch.manager.MetaWatchService.WatchGen;
+import org.metawatch.manager.MetaWatchService.WatchType;
+import org.metawatch.manager.transport.WatchTransport;
+
+import android.content.Context;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/*
+ * One connection to one watch: its transport, send queue and sender thread,
+ * the last frame sent to each of its LCD buffers, and what kind of watch it
+ * turned out to be.
+ *
+ * Preferences.watchMacAddress may list several comma separated addresses.
+ * The first is the primary session, which MetaWatchService's service thread
+ * connects and reads from as before, and whose watch type decides what gets
+ * rendered.  The others are secondary sessions that read, and reconnect, on
+ * their own thread.  Their buttons don't drive the idle pages, and if they
+ * are of the other type than the primary, Idle lays out a screen for them
+ * separately.
+ *
+ * Protocol sends every frame to every connected session that can use it,
+ * unless told to address a single one, so a screen is rendered once however
+ * many watches show it; each session only diffs it against what it last
+ * sent to its own watch.
+ */
+public class WatchSession {
+
+	public static final int DISCONNECTED = 0;
+	public static final int CONNECTING = 1;
+	public static final int CONNECTED = 2;
+
+	/* How long a secondary session waits before trying to reconnect */
+	private static final long RECONNECT_DELAY = 10000; // ms
+
+	interface FrameListener {
+		/* Called on the reading thread for each frame received */
+		void onFrame(WatchSession session, byte[] bytes, int length) throws IOException;
+		/* Called on the reading thread each time a secondary session connects */
+		void onConnected(WatchSession session);
+	}
+
+	private static final CopyOnWriteArrayList<WatchSession> sessions = new CopyOnWriteArrayList<WatchSession>();
+
+	/* All open sessions, primary first */
+	static List<WatchSession> getSessions() {
+		return sessions;
+	}
+
+	static WatchSession getPrimary() {
+		for (WatchSession session : sessions) {
+			if (session.primary)
+				return session;
+		}
+		return null;
+	}
+
+	/*
+	 * Opens sessions for the given comma separated addresses: connects the
+	 * first, which the caller then reads from, and starts the others in the
+	 * background.  Returns the primary session.
+	 */
+	static WatchSession open(String addresses, FrameListener listener) throws IOException {
+		closeAll();
+
+		String[] list = addresses.split(",");
+		WatchSession primary = new WatchSession(list[0].trim(), true);
+		primary.connect();
+		sessions.add(primary);
+
+		for (int i = 1; i < list.length; i++) {
+			final String address = list[i].trim();
+			if (address.length() == 0)
+				continue;
+			WatchSession secondary = new WatchSession(address, false);
+			sessions.add(secondary);
+			secondary.startReader(listener);
+		}
+		return primary;
+	}
+
+	static void closeAll() {
+		for (WatchSession session : sessions) {
+			session.closed = true;
+			session.stopReader();
+			session.disconnect();
+		}
+		sessions.clear();
+	}
+
+	/*
+	 * The type of the connected secondary watches that differ from the
+	 * primary, or UNKNOWN if there are none.
+	 */
+	static int getOtherWatchType() {
+		final int primaryType = MetaWatchService.watchType;
+		for (WatchSession session : sessions) {
+			if (!session.primary && session.isConnected() && session.watchType != WatchType.UNKNOWN
+					&& session.watchType != primaryType)
+				return session.watchType;
+		}
+		return WatchType.UNKNOWN;
+	}
+
+	final String address;
+	final boolean primary;
+
+	volatile int connectionState = DISCONNECTED;
+	volatile int watchType = WatchType.UNKNOWN;
+	volatile int watchGen = WatchGen.UNKNOWN;
+
+	/* Queries sent to this watch waiting for their answers */
+	final WatchQueries queries = new WatchQueries(this);
+
+	/* Set by closeAll, after which the session never connects again */
+	private volatile boolean closed = false;
+
+	private volatile WatchTransport transport = null;
+	private FrameDecoder frameDecoder = null;
+
+	private final SendQueue sendQueue = new SendQueue();
+
+	/* Last frame queued for each LCD buffer, so only changed rows are sent */
+	private MonoFrame[] lcdDiffBuffer = new MonoFrame[3];
+
+	/* Largest number of bytes handed to the socket in one write */
+	private static final int MAX_BURST_BYTES = 512;
+	private static final int MAX_BURST_FRAMES = MAX_BURST_BYTES / FrameDecoder.MIN_FRAME_LENGTH;
+	private final byte[] burstBuffer = new byte[MAX_BURST_BYTES];
+	/* Frame taken off the queue that didn't fit in the previous burst */
+	private byte[] carriedFrame = null;
+	private long carriedEnqueuedAt = 0;
+	/* Length and queueing time of each frame in the current burst, for LinkMetrics */
+	private final int[] burstFrameLengths = new int[MAX_BURST_FRAMES];
+	private final long[] burstEnqueuedAt = new long[MAX_BURST_FRAMES];
+
+	/* Measured link throughput, only counting time spent sending */
+	private volatile int bytesPerSecond = 0;
+	private long throughputBytes = 0;
+	private long throughputNanos = 0;
+
+	/* Adapts the send rate to what the link can take */
+	private final LinkPacer pacer = new LinkPacer();
+	/* Details of the last burst, for the pacer */
+	private long burstWriteNanos = 0;
+	private boolean burstUpdatesDisplay = false;
+
+	private volatile boolean senderRunning = false;
+	private Thread senderThread = null;
+
+	private volatile boolean readerRunning = false;
+	private Thread readerThread = null;
+
+	/* Notices writes that block for too long, and what to do about it */
+	private final StallDetector stallDetector;
+
+	WatchSession(String address, boolean primary) {
+		this.address = address;
+		this.primary = primary;
+		this.stallDetector = new StallDetector(sendQueue, new StallDetector.Listener() {
+			public void onStall(int stage) {
+				switch (stage) {
+				case StallDetector.REPACE:
+					pacer.stalled("write stalled");
+					break;
+				case StallDetector.RESYNC:
+					// Queued screens are likely stale by now, start over
+					// with whole screens once the link recovers
+					sendQueue.clearScreens();
+					resetLCDDiffBuffer();
+					resendScreens();
+					break;
+				case StallDetector.RECONNECT:
+					WatchTransport transport = WatchSession.this.transport;
+					if (Preferences.autoRestart && transport != null) {
+						if (Preferences.logging) Log.d(MetaWatch.TAG, "Closing connection to " + WatchSession.this.address + " due to stalled write");
+						// Unblocks the write, and the session reconnects
+						transport.close();
+					}
+					break;
+				}
+			}
+
+			public void onIdle() {
+				restartSenderIfStopped();
+			}
+		});
+	}
+
+	public String getAddress() {
+		return address;
+	}
+
+	public boolean isPrimary() {
+		return primary;
+	}
+
+	public boolean isConnected() {
+		return connectionState == CONNECTED;
+	}
+
+	public int getWatchType() {
+		return watchType;
+	}
+
+	/*
+	 * Opens the transport and starts sending.  Throws if the watch can't be
+	 * reached, or the session was closed while connecting.
+	 */
+	void connect() throws IOException {
+		connectionState = CONNECTING;
+		WatchTransport newTransport = MetaWatchService.createTransport(address);
+		if (Preferences.logging) Log.d(MetaWatch.TAG, "Connecting to " + address + " via " + newTransport.getName());
+		try {
+			newTransport.connect();
+		} catch (IOException e) {
+			connectionState = DISCONNECTED;
+			throw e;
+		}
+
+		// closeAll sets closed before disconnecting under the same lock, so
+		// either it closes this transport or it's closed here
+		synchronized (this) {
+			if (closed) {
+				newTransport.close();
+				connectionState = DISCONNECTED;
+				throw new IOException("Session to " + address + " closed while connecting");
+			}
+			transport = newTransport;
+			frameDecoder = new FrameDecoder(newTransport.getInputStream());
+			watchType = WatchType.UNKNOWN;
+			watchGen = WatchGen.UNKNOWN;
+			sendQueue.clear();
+			resetLCDDiffBuffer();
+			connectionState = CONNECTED;
+			LinkMetrics.connected();
+			startSender();
+		}
+	}
+
+	synchronized void disconnect() {
+		stopSender();
+		connectionState = DISCONNECTED;
+		WatchTransport transport = this.transport;
+		if (transport != null)
+			transport.close();
+		resetLCDDiffBuffer();
+		queries.clear();
+	}
+
+	/*
+	 * Blocks until the next frame arrives from the watch, and returns its
+	 * length.  The frame itself is in frame() until the next call.
+	 */
+	int readFrame() throws IOException {
+		FrameDecoder decoder = frameDecoder;
+		if (decoder == null)
+			throw new IOException("Not connected to " + address);
+		return decoder.next();
+	}
+
+	byte[] frame() {
+		return frameDecoder.frame();
+	}
+
+	/*
+	 * Reads frames for a secondary session on its own thread, reconnecting
+	 * whenever the connection is lost.
+	 */
+	private void startReader(final FrameListener listener) {
+		readerRunning = true;
+		readerThread = new Thread(new Runnable() {
+			public void run() {
+				while (readerRunning) {
+					try {
+						if (!isConnected()) {
+							connect();
+							listener.onConnected(WatchSession.this);
+						}
+						final int length = readFrame();
+						listener.onFrame(WatchSession.this, frame(), length);
+					} catch (RuntimeException e) {
+						// A bad frame or a failing handler, the connection is still fine
+						if (Preferences.logging) Log.e(MetaWatch.TAG, "WatchSession " + address + ": " + e.toString(), e);
+						if (!isConnected()) {
+							try {
+								Thread.sleep(RECONNECT_DELAY);
+							} catch (InterruptedException ie) {
+								break;
+							}
+						}
+					} catch (IOException e) {
+						if (Preferences.logging) Log.d(MetaWatch.TAG, "WatchSession " + address + ": " + e.toString());
+						if (isConnected())
+							LinkMetrics.connectionLost();
+						disconnect();
+						try {
+							Thread.sleep(RECONNECT_DELAY);
+						} catch (InterruptedException ie) {
+							break;
+						}
+					}
+				}
+			}
+		}, "WatchSession " + address);
+		readerThread.setDaemon(true);
+		readerThread.start();
+	}
+
+	private void stopReader() {
+		if (readerThread == null)
+			return;
+		readerRunning = false;
+		readerThread.interrupt();
+		readerThread = null;
+	}
+
+	/*
+	 * Whether this watch has any use for the frame: analog watches have no
+	 * LCD, digital ones no OLEDs.  Until the type is known, everything goes.
+	 * Nothing is queued while disconnected, it would be stale by the time
+	 * the watch is back.
+	 */
+	private boolean accepts(byte[] frame) {
+		if (!isConnected())
+			return false;
+		if (frame.length < 3)
+			return true;
+		final int type = frame[2] & 0xFF;
+		if (watchType == WatchType.DIGITAL)
+			return type < eMessageType.OledWriteBufferMsg.msg || type > eMessageType.OledCrownMenuButtonMsg.msg;
+		if (watchType == WatchType.ANALOG)
+			return type < eMessageType.WriteBuffer.msg || type > eMessageType.LoadTemplate.msg;
+		return true;
+	}
+
+	void enqueue(byte[] bytes) {
+		if (accepts(bytes))
+			sendQueue.add(bytes);
+	}
+
+	void pushhead(byte[] bytes) {
+		if (accepts(bytes))
+			sendQueue.pushhead(bytes);
+	}
+
+	synchronized void resetLCDDiffBuffer() {
+		lcdDiffBuffer = new MonoFrame[3];
+	}
+
+	/*
+	 * Queues the rows of frame that differ from what was last sent to the
+	 * given buffer of this watch, replacing any older screen for the buffer
+	 * still waiting to be sent.  Returns the number of rows queued.
+	 */
+	synchronized int sendLcdFrame(MonoFrame frame, int bufferType) {
+		if (!isConnected() || watchType == WatchType.ANALOG)
+			return 0;
+
+		MonoFrame previous = lcdDiffBuffer[bufferType];
+		// Rows of an older screen that never went out are sent again from
+		// this one, so the diff buffer still matches the watch once sent
+		final long dropped = sendQueue.supersede(bufferType);
+
+		int i = 0;
+		//if (bufferType == MetaWatchService.WatchBuffers.IDLE && idleShowClock)
+		//	i = 30;
+
+		int sentLines = 0;
+		for (; i < 96; i += 2) {
+			// Only send the row packet if the data's changed since the
+			// last time we sent it
+			if ((dropped & (1L << (i / 2))) == 0
+					&& frame.rowEquals(previous, i) && frame.rowEquals(previous, i + 1))
+				continue;
+
+			byte[] bytes = new byte[30];
+
+			bytes[0] = 0x01;
+			bytes[1] = (byte) (bytes.length+2); // packet length
+			bytes[2] = eMessageType.WriteBuffer.msg;
+			bytes[3] = (byte) (bufferType & 3);
+
+			bytes[4] = (byte) i; // row A
+			frame.getRow(i, bytes, 5);
+
+			bytes[4 + 13] = (byte) (i + 1); // row B
+			frame.getRow(i + 1, bytes, 5 + 13);
+
+			sendQueue.addRow(bytes, bufferType, i / 2);
+			sentLines += 2;
+		}
+		lcdDiffBuffer[bufferType] = frame;
+		LinkMetrics.rows(sentLines, 96 - sentLines);
+		if (Preferences.logging) Log.d(MetaWatch.TAG, address + ": sent " + sentLines + "/96 ("
+				+ 2 * Long.bitCount(dropped) + " replaced queued rows)");
+
+		return sentLines;
+	}
+
+	/*
+	 * Queues whatever should be on this watch's screen again, after its
+	 * queued screens were dropped.  The idle screen goes to every watch,
+	 * but the others only get the rows they are missing.
+	 */
+	private void resendScreens() {
+		final Context context = MetaWatchService.context;
+		if (context == null)
+			return;
+		
+		switch (MetaWatchService.watchState) {
+		case MetaWatchService.WatchStates.IDLE:
+			Idle.updateIdle(context, false);
+			break;
+		case MetaWatchService.WatchStates.APPLICATION:
+			Protocol.toSession(this, new Runnable() {
+				public void run() {
+					Application.updateAppMode(context);
+				}
+			});
+			break;
+		case MetaWatchService.WatchStates.NOTIFICATION:
+			Protocol.toSession(this, new Runnable() {
+				public void run() {
+					Notification.resend();
+				}
+			});
+			break;
+		}
+	}
+
+	/*
+	 * Called when the watch reports a status change, which it does after
+	 * each display update.
+	 */
+	void statusChanged() {
+		pacer.acknowledged();
+	}
+
+	private Runnable sender = new Runnable() {
+		public void run() {
+			carriedFrame = null;
+			while (senderRunning) {
+				try {
+					byte[] message = carriedFrame;
+					long enqueuedAt = carriedEnqueuedAt;
+					carriedFrame = null;
+					if (message == null) {
+						message = sendQueue.take();
+						enqueuedAt = sendQueue.getLastEnqueuedAt();
+					}
+					LinkMetrics.queueDepth(sendQueue.size() + 1);
+
+					long start = System.nanoTime();
+					int length = sendBurst(message, enqueuedAt);
+
+					// Pace the link by the number of bytes just written
+					pacer.burstSent(MetaWatchService.context, length, burstWriteNanos,
+							carriedFrame != null || !sendQueue.isEmpty(), burstUpdatesDisplay);
+					long wait = pacer.delayNanos(length);
+					if (wait > 0)
+						Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+
+					updateThroughput(length, System.nanoTime() - start);
+
+				} catch (InterruptedException ie) {
+					/* If we've been interrupted, exit gracefully. */
+					if (Preferences.logging) Log.d(MetaWatch.TAG,
+							"ProtocolSender was interrupted waiting for next message, exiting.");
+					break;
+				} catch (IOException e) {
+					if (Preferences.logging) Log.e(MetaWatch.TAG,
+							"ProtocolSender encountered an I/O error sending message!");
+					sendQueue.clear();
+					break;
+				}
+			}
+		}
+	};
+
+	/* Restarts the sender if it died (e.g. on an I/O error) with frames still waiting */
+	private synchronized void restartSenderIfStopped() {
+		if (senderRunning && !sendQueue.isEmpty()
+				&& (senderThread == null || !senderThread.isAlive())
+				&& isConnected()
+				&& Preferences.autoRestart) {
+			senderThread = new Thread(sender, "ProtocolSender " + address);
+			senderThread.setDaemon(true);
+			senderThread.start();
+			if (Preferences.logging) Log.d(MetaWatch.TAG, "Protocol sender restarted due to stalled queue");
+		}
+	}
+
+	private synchronized void startSender() {
+		if (senderRunning == false) {
+			pacer.load(MetaWatchService.context, address);
+			senderRunning = true;
+			senderThread = new Thread(sender, "ProtocolSender " + address);
+			senderThread.setDaemon(true);
+			senderThread.start();
+			stallDetector.start();
+		}
+	}
+
+	private synchronized void stopSender() {
+		if (senderRunning == true) {
+			/* Stops thread gracefully */
+			senderRunning = false;
+			/* Wakes up thread if it's sleeping on the queue */
+			senderThread.interrupt();
+			stallDetector.stop();
+			/* Thread is dead, we can mark it for garbage collection. */
+			senderThread = null;
+			pacer.save(MetaWatchService.context);
+		}
+	}
+
+	/*
+	 * Packs the given frame, plus as many of the frames waiting in the queue
+	 * as will fit, into the burst buffer with their CRCs and writes them to
+	 * the watch with a single write.  Returns the number of bytes written.
+	 */
+	private int sendBurst(byte[] first, long firstEnqueuedAt) throws IOException {
+		int length = 0;
+		int frames = 0;
+		burstUpdatesDisplay = false;
+		byte[] bytes = first;
+		long enqueuedAt = firstEnqueuedAt;
+		while (bytes != null) {
+			if (length + bytes.length + 2 > MAX_BURST_BYTES) {
+				carriedFrame = bytes;
+				carriedEnqueuedAt = enqueuedAt;
+				break;
+			}
+			burstFrameLengths[frames] = bytes.length + 2;
+			burstEnqueuedAt[frames++] = enqueuedAt;
+			if (queries.hasPending())
+				queries.sent(bytes);
+			if (bytes[2] == eMessageType.UpdateDisplay.msg)
+				burstUpdatesDisplay = true;
+			System.arraycopy(bytes, 0, burstBuffer, length, bytes.length);
+			Crc.compute(burstBuffer, length, bytes.length, burstBuffer, length + bytes.length);
+			length += bytes.length + 2;
+			bytes = sendQueue.poll();
+			if (bytes != null)
+				enqueuedAt = sendQueue.getLastEnqueuedAt();
+		}
+
+		if (Preferences.logging && PreferenceManager.getDefaultSharedPreferences(MetaWatchService.context)
+				.getBoolean("logPacketDetails", false)) {
+			StringBuilder str = new StringBuilder("sending: ");
+			for (int i = 0; i < length; i++) {
+				str.append("0x")
+					.append(Integer.toString((burstBuffer[i] & 0xff) + 0x100, 16).substring(1))
+					.append(", ");
+			}
+			Log.d(MetaWatch.TAG, str.toString());
+		}
+
+		WatchTransport transport = this.transport;
+		if (transport == null || transport.getOutputStream() == null)
+			throw new IOException("OutputStream is null");
+
+		OutputStream outputStream = transport.getOutputStream();
+		long writeStart = System.nanoTime();
+		stallDetector.writeStarted();
+		try {
+			outputStream.write(burstBuffer, 0, length);
+			outputStream.flush();
+		} finally {
+			stallDetector.writeFinished();
+		}
+		final long writeEnd = System.nanoTime();
+		burstWriteNanos = writeEnd - writeStart;
+
+		for (int i = 0, offset = 0; i < frames; i++) {
+			LinkMetrics.frameSent(burstBuffer[offset + 2], burstFrameLengths[i], burstEnqueuedAt[i], writeEnd);
+			offset += burstFrameLengths[i];
+		}
+
+		Protocol.updateClients(sendQueue.isEmpty() && carriedFrame == null);
+
+		return length;
+	}
+
+	private void updateThroughput(int length, long nanos) {
+		throughputBytes += length;
+		throughputNanos += nanos;
+
+		// Recalculate roughly once a second of busy time, or when the
+		// queue runs dry at the end of an update
+		if (throughputNanos >= 1000000000L || (sendQueue.isEmpty() && carriedFrame == null)) {
+			if (throughputNanos > 0)
+				bytesPerSecond = (int) (throughputBytes * 1000000000L / throughputNanos);
+			if (Preferences.logging) Log.d(MetaWatch.TAG, address + " sent " + throughputBytes + " bytes at " + bytesPerSecond + " bytes/s");
+			throughputBytes = 0;
+			throughputNanos = 0;
+		}
+	}
+
+	int getQueueLength() {
+		return sendQueue.size();
+	}
+
+	int getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	int getSupersededRows() {
+		return sendQueue.getSupersededRows();
+	}
+
+	int getLinkRate() {
+		return pacer.getRate();
+	}
+
+	int getStallCount() {
+		return stallDetector.getTotalEvents();
+	}
+
+	List<StallDetector.Event> getStalls() {
+		return stallDetector.getEvents();
+	}
+}
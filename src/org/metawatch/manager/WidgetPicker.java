@@ -105,8 +105,9 @@ public class WidgetPicker extends ListActivity {
 
             // Bind the data efficiently with the holder.
             holder.text.setText(mWidgets.get(position).description);
-            if(mWidgets.get(position).bitmap!=null) {
-            	Bitmap bmp = mWidgets.get(position).bitmap;
+            if(mWidgets.get(position).hasBitmap()) {
+            	// Only drawn once its cell is shown
+            	Bitmap bmp = mWidgets.get(position).getBitmap();
             	holder.icon.setVisibility(View.VISIBLE);
             	holder.icon.setImageBitmap(  Bitmap.createScaledBitmap(bmp, bmp.getWidth()*2, bmp.getHeight()*2, false) );
             } else {
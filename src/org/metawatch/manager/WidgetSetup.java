@@ -141,7 +141,7 @@ public class WidgetSetup extends Activity {
 				icon.setVisibility(View.VISIBLE);
 	            if(widgetMap.containsKey(id)) {
 	            	name = widgetMap.get(id).description;
-	            	bmp = widgetMap.get(id).bitmap;        	
+	            	bmp = widgetMap.get(id).getBitmap();        	
 	            } else {
 	            	bmp = Bitmap.createBitmap(1, 1, Config.ALPHA_8);
 	            }
@@ -7,10 +7,13 @@ import java.util.Stack;
 
 import org.metawatch.manager.FontCache;
 import org.metawatch.manager.FontCache.FontSize;
+import org.metawatch.manager.GlyphAtlas;
 import org.metawatch.manager.Idle;
 import org.metawatch.manager.MetaWatchService;
 import org.metawatch.manager.MetaWatchService.WatchType;
 import org.metawatch.manager.Protocol;
+import org.metawatch.manager.TextLayout;
+import org.metawatch.manager.TextLayoutCache;
 import org.metawatch.manager.Utils;
 import org.metawatch.manager.actions.Action;
 import org.metawatch.manager.actions.ActionManager;
@@ -24,9 +27,7 @@ import android.graphics.Paint;
 import android.graphics.PixelXorXfermode;
 import android.graphics.Region;
 import android.text.Layout;
-import android.text.StaticLayout;
 import android.text.TextPaint;
-import android.text.TextUtils;
 import android.text.TextUtils.TruncateAt;
 
 public class ActionsApp extends ApplicationBase {
@@ -192,6 +193,7 @@ public class ActionsApp extends ApplicationBase {
 		paint.setTextSize(FontCache.instance(context).Get().size);
 		paint.setTypeface(FontCache.instance(context).Get().face);
 		int textHeight = FontCache.instance(context).Get().realSize;
+		GlyphAtlas atlas = GlyphAtlas.get(FontCache.instance(context).Get());
 
 		Paint paintXor = new Paint();
 		paintXor.setXfermode(new PixelXorXfermode(Color.WHITE));
@@ -200,7 +202,7 @@ public class ActionsApp extends ApplicationBase {
 		paintWhite.setColor(Color.WHITE);
 		
 		String headerText = getHeaderText(context);
-		StaticLayout headerLayout = null;
+		TextLayout headerLayout = null;
 		int headerHeight = 0;
 		if (headerText != null) {
 			headerLayout = Utils.buildText(context, headerText, 96, Layout.Alignment.ALIGN_NORMAL, Color.BLACK, FontSize.SMALL);			
@@ -234,7 +236,7 @@ public class ActionsApp extends ApplicationBase {
 					name.append(")");
 				}
 				
-				final StaticLayout layout = new StaticLayout(name, paint, 79, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0, false);
+				final TextLayout layout = new TextLayout(atlas, name, 79, Layout.Alignment.ALIGN_NORMAL, 1.0f, Color.BLACK);
 				final int height = layout.getHeight();
 				
 				final int top = y;
@@ -254,7 +256,7 @@ public class ActionsApp extends ApplicationBase {
 							"---");
 					canvas.drawLine(7, y, 86, y, paint);
 					y+= 2;
-					canvas.drawText((String) TextUtils.ellipsize(timetext, paint, 79, TruncateAt.START), 7, y+textHeight, paint);
+					drawTextLine(canvas, atlas, timetext, 79, TruncateAt.START, 7, y+textHeight);
 					y+= textHeight+1;
 				}
 
@@ -277,7 +279,7 @@ public class ActionsApp extends ApplicationBase {
 							
 			} else {
 				//Draw elipsized text.
-				canvas.drawText((String) TextUtils.ellipsize(a.getName().replace("\n", " "), paint, 79, TruncateAt.END), 7, y+textHeight, paint);
+				drawTextLine(canvas, atlas, a.getName().replace("\n", " "), 79, TruncateAt.END, 7, y+textHeight);
 				y+= textHeight+1;
 			}
 		}
@@ -288,7 +290,7 @@ public class ActionsApp extends ApplicationBase {
 			canvas.drawRect(0, 0, 95, textHeight+4+headerHeight, paintWhite);
 		}
 		String title = getUiTitle();
-		canvas.drawText((String) TextUtils.ellipsize(title, paint, 84, TruncateAt.END), 2, textHeight+1, paint);
+		drawTextLine(canvas, atlas, title, 84, TruncateAt.END, 2, textHeight+1);
 		
 		if (headerLayout!=null) {
 			canvas.save();		
@@ -323,6 +325,15 @@ public class ActionsApp extends ApplicationBase {
 		return bitmap;
 	}
 
+	/* Draws one line of text, ellipsized to width, with its baseline at y */
+	private static void drawTextLine(Canvas canvas, GlyphAtlas atlas, String text, int width, TruncateAt where, int x, int y) {
+		final TextLayout layout = TextLayoutCache.get(atlas, TextLayout.ellipsize(atlas, text, width, where), width, Layout.Alignment.ALIGN_NORMAL, 1.0f, Color.BLACK);
+		canvas.save();
+		canvas.translate(x, y - layout.getAscent());
+		layout.draw(canvas);
+		canvas.restore();
+	}
+
 	private String getUiTitle() {
 		return (containerStack==null || containerStack.isEmpty() || containerStack.peek()==null) ? "Actions" : containerStack.peek().getTitle();
 	}
@@ -332,10 +343,7 @@ public class ActionsApp extends ApplicationBase {
 	}
 	
 	private Bitmap drawAnalog(final Context context, boolean preview) {
-		TextPaint paint = new TextPaint();
-		paint.setColor(Color.BLACK);
-		paint.setTextSize(FontCache.instance(context).Small.size);
-		paint.setTypeface(FontCache.instance(context).Small.face);
+		GlyphAtlas atlas = GlyphAtlas.get(FontCache.instance(context).Small);
 
 		Paint paintXor = new Paint();
 		paintXor.setXfermode(new PixelXorXfermode(Color.WHITE));
@@ -360,8 +368,8 @@ public class ActionsApp extends ApplicationBase {
 			position.append(")");
 		}
 			
-		canvas.drawText((String) TextUtils.ellipsize(title, paint, 74, TruncateAt.END), 0, 6, paint);
-		canvas.drawText((String) TextUtils.ellipsize(position.toString(), paint, 74, TruncateAt.END), 0, 13, paint);
+		drawTextLine(canvas, atlas, title, 74, TruncateAt.END, 0, 6);
+		drawTextLine(canvas, atlas, position.toString(), 74, TruncateAt.END, 0, 13);
 		
 		canvas.drawBitmap(Utils.getBitmap(context, "action_down_5.bmp"), 75, 11, null);
 		
@@ -377,12 +385,12 @@ public class ActionsApp extends ApplicationBase {
 					Utils.ticksToText(context, timestamp, true) :
 					"---");
 			
-			canvas.drawText((String) TextUtils.ellipsize(itemLine1, paint, 74, TruncateAt.END), 0, 21, paint);
-			canvas.drawText((String) TextUtils.ellipsize(itemLine2, paint, 74, TruncateAt.END), 0, 32, paint);
+			drawTextLine(canvas, atlas, itemLine1, 74, TruncateAt.END, 0, 21);
+			drawTextLine(canvas, atlas, itemLine2, 74, TruncateAt.END, 0, 32);
 		}
 		else {
 			// Wrap item over multiple lines
-			final StaticLayout layout = new StaticLayout(itemLine1, paint, 74, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0, false);
+			final TextLayout layout = new TextLayout(atlas, itemLine1, 74, Layout.Alignment.ALIGN_NORMAL, 1.0f, Color.BLACK);
 
 			canvas.save();		
 			canvas.translate(0, 16);
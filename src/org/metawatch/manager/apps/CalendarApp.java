@@ -15,6 +15,7 @@ import org.metawatch.manager.MetaWatchService.WatchType;
 import org.metawatch.manager.MetaWatchService;
 import org.metawatch.manager.Monitors;
 import org.metawatch.manager.Protocol;
+import org.metawatch.manager.TextLayout;
 import org.metawatch.manager.Utils;
 
 import android.content.Context;
@@ -26,7 +27,6 @@ import android.graphics.Paint.Align;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.text.Layout;
-import android.text.StaticLayout;
 import android.text.TextPaint;
 import android.text.format.DateFormat;
 import android.text.format.DateUtils;
@@ -270,7 +270,7 @@ public class CalendarApp extends ApplicationBase {
 								dateHeader = DateFormat.getDateFormat(context).format(entry.startTimestamp);
 							}
 							
-							StaticLayout layout = Utils.buildText(context, dateHeader, 88, Layout.Alignment.ALIGN_NORMAL, Color.BLACK, FontSize.SMALL);
+							TextLayout layout = Utils.buildText(context, dateHeader, 88, Layout.Alignment.ALIGN_NORMAL, Color.BLACK, FontSize.SMALL);
 
 							canvas.save();
 							canvas.clipRect(new Rect(4,11,92,92));
@@ -297,7 +297,7 @@ public class CalendarApp extends ApplicationBase {
 							builder.append(" (All day)");
 						}
 					
-						StaticLayout layout = Utils.buildText(context, builder.toString(), 84, Layout.Alignment.ALIGN_NORMAL, Color.BLACK, FontSize.SMALL);
+						TextLayout layout = Utils.buildText(context, builder.toString(), 84, Layout.Alignment.ALIGN_NORMAL, Color.BLACK, FontSize.SMALL);
 
 						canvas.save();
 						canvas.clipRect(new Rect(8,11,92,92));
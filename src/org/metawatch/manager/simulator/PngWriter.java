@@ -0,0 +1,66 @@
+package org.metawatch.manager.simulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+/*
+ * Minimal PNG encoder for 1 bit greyscale images, so the simulator can
+ * dump screens without Android's Bitmap or javax.imageio.
+ */
+class PngWriter {
+
+	private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+	private PngWriter() {
+	}
+
+	/*
+	 * Writes a width x height image from rows packed 8 pixels per byte,
+	 * leftmost pixel in the most significant bit, set bits white.
+	 */
+	static void writeMono(OutputStream out, int width, int height, byte[] rows) throws IOException {
+		final int stride = (width + 7) / 8;
+
+		DataOutputStream data = new DataOutputStream(out);
+		data.write(SIGNATURE);
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream h = new DataOutputStream(header);
+		h.writeInt(width);
+		h.writeInt(height);
+		h.writeByte(1); // bit depth
+		h.writeByte(0); // greyscale
+		h.writeByte(0); // deflate
+		h.writeByte(0); // adaptive filtering
+		h.writeByte(0); // not interlaced
+		writeChunk(data, "IHDR", header.toByteArray());
+
+		ByteArrayOutputStream pixels = new ByteArrayOutputStream();
+		DeflaterOutputStream deflater = new DeflaterOutputStream(pixels);
+		for (int y = 0; y < height; y++) {
+			deflater.write(0); // no filter
+			deflater.write(rows, y * stride, stride);
+		}
+		deflater.finish();
+		writeChunk(data, "IDAT", pixels.toByteArray());
+
+		writeChunk(data, "IEND", new byte[0]);
+		data.flush();
+	}
+
+	private static void writeChunk(DataOutputStream out, String type, byte[] body) throws IOException {
+		byte[] typeBytes = type.getBytes("US-ASCII");
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(body);
+
+		out.writeInt(body.length);
+		out.write(typeBytes);
+		out.write(body);
+		out.writeInt((int) crc.getValue());
+	}
+}
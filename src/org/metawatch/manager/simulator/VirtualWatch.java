@@ -0,0 +1,413 @@
+package org.metawatch.manager.simulator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+
+import org.metawatch.manager.Crc;
+import org.metawatch.manager.FrameDecoder;
+import org.metawatch.manager.eMessageType;
+
+/*
+ * A simulated watch that consumes the real framed byte stream from the
+ * app.  It checks CRCs, keeps the three LCD buffers and the OLED pages up
+ * to date, shows whichever buffer UpdateDisplay / ChangeMode select,
+ * answers device type, clock, battery and light sensor queries, and can
+ * press buttons and report status changes from a script.
+ *
+ * Every screen update is recorded with the number of bytes that went over
+ * the wire since the previous one, so the cost of rendering and protocol
+ * changes can be measured.
+ *
+ * Only plain Java is used, so this also runs on a desktop JVM - see main().
+ */
+public class VirtualWatch {
+
+	/* Device types reported in GetDeviceTypeResponse */
+	public static final int ANALOG = 1;
+	public static final int DIGITAL = 2;
+	public static final int DIGITAL_GEN2 = 5;
+
+	public static final int LCD_WIDTH = 96;
+	public static final int LCD_HEIGHT = 96;
+	private static final int LCD_BYTES_PER_ROW = LCD_WIDTH / 8;
+
+	public static final int OLED_WIDTH = 80;
+	public static final int OLED_PAGE_SIZE = 160;
+
+	private static final int MAX_UPDATES = 1000;
+
+	/* One screen update, and what it cost to get there */
+	public static class Update {
+		public final long timestamp;
+		public final boolean oled;
+		public final int mode;
+		public final int bytes;
+		public final int frames;
+		public final int rowsWritten;
+
+		Update(boolean oled, int mode, int bytes, int frames, int rowsWritten) {
+			this.timestamp = System.currentTimeMillis();
+			this.oled = oled;
+			this.mode = mode;
+			this.bytes = bytes;
+			this.frames = frames;
+			this.rowsWritten = rowsWritten;
+		}
+	}
+
+	private final InputStream fromPhone;
+	private final OutputStream toPhone;
+	private final int deviceType;
+
+	private final byte[][] lcd = new byte[3][LCD_BYTES_PER_ROW * LCD_HEIGHT];
+	private int lcdMode = 0;
+
+	private final byte[][][] oled = new byte[3][2][OLED_PAGE_SIZE];
+	private final int[] oledPageMode = new int[2];
+
+	/* Button codes enabled by the app, indexed by [mode][button][press type] */
+	private final int[][][] buttons = new int[3][16][8];
+
+	private final List<Update> updates = new ArrayList<Update>();
+	private long totalBytes = 0;
+	private int totalUpdates = 0;
+	private int pendingBytes = 0;
+	private int pendingFrames = 0;
+	private int pendingRows = 0;
+
+	private File dumpDirectory = null;
+	private int dumpCount = 0;
+
+	private FrameDecoder decoder = null;
+	private Thread readerThread = null;
+
+	public VirtualWatch(InputStream fromPhone, OutputStream toPhone, int deviceType) {
+		this.fromPhone = fromPhone;
+		this.toPhone = toPhone;
+		this.deviceType = deviceType;
+		for (int[][] mode : buttons)
+			for (int[] button : mode)
+				Arrays.fill(button, -1);
+	}
+
+	public boolean isAnalog() {
+		return deviceType == ANALOG;
+	}
+
+	/*
+	 * Dumps the screen as a PNG to the directory after every update.
+	 */
+	public synchronized void setDumpDirectory(File directory) {
+		dumpDirectory = directory;
+	}
+
+	public synchronized void start() {
+		if (readerThread != null)
+			return;
+		decoder = new FrameDecoder(fromPhone);
+		readerThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						int length = decoder.next();
+						process(decoder.frame(), length);
+					}
+				} catch (IOException e) {
+					// Connection closed
+				}
+				synchronized (VirtualWatch.this) {
+					readerThread = null;
+					VirtualWatch.this.notifyAll();
+				}
+			}
+		}, "VirtualWatch");
+		readerThread.start();
+	}
+
+	/*
+	 * Waits until the app closes the connection.
+	 */
+	public synchronized void join() throws InterruptedException {
+		while (readerThread != null)
+			wait();
+	}
+
+	private synchronized void process(byte[] bytes, int length) throws IOException {
+		pendingBytes += length;
+		pendingFrames++;
+
+		final byte type = bytes[2];
+		if (type == eMessageType.WriteBuffer.msg) {
+			final int mode = bytes[3] & 0x03;
+			// One or two rows of 1 + 12 bytes each
+			for (int offset = 4; offset + 1 + LCD_BYTES_PER_ROW <= length - 2; offset += 1 + LCD_BYTES_PER_ROW) {
+				final int row = bytes[offset] & 0xFF;
+				if (row < LCD_HEIGHT) {
+					System.arraycopy(bytes, offset + 1, lcd[mode], row * LCD_BYTES_PER_ROW, LCD_BYTES_PER_ROW);
+					pendingRows++;
+				}
+			}
+		} else if (type == eMessageType.LoadTemplate.msg) {
+			Arrays.fill(lcd[bytes[3] & 0x03], bytes[4] == 0 ? (byte) 0 : (byte) 0xFF);
+		} else if (type == eMessageType.UpdateDisplay.msg) {
+			lcdMode = bytes[3] & 0x03;
+			screenUpdated(false, lcdMode);
+			sendStatusChange(lcdMode, 0x01); // mode changed
+		} else if (type == eMessageType.ChangeModeMsg.msg) {
+			lcdMode = bytes[3] & 0x03;
+		} else if (type == eMessageType.OledWriteBufferMsg.msg) {
+			final int mode = bytes[3] & 0x03;
+			final int page = bytes[4] & 0x01;
+			if ((bytes[3] & 0x40) != 0) {
+				oledPageMode[page] = mode;
+				screenUpdated(true, mode);
+			} else {
+				final int start = bytes[5] & 0xFF;
+				final int size = Math.min(bytes[6] & 0xFF, OLED_PAGE_SIZE - start);
+				if (size > 0)
+					System.arraycopy(bytes, 7, oled[mode][page], start, size);
+			}
+		} else if (type == eMessageType.OledChangeModeMsg.msg) {
+			oledPageMode[0] = oledPageMode[1] = bytes[3] & 0x03;
+		} else if (type == eMessageType.EnableButtonMsg.msg) {
+			setButton(bytes[4], bytes[5], bytes[6], bytes[8] & 0xFF);
+		} else if (type == eMessageType.DisableButtonMsg.msg) {
+			setButton(bytes[4], bytes[5], bytes[6], -1);
+		} else if (type == eMessageType.GetDeviceType.msg) {
+			send(eMessageType.GetDeviceTypeResponse, 0, new byte[] { (byte) deviceType });
+		} else if (type == eMessageType.GetRealTimeClock.msg) {
+			Calendar calendar = Calendar.getInstance();
+			int year = calendar.get(Calendar.YEAR);
+			send(eMessageType.GetRealTimeClockResponse, 0, new byte[] {
+					(byte) (year / 256), (byte) (year % 256),
+					(byte) (calendar.get(Calendar.MONTH) + 1),
+					(byte) calendar.get(Calendar.DAY_OF_MONTH),
+					(byte) (calendar.get(Calendar.DAY_OF_WEEK) - 1),
+					(byte) calendar.get(Calendar.HOUR_OF_DAY),
+					(byte) calendar.get(Calendar.MINUTE),
+					(byte) calendar.get(Calendar.SECOND) });
+		} else if (type == eMessageType.ReadBatteryVoltageMsg.msg) {
+			final int millivolts = 3900;
+			send(eMessageType.ReadBatteryVoltageResponse, 0, new byte[] { 1, 0,
+					(byte) millivolts, (byte) (millivolts >> 8),
+					(byte) millivolts, (byte) (millivolts >> 8) });
+		} else if (type == eMessageType.ReadLightSensorMsg.msg) {
+			send(eMessageType.ReadLightSensorResponse, 0, new byte[] { 0, 0, 0, 0 });
+		}
+	}
+
+	private void setButton(int mode, int button, int pressType, int code) {
+		if (mode >= 0 && mode < 3 && button >= 0 && button < 16 && pressType >= 0 && pressType < 8)
+			buttons[mode][button][pressType] = code;
+	}
+
+	private void screenUpdated(boolean isOled, int mode) throws IOException {
+		Update update = new Update(isOled, mode, pendingBytes, pendingFrames, pendingRows);
+		if (updates.size() == MAX_UPDATES)
+			updates.remove(0);
+		updates.add(update);
+		totalBytes += pendingBytes;
+		totalUpdates++;
+		pendingBytes = pendingFrames = pendingRows = 0;
+
+		if (dumpDirectory != null) {
+			File file = new File(dumpDirectory, String.format("screen-%05d.png", dumpCount++));
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				writeScreen(out);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/*
+	 * Presses a button on the currently displayed screen.  Does nothing
+	 * unless the app enabled it for that mode.
+	 */
+	public synchronized boolean pressButton(int button, int pressType) throws IOException {
+		final int mode = isAnalog() ? oledPageMode[0] : lcdMode;
+		final int code = buttons[mode][button][pressType];
+		if (code < 0)
+			return false;
+		send(eMessageType.ButtonEventMsg, code, new byte[0]);
+		return true;
+	}
+
+	/*
+	 * Reports a status change, e.g. 0x01 mode changed, 0x02 mode timeout,
+	 * 0x10 scroll complete, 0x11 scroll request.
+	 */
+	public synchronized void sendStatusChange(int mode, int event) throws IOException {
+		send(eMessageType.StatusChangeEvent, mode, new byte[] { (byte) event });
+	}
+
+	private void send(eMessageType type, int options, byte[] payload) throws IOException {
+		final int length = 4 + payload.length + 2;
+		byte[] bytes = new byte[length];
+		bytes[0] = eMessageType.start;
+		bytes[1] = (byte) length;
+		bytes[2] = type.msg;
+		bytes[3] = (byte) options;
+		System.arraycopy(payload, 0, bytes, 4, payload.length);
+		Crc.compute(bytes, 0, length - 2, bytes, length - 2);
+		synchronized (toPhone) {
+			toPhone.write(bytes);
+			toPhone.flush();
+		}
+	}
+
+	/*
+	 * Runs a script of button presses and status changes on its own thread.
+	 * Each line is a delay in milliseconds followed by one of
+	 *
+	 *   button <button> <press type>
+	 *   status <event>
+	 *
+	 * Blank lines and lines starting with # are ignored.
+	 */
+	public void runScript(final Reader script) {
+		new Thread(new Runnable() {
+			public void run() {
+				BufferedReader reader = new BufferedReader(script);
+				try {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						line = line.trim();
+						if (line.length() == 0 || line.startsWith("#"))
+							continue;
+						String[] words = line.split("\\s+");
+						Thread.sleep(Long.parseLong(words[0]));
+						if (words[1].equals("button")) {
+							pressButton(Integer.parseInt(words[2]), Integer.parseInt(words[3]));
+						} else if (words[1].equals("status")) {
+							int mode;
+							synchronized (VirtualWatch.this) {
+								mode = lcdMode;
+							}
+							sendStatusChange(mode, Integer.parseInt(words[2]));
+						}
+					}
+				} catch (InterruptedException e) {
+				} catch (IOException e) {
+				} finally {
+					try {
+						reader.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}, "VirtualWatchScript").start();
+	}
+
+	/*
+	 * Writes what the watch is displaying as a PNG: the current LCD buffer,
+	 * or both OLED pages one above the other.
+	 */
+	public synchronized void writeScreen(OutputStream out) throws IOException {
+		if (isAnalog()) {
+			final int stride = OLED_WIDTH / 8;
+			byte[] rows = new byte[stride * 32];
+			for (int page = 0; page < 2; page++) {
+				byte[] data = oled[oledPageMode[page]][page];
+				for (int y = 0; y < 16; y++) {
+					for (int x = 0; x < OLED_WIDTH; x++) {
+						boolean lit = (data[(y / 8) * OLED_WIDTH + x] & (1 << (y % 8))) != 0;
+						if (lit)
+							rows[(page * 16 + y) * stride + x / 8] |= 0x80 >> (x % 8);
+					}
+				}
+			}
+			PngWriter.writeMono(out, OLED_WIDTH, 32, rows);
+		} else {
+			byte[] data = lcd[lcdMode];
+			byte[] rows = new byte[data.length];
+			// LCD bits are leftmost pixel first and set for black, PNG the opposite
+			for (int i = 0; i < data.length; i++)
+				rows[i] = (byte) ~(Integer.reverse(data[i] & 0xFF) >>> 24);
+			PngWriter.writeMono(out, LCD_WIDTH, LCD_HEIGHT, rows);
+		}
+	}
+
+	/* Copy of an LCD buffer, in the layout the app sends */
+	public synchronized byte[] getLcdBuffer(int mode) {
+		return lcd[mode].clone();
+	}
+
+	public synchronized int getLcdMode() {
+		return lcdMode;
+	}
+
+	/* The most recent updates, oldest first */
+	public synchronized List<Update> getUpdates() {
+		return new ArrayList<Update>(updates);
+	}
+
+	public synchronized String getSummary() {
+		StringBuilder summary = new StringBuilder();
+		summary.append(totalUpdates).append(" screen updates, ")
+				.append(totalBytes).append(" bytes");
+		if (totalUpdates > 0)
+			summary.append(" (").append(totalBytes / totalUpdates).append(" bytes/update)");
+		if (decoder != null)
+			summary.append(", ").append(decoder.getCrcErrors()).append(" CRC errors, ")
+					.append(decoder.getDiscardedBytes()).append(" bytes discarded");
+		return summary.toString();
+	}
+
+	/*
+	 * Serves a simulated watch on a TCP port, for the app to connect to with
+	 * a watch address of tcp:host:port.
+	 *
+	 *   VirtualWatch [port] [digital|gen2|analog] [dump directory] [script]
+	 */
+	public static void main(String[] args) throws Exception {
+		final int port = args.length > 0 ? Integer.parseInt(args[0]) : 8888;
+		int deviceType = DIGITAL;
+		if (args.length > 1) {
+			if (args[1].equals("analog"))
+				deviceType = ANALOG;
+			else if (args[1].equals("gen2"))
+				deviceType = DIGITAL_GEN2;
+		}
+		final File dumpDirectory = args.length > 2 ? new File(args[2]) : null;
+		final File script = args.length > 3 ? new File(args[3]) : null;
+
+		ServerSocket server = new ServerSocket(port);
+		System.out.println("VirtualWatch listening on port " + port);
+		while (true) {
+			Socket socket = server.accept();
+			socket.setTcpNoDelay(true);
+			System.out.println("Connection from " + socket.getRemoteSocketAddress());
+
+			VirtualWatch watch = new VirtualWatch(socket.getInputStream(), socket.getOutputStream(), deviceType);
+			if (dumpDirectory != null) {
+				dumpDirectory.mkdirs();
+				watch.setDumpDirectory(dumpDirectory);
+			}
+			watch.start();
+			if (script != null)
+				watch.runScript(new FileReader(script));
+			watch.join();
+			socket.close();
+
+			for (Update update : watch.getUpdates())
+				System.out.println((update.oled ? "OLED" : "LCD") + " mode " + update.mode + ": "
+						+ update.bytes + " bytes, " + update.frames + " frames, "
+						+ update.rowsWritten + " rows");
+			System.out.println(watch.getSummary());
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package org.metawatch.manager.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/*
+ * Bounded, blocking, in-memory byte pipe between two threads.  Writers
+ * block while the pipe is full, so a slow reader pushes back on the writer
+ * much like a real link would.
+ *
+ * Unlike java.io.PipedInputStream this doesn't care which threads read or
+ * write, or whether they are still alive.
+ */
+class BytePipe {
+
+	private final byte[] buffer;
+	private int head = 0; // next byte to read
+	private int count = 0;
+	private boolean closed = false;
+
+	BytePipe(int capacity) {
+		buffer = new byte[capacity];
+	}
+
+	synchronized int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		try {
+			while (count == 0 && !closed)
+				wait();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		if (count == 0)
+			return -1;
+
+		int n = Math.min(len, count);
+		int first = Math.min(n, buffer.length - head);
+		System.arraycopy(buffer, head, b, off, first);
+		System.arraycopy(buffer, 0, b, off + first, n - first);
+		head = (head + n) % buffer.length;
+		count -= n;
+		notifyAll();
+		return n;
+	}
+
+	synchronized void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			try {
+				while (count == buffer.length && !closed)
+					wait();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			if (closed)
+				throw new IOException("Pipe closed");
+
+			int tail = (head + count) % buffer.length;
+			int n = Math.min(len, Math.min(buffer.length - count, buffer.length - tail));
+			System.arraycopy(b, off, buffer, tail, n);
+			count += n;
+			off += n;
+			len -= n;
+			notifyAll();
+		}
+	}
+
+	synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	final InputStream inputStream = new InputStream() {
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return BytePipe.this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return BytePipe.this.read(b, off, len);
+		}
+
+		@Override
+		public int available() {
+			synchronized (BytePipe.this) {
+				return count;
+			}
+		}
+
+		@Override
+		public void close() {
+			BytePipe.this.close();
+		}
+	};
+
+	final OutputStream outputStream = new OutputStream() {
+		@Override
+		public void write(int b) throws IOException {
+			BytePipe.this.write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			BytePipe.this.write(b, off, len);
+		}
+
+		@Override
+		public void close() {
+			BytePipe.this.close();
+		}
+	};
+}
@@ -0,0 +1,48 @@
+package org.metawatch.manager.transport;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/*
+ * In-memory connection for running the protocol stack against a simulated
+ * watch in the same process.  The simulator talks to the watch side
+ * streams, the app to the usual ones.
+ */
+public class LoopbackTransport implements WatchTransport {
+
+	/* Roughly what the RFCOMM stack buffers */
+	private static final int PIPE_CAPACITY = 4096;
+
+	private final BytePipe toWatch = new BytePipe(PIPE_CAPACITY);
+	private final BytePipe toPhone = new BytePipe(PIPE_CAPACITY);
+
+	public void connect() {
+	}
+
+	public InputStream getInputStream() {
+		return toPhone.inputStream;
+	}
+
+	public OutputStream getOutputStream() {
+		return toWatch.outputStream;
+	}
+
+	/* What the app sent, as seen by the watch */
+	public InputStream getWatchInputStream() {
+		return toWatch.inputStream;
+	}
+
+	/* For the watch to send to the app */
+	public OutputStream getWatchOutputStream() {
+		return toPhone.outputStream;
+	}
+
+	public void close() {
+		toWatch.close();
+		toPhone.close();
+	}
+
+	public String getName() {
+		return "Loopback";
+	}
+}
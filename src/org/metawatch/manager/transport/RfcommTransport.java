@@ -0,0 +1,110 @@
+package org.metawatch.manager.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+/*
+ * Bluetooth serial port connection, as used by real watches.
+ */
+public class RfcommTransport implements WatchTransport {
+
+	private static final UUID SERIAL_PORT_UUID = UUID
+			.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+	private final BluetoothAdapter bluetoothAdapter;
+	private final String address;
+	private final boolean skipSDP;
+	private final boolean insecure;
+
+	private BluetoothSocket bluetoothSocket = null;
+	private InputStream inputStream = null;
+	private OutputStream outputStream = null;
+
+	/*
+	 * skipSDP connects straight to channel 1 instead of looking up the
+	 * serial port service, insecure avoids pairing prompts where supported.
+	 */
+	public RfcommTransport(BluetoothAdapter bluetoothAdapter, String address,
+			boolean skipSDP, boolean insecure) {
+		this.bluetoothAdapter = bluetoothAdapter;
+		this.address = address;
+		this.skipSDP = skipSDP;
+		this.insecure = insecure;
+	}
+
+	@TargetApi(10)
+	public void connect() throws IOException {
+		BluetoothDevice bluetoothDevice = bluetoothAdapter.getRemoteDevice(address);
+
+		int currentapiVersion = android.os.Build.VERSION.SDK_INT;
+		boolean useInsecure = insecure && currentapiVersion >= android.os.Build.VERSION_CODES.GINGERBREAD_MR1;
+
+		if (skipSDP) {
+			try {
+				Method method;
+				if (useInsecure) {
+					method = bluetoothDevice.getClass().getMethod("createInsecureRfcommSocket", new Class[] { int.class });
+				} else {
+					method = bluetoothDevice.getClass().getMethod("createRfcommSocket", new Class[] { int.class });
+				}
+				bluetoothSocket = (BluetoothSocket) method.invoke(bluetoothDevice, 1);
+			} catch (Exception e) {
+				IOException io = new IOException("Unable to create RFCOMM socket: " + e.toString());
+				io.initCause(e);
+				throw io;
+			}
+		} else {
+			if (useInsecure) {
+				bluetoothSocket = bluetoothDevice
+						.createInsecureRfcommSocketToServiceRecord(SERIAL_PORT_UUID);
+			} else {
+				bluetoothSocket = bluetoothDevice
+						.createRfcommSocketToServiceRecord(SERIAL_PORT_UUID);
+			}
+		}
+
+		bluetoothAdapter.cancelDiscovery();
+		bluetoothSocket.connect();
+
+		inputStream = bluetoothSocket.getInputStream();
+		outputStream = bluetoothSocket.getOutputStream();
+	}
+
+	public InputStream getInputStream() {
+		return inputStream;
+	}
+
+	public OutputStream getOutputStream() {
+		return outputStream;
+	}
+
+	public void close() {
+		try {
+			if (outputStream != null)
+				outputStream.close();
+		} catch (IOException e) {
+		}
+		try {
+			if (inputStream != null)
+				inputStream.close();
+		} catch (IOException e) {
+		}
+		try {
+			if (bluetoothSocket != null)
+				bluetoothSocket.close();
+		} catch (IOException e) {
+		}
+	}
+
+	public String getName() {
+		return "RFCOMM " + address;
+	}
+}
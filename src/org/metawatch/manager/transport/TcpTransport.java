@@ -0,0 +1,58 @@
+package org.metawatch.manager.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/*
+ * Connection to a simulated watch listening on a TCP port, for testing the
+ * protocol stack without a real watch.
+ */
+public class TcpTransport implements WatchTransport {
+
+	private static final int CONNECT_TIMEOUT = 10000; // ms
+
+	private final String host;
+	private final int port;
+
+	private Socket socket = null;
+	private InputStream inputStream = null;
+	private OutputStream outputStream = null;
+
+	public TcpTransport(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	public void connect() throws IOException {
+		socket = new Socket();
+		// Frames are small and latency sensitive, don't let Nagle hold them back
+		socket.setTcpNoDelay(true);
+		socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+
+		inputStream = socket.getInputStream();
+		outputStream = socket.getOutputStream();
+	}
+
+	public InputStream getInputStream() {
+		return inputStream;
+	}
+
+	public OutputStream getOutputStream() {
+		return outputStream;
+	}
+
+	public void close() {
+		try {
+			if (socket != null)
+				socket.close();
+		} catch (IOException e) {
+		}
+	}
+
+	public String getName() {
+		return "TCP " + host + ":" + port;
+	}
+}
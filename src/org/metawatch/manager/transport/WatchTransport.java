@@ -0,0 +1,26 @@
+package org.metawatch.manager.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/*
+ * A byte stream connection to a watch.  The protocol code only ever sees
+ * the two streams, so the same stack can run over Bluetooth, an in-memory
+ * pipe or a TCP socket.
+ */
+public interface WatchTransport {
+
+	/* Blocks until connected, or throws */
+	public void connect() throws IOException;
+
+	/* Only valid after connect() */
+	public InputStream getInputStream();
+	public OutputStream getOutputStream();
+
+	/* Closes the connection, unblocking any pending reads */
+	public void close();
+
+	/* Short description for logs */
+	public String getName();
+}
@@ -14,11 +14,11 @@ import org.apache.http.impl.client.DefaultHttpClient;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.metawatch.manager.Idle;
 import org.metawatch.manager.MetaWatch;
 import org.metawatch.manager.MetaWatchService;
 import org.metawatch.manager.MetaWatchService.GeolocationMode;
 import org.metawatch.manager.MetaWatchService.Preferences;
+import org.metawatch.manager.Monitors;
 import org.metawatch.manager.Monitors.LocationData;
 import org.metawatch.manager.Utils;
 
@@ -217,7 +217,7 @@ public class WunderWeatherEngine extends AbstractWeatherEngine {
 				weatherData.error = false;
 				weatherData.errorString = "";
 				
-				Idle.updateIdle(context, true);
+				Monitors.publish(context, Monitors.DataSource.WEATHER);
 				MetaWatchService.notifyClients();
 
 			}
@@ -15,10 +15,10 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.util.EntityUtils;
-import org.metawatch.manager.Idle;
 import org.metawatch.manager.MetaWatch;
 import org.metawatch.manager.MetaWatchService;
 import org.metawatch.manager.MetaWatchService.Preferences;
+import org.metawatch.manager.Monitors;
 import org.metawatch.manager.Monitors.LocationData;
 import org.metawatch.manager.Utils;
 import org.xml.sax.Attributes;
@@ -164,7 +164,7 @@ public class YahooWeatherEngine extends AbstractWeatherEngine {
 				weatherData.error = false;
 				weatherData.errorString = "";
 				
-				Idle.updateIdle(context, true);
+				Monitors.publish(context, Monitors.DataSource.WEATHER);
 				MetaWatchService.notifyClients();
 			}
 
@@ -6,9 +6,12 @@ import java.util.List;
 import java.util.Map;
 
 import org.metawatch.manager.FontCache;
+import org.metawatch.manager.GlyphAtlas;
 import org.metawatch.manager.MetaWatch;
 import org.metawatch.manager.MetaWatchService.Preferences;
 import org.metawatch.manager.Monitors;
+import org.metawatch.manager.TextLayout;
+import org.metawatch.manager.TextLayoutCache;
 import org.metawatch.manager.Utils;
 
 import android.app.AlarmManager;
@@ -21,7 +24,6 @@ import android.graphics.Color;
 import android.graphics.Paint.Align;
 import android.graphics.Point;
 import android.text.Layout;
-import android.text.StaticLayout;
 import android.text.TextPaint;
 import android.text.format.DateUtils;
 import android.util.Log;
@@ -91,6 +93,10 @@ public class CalendarWidget implements InternalWidget {
 
 	long lastRefresh = 0;
 
+	public int getDataSources() {
+		return Monitors.DataSource.CALENDAR | Monitors.DataSource.TIME;
+	}
+
 	public void refresh(ArrayList<CharSequence> widgetIds) {
 
 		// Run the refresh in its own thread, so as not to stall the main MWM process
@@ -229,16 +235,32 @@ public class CalendarWidget implements InternalWidget {
 			widget.height = 46;
 		}
 
+		final String icon = iconFile;
+		final Utils.CalendarEntry entry = calendarEntry;
+		final int dayOfMonth = Calendar.getInstance().get(Calendar.DAY_OF_MONTH);
+		widget.setDrawer(new WidgetData.Drawer() {
+			public Bitmap draw(WidgetData widget) {
+				return drawWidget(widget, icon, entry);
+			}
+		}, entry == null ? null : icon + "|" + entry.displayTime() + "|" + entry.title + "|" + entry.location
+				+ "|" + entry.startTimestamp + "|" + dayOfMonth);
+		
+		return widget;
+	}
+	
+	private synchronized Bitmap drawWidget(WidgetData widget, String iconFile, Utils.CalendarEntry entry) {
+		final String widget_id = widget.id;
+		
 		Bitmap icon = iconFile == null ? null : Utils.getBitmap(context, iconFile);
 
-		widget.bitmap = Bitmap.createBitmap(widget.width, widget.height, Bitmap.Config.RGB_565);
-		Canvas canvas = new Canvas(widget.bitmap);
+		Bitmap bitmap = Bitmap.createBitmap(widget.width, widget.height, Bitmap.Config.RGB_565);
+		Canvas canvas = new Canvas(bitmap);
 		canvas.drawColor(Color.WHITE);
 
 		Point iconOffset = Utils.getIconOffset(widget.height);
 		Point textOffset = Utils.getTextOffset(widget.height);
 		
-		String meetingTime = calendarEntry.displayTime();
+		String meetingTime = entry.displayTime();
 		
 		if (widget.height == 16 && icon != null) {
 			canvas.drawBitmap(icon, widget.width == 16 ? 2 : 0, iconOffset.y, null);
@@ -263,17 +285,17 @@ public class CalendarWidget implements InternalWidget {
 			canvas.drawBitmap(icon, 11, iconOffset.y, null);
 		
 			if ((Preferences.displayLocationInSmallCalendarWidget)&&
-					(!meetingTime.equals("None"))&&(calendarEntry.location!=null)&&
-					(!calendarEntry.location.equals("---"))&&(widget_id.equals(id_0))&&
-					(calendarEntry.location.length()>0)&&(calendarEntry.location.length()<=3)) {
-				canvas.drawText(calendarEntry.location, 23, (iconOffset.y+13), paintSmall);        
+					(!meetingTime.equals("None"))&&(entry.location!=null)&&
+					(!entry.location.equals("---"))&&(widget_id.equals(id_0))&&
+					(entry.location.length()>0)&&(entry.location.length()<=3)) {
+				canvas.drawText(entry.location, 23, (iconOffset.y+13), paintSmall);        
 			}
 			else 
 			{
 				Calendar c = Calendar.getInstance(); 
 				if ((Preferences.eventDateInCalendarWidget)&&
 						(!meetingTime.equals("None"))) {
-					c.setTimeInMillis(calendarEntry.startTimestamp);
+					c.setTimeInMillis(entry.startTimestamp);
 				}
 				int dayOfMonth = c.get(Calendar.DAY_OF_MONTH);
 				if(dayOfMonth<10) {
@@ -291,17 +313,17 @@ public class CalendarWidget implements InternalWidget {
 			canvas.drawBitmap(icon, 0, iconOffset.y, null);
 
 			if ((Preferences.displayLocationInSmallCalendarWidget)&&
-					(!meetingTime.equals("None"))&&(calendarEntry.location!=null)&&
-					(!calendarEntry.location.equals("---"))&&(widget_id.equals(id_0))&&
-					(calendarEntry.location.length()>0)&&(calendarEntry.location.length()<=3)) {
-				canvas.drawText(calendarEntry.location, 12, (iconOffset.y+13), paintSmall);        
+					(!meetingTime.equals("None"))&&(entry.location!=null)&&
+					(!entry.location.equals("---"))&&(widget_id.equals(id_0))&&
+					(entry.location.length()>0)&&(entry.location.length()<=3)) {
+				canvas.drawText(entry.location, 12, (iconOffset.y+13), paintSmall);        
 			}
 			else 
 			{
 				Calendar c = Calendar.getInstance(); 
 				if ((Preferences.eventDateInCalendarWidget)&&
 						(!meetingTime.equals("None"))) {
-					c.setTimeInMillis(calendarEntry.startTimestamp);
+					c.setTimeInMillis(entry.startTimestamp);
 				}
 				int dayOfMonth = c.get(Calendar.DAY_OF_MONTH);
 				if(dayOfMonth<10) {
@@ -319,22 +341,21 @@ public class CalendarWidget implements InternalWidget {
 		String text = "";
 		if (iconFile==null)
 			text = meetingTime;
-		if ((calendarEntry.title!=null)) {
+		if ((entry.title!=null)) {
 			if (text.length()>0)
 				text += " : ";
-			text += calendarEntry.title;
+			text += entry.title;
 		}
-		if ((calendarEntry.location !=null) && (calendarEntry.location.length()>0))
-			text += " - " + calendarEntry.location;
+		if ((entry.location !=null) && (entry.location.length()>0))
+			text += " - " + entry.location;
 		
 		if (widget_id.equals(id_1) || widget_id.equals(id_4) ) {
 			
-			paintSmall.setTextAlign(Align.LEFT);
-			
 			int iconSpace = iconFile == null ? 0 : 25;
 			
 			canvas.save();			
-			StaticLayout layout = new StaticLayout(text, paintSmall, widget.width-iconSpace, Layout.Alignment.ALIGN_CENTER, 1.2f, 0, false);
+			TextLayout layout = TextLayoutCache.get(GlyphAtlas.get(FontCache.instance(context).Small), text,
+					widget.width-iconSpace, Layout.Alignment.ALIGN_CENTER, 1.2f, Color.BLACK);
 			int height = layout.getHeight();
 			int textY = 16 - (height/2);
 			if(textY<0) {
@@ -343,17 +364,14 @@ public class CalendarWidget implements InternalWidget {
 			canvas.translate(iconSpace, textY); //position the text
 			layout.draw(canvas);
 			canvas.restore();	
-
-			paintSmall.setTextAlign(Align.CENTER);
 		}
 		else if (widget_id.equals(id_3) || widget_id.equals(id_5) ) {
 			
-			paintSmall.setTextAlign(Align.LEFT);
-
 			int iconSpace = iconFile == null ? 0 : 11;
-
+			
 			canvas.save();			
-			StaticLayout layout = new StaticLayout(text, paintSmall, widget.width-iconSpace, Layout.Alignment.ALIGN_CENTER, 1.0f, 0, false);
+			TextLayout layout = TextLayoutCache.get(GlyphAtlas.get(FontCache.instance(context).Small), text,
+					widget.width-iconSpace, Layout.Alignment.ALIGN_CENTER, 1.0f, Color.BLACK);
 			int height = layout.getHeight();
 			int textY = 8 - (height/2);
 			if(textY<0) {
@@ -362,12 +380,10 @@ public class CalendarWidget implements InternalWidget {
 			canvas.translate(iconSpace, textY); //position the text
 			layout.draw(canvas);
 			canvas.restore();	
-
-			paintSmall.setTextAlign(Align.CENTER);
 		}
 
 
-		return widget;
+		return bitmap;
 	}
 
 
@@ -2,6 +2,7 @@ package org.metawatch.manager.widgets;
 
 import java.util.ArrayList;
 
+import org.metawatch.manager.Monitors;
 import org.metawatch.manager.Utils;
 
 public class GmailWidget extends SimpleIconWidget {
@@ -36,6 +37,11 @@ public class GmailWidget extends SimpleIconWidget {
 		return "idle_gmail.bmp";
 	}
 
+	@Override
+	public int getDataSources() {
+		return Monitors.DataSource.GMAIL;
+	}
+
 	@Override
 	public void refresh(ArrayList<CharSequence> widgetIds) {
 	}
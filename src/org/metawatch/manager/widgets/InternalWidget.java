@@ -18,11 +18,61 @@ public interface InternalWidget {
 		public Bitmap bitmap;
 		
 		public int priority;
+		
+		/* Set by WidgetManager, changes only when the widget's content does */
+		public long version;
+		
+		/*
+		 * Draws the bitmap the first time it is asked for, so widgets whose
+		 * previews are never looked at aren't drawn at all.
+		 */
+		public interface Drawer {
+			public Bitmap draw(WidgetData widget);
+		}
+		
+		private Drawer drawer = null;
+		
+		/*
+		 * What the drawer draws from, e.g. an icon name and a count, so
+		 * WidgetManager can tell whether the content changed without
+		 * drawing it.  Without it the pixels are compared.
+		 */
+		public String content = null;
+		
+		public synchronized void setDrawer(Drawer drawer) {
+			this.drawer = drawer;
+			bitmap = null;
+		}
+		
+		public synchronized void setDrawer(Drawer drawer, String content) {
+			setDrawer(drawer);
+			this.content = content;
+		}
+		
+		/* Whether there is a bitmap, without drawing it */
+		public synchronized boolean hasBitmap() {
+			return bitmap != null || drawer != null;
+		}
+		
+		public synchronized boolean isDrawn() {
+			return drawer == null;
+		}
+		
+		public synchronized Bitmap getBitmap() {
+			if (drawer != null) {
+				bitmap = drawer.draw(this);
+				drawer = null;
+			}
+			return bitmap;
+		}
 	}
 	
 	public void init(Context context, ArrayList<CharSequence> widgetIds);
 	public void shutdown();
 	
+	/* The Monitors.DataSources the content is derived from */
+	public int getDataSources();
+	
 	public void refresh(ArrayList<CharSequence> widgetIds);
 	public void get(ArrayList<CharSequence> widgetIds, Map<String,WidgetData> result);
 	
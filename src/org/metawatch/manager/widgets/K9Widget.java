@@ -2,6 +2,7 @@ package org.metawatch.manager.widgets;
 
 import java.util.ArrayList;
 
+import org.metawatch.manager.Monitors;
 import org.metawatch.manager.Utils;
 
 public class K9Widget extends SimpleIconWidget {
@@ -36,6 +37,11 @@ public class K9Widget extends SimpleIconWidget {
 		return "idle_k9mail.bmp";
 	}
 
+	@Override
+	public int getDataSources() {
+		return Monitors.DataSource.K9;
+	}
+
 	@Override
 	public void refresh(ArrayList<CharSequence> widgetIds) {
 	}
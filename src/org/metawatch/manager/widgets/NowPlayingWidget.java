@@ -5,6 +5,7 @@ import java.util.Map;
 
 import org.metawatch.manager.FontCache;
 import org.metawatch.manager.MediaControl;
+import org.metawatch.manager.Monitors;
 import org.metawatch.manager.Utils;
 
 import android.content.Context;
@@ -47,6 +48,10 @@ public class NowPlayingWidget implements InternalWidget {
 		paintSmall = null;
 	}
 
+	public int getDataSources() {
+		return Monitors.DataSource.MEDIA;
+	}
+
 	public void refresh(ArrayList<CharSequence> widgetIds) {
 	}
 
@@ -100,14 +105,20 @@ public class NowPlayingWidget implements InternalWidget {
 			trackInfoText = text.toString();
 		}
 		
-		widget.bitmap = Bitmap.createBitmap(widget.width, widget.height, Bitmap.Config.RGB_565);
-		Canvas canvas = new Canvas(widget.bitmap);
-		canvas.drawColor(Color.WHITE);
-		
-		Bitmap image = Utils.getBitmap(context, "idle_music.bmp");
-		canvas.drawBitmap(image, 0, 1, null);
-		
-		Utils.autoText(context, canvas, trackInfoText, 17, 1, widget.width-17, widget.height-2, Layout.Alignment.ALIGN_CENTER, Color.BLACK);
+		final String trackText = trackInfoText;
+		widget.setDrawer(new WidgetData.Drawer() {
+			public Bitmap draw(WidgetData widget) {
+				Bitmap bitmap = Bitmap.createBitmap(widget.width, widget.height, Bitmap.Config.RGB_565);
+				Canvas canvas = new Canvas(bitmap);
+				canvas.drawColor(Color.WHITE);
+				
+				Bitmap image = Utils.getBitmap(context, "idle_music.bmp");
+				canvas.drawBitmap(image, 0, 1, null);
+				
+				Utils.autoText(context, canvas, trackText, 17, 1, widget.width-17, widget.height-2, Layout.Alignment.ALIGN_CENTER, Color.BLACK);
+				return bitmap;
+			}
+		}, trackText);
 		
 		return widget;
 	}
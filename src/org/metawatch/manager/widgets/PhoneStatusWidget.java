@@ -48,6 +48,10 @@ public class PhoneStatusWidget implements InternalWidget {
 		paintSmall = null;
 	}
 
+	public int getDataSources() {
+		return Monitors.DataSource.BATTERY;
+	}
+
 	public void refresh(ArrayList<CharSequence> widgetIds) {
 	}
 
@@ -7,8 +7,8 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 
-import org.metawatch.manager.Idle;
 import org.metawatch.manager.MetaWatch;
+import org.metawatch.manager.Monitors;
 import org.metawatch.manager.Utils;
 
 import android.content.Context;
@@ -34,7 +34,7 @@ public class PictureWidget implements InternalWidget {
 			synchronized (this) {
 				Log.d(MetaWatch.TAG, "Pictures updated!");
 				parent.loadPictures();
-				Idle.updateIdle(context, true);
+				Monitors.publish(context, Monitors.DataSource.PICTURES);
 			}
 		}
 	}
@@ -89,6 +89,10 @@ public class PictureWidget implements InternalWidget {
 		}
 	}
 
+	public int getDataSources() {
+		return Monitors.DataSource.PICTURES;
+	}
+
 	public void refresh(ArrayList<CharSequence> widgetIds) {
 		if(widgetIds == null) {
 			loadPictures();
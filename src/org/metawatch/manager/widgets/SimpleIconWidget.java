@@ -110,12 +110,17 @@ public abstract class SimpleIconWidget implements InternalWidget {
 			textPaint = paintLarge;
 		}
 		
-		Bitmap icon = Utils.getBitmap(context, iconFile);
-
-		int count = getCount();
+		final String icon = iconFile;
+		final TextPaint paint = textPaint;
+		final int count = getCount();
 
 		widget.priority = count;		
-		widget.bitmap = Utils.DrawIconCountWidget(context, widget.width, widget.height, icon, count, textPaint);
+		widget.setDrawer(new WidgetData.Drawer() {
+			public Bitmap draw(WidgetData widget) {
+				return Utils.DrawIconCountWidget(context, widget.width, widget.height,
+						Utils.getBitmap(context, icon), count, paint);
+			}
+		}, icon + ":" + count);
 				
 		return widget;
 	}
@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Map;
 
 import org.metawatch.manager.FontCache;
+import org.metawatch.manager.Monitors;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -57,6 +58,10 @@ public class TestWidget implements InternalWidget {
 		paintSmall = null;
 	}
 
+	public int getDataSources() {
+		return Monitors.DataSource.ALL;
+	}
+
 	public void refresh(ArrayList<CharSequence> widgetIds) {
 	}
 
@@ -36,6 +36,11 @@ public class TouchDownWidget extends SimpleIconWidget {
 		return "idle_touchdown.bmp";
 	}
 
+	@Override
+	public int getDataSources() {
+		return Monitors.DataSource.TOUCHDOWN;
+	}
+
 	@Override
 	public void refresh(ArrayList<CharSequence> widgetIds) {
 	}
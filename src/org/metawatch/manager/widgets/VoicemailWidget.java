@@ -5,6 +5,7 @@ import java.util.Map;
 
 import org.metawatch.manager.Call;
 import org.metawatch.manager.FontCache;
+import org.metawatch.manager.Monitors;
 import org.metawatch.manager.Utils;
 
 import android.content.Context;
@@ -45,6 +46,10 @@ public class VoicemailWidget implements InternalWidget {
 		paintSmall = null;
 	}
 
+	public int getDataSources() {
+		return Monitors.DataSource.VOICEMAIL;
+	}
+
 	public void refresh(ArrayList<CharSequence> widgetIds) {
 	}
 
@@ -78,10 +83,15 @@ public class VoicemailWidget implements InternalWidget {
 			iconFile = "idle_voicemail_10.bmp";
 		}
 		
-		Bitmap icon = Utils.getBitmap(context, iconFile);
+		final String icon = iconFile;
 
 		widget.priority = Call.voicemailWaiting ? 10 : -1;		
-		widget.bitmap = Utils.DrawIconStringWidget(context, widget.width, widget.height, icon, "", widget.width == 24 ? paintSmall : paintSmallNumerals);
+		widget.setDrawer(new WidgetData.Drawer() {
+			public Bitmap draw(WidgetData widget) {
+				return Utils.DrawIconStringWidget(context, widget.width, widget.height, Utils.getBitmap(context, icon),
+						"", widget.width == 24 ? paintSmall : paintSmallNumerals);
+			}
+		}, icon);
 		
 		return widget;
 	}
@@ -106,6 +106,10 @@ public class WeatherWidget implements InternalWidget {
 		paintSmall = null;
 	}
 
+	public int getDataSources() {
+		return Monitors.DataSource.WEATHER;
+	}
+
 	public void refresh(ArrayList<CharSequence> widgetIds) {
 	}
 
@@ -114,6 +118,11 @@ public class WeatherWidget implements InternalWidget {
 		if(context ==null)
 			return;
 		
+		// Everything the drawer reads from
+		final String content = Monitors.weatherData.toString() + Monitors.weatherData.error + Monitors.weatherData.errorString
+				+ MetaWatchService.watchType + LocationData.received + Preferences.weatherGeolocationMode
+				+ Preferences.overlayWeatherText + Preferences.invertLCD + Preferences.displayWidgetIconOnTop;
+		
 		if(widgetIds == null || widgetIds.contains(id_0)) {
 			InternalWidget.WidgetData widget = new InternalWidget.WidgetData();
 			
@@ -122,7 +131,7 @@ public class WeatherWidget implements InternalWidget {
 			widget.width = 24;
 			widget.height = 32;
 			
-			widget.bitmap = draw0();
+			widget.setDrawer(drawer, content);
 			widget.priority = calcPriority();
 			
 			result.put(widget.id, widget);
@@ -136,7 +145,7 @@ public class WeatherWidget implements InternalWidget {
 			widget.width = 96;
 			widget.height = 32;
 			
-			widget.bitmap = draw1();
+			widget.setDrawer(drawer, content);
 			widget.priority = calcPriority();
 			
 			result.put(widget.id, widget);
@@ -150,7 +159,7 @@ public class WeatherWidget implements InternalWidget {
 			widget.width = 96;
 			widget.height = 32;
 			
-			widget.bitmap = draw2();
+			widget.setDrawer(drawer, content);
 			widget.priority = calcPriority();
 			
 			result.put(widget.id, widget);
@@ -164,7 +173,7 @@ public class WeatherWidget implements InternalWidget {
 			widget.width = 24;
 			widget.height = 32;
 			
-			widget.bitmap = draw3();
+			widget.setDrawer(drawer, content);
 			widget.priority = Monitors.weatherData.moonPercentIlluminated !=-1 ? calcPriority() : -1;
 			
 			result.put(widget.id, widget);
@@ -178,7 +187,7 @@ public class WeatherWidget implements InternalWidget {
 			widget.width = 80;
 			widget.height = 16;
 			
-			widget.bitmap = draw4();
+			widget.setDrawer(drawer, content);
 			widget.priority = calcPriority();
 			
 			result.put(widget.id, widget);
@@ -192,7 +201,7 @@ public class WeatherWidget implements InternalWidget {
 			widget.width = 16;
 			widget.height = 16;
 			
-			widget.bitmap = draw5();
+			widget.setDrawer(drawer, content);
 			widget.priority = Monitors.weatherData.moonPercentIlluminated !=-1 ? calcPriority() : -1;
 			
 			result.put(widget.id, widget);
@@ -206,7 +215,7 @@ public class WeatherWidget implements InternalWidget {
 			widget.width = 80;
 			widget.height = 16;
 			
-			widget.bitmap = draw6();
+			widget.setDrawer(drawer, content);
 			widget.priority = calcPriority();
 			
 			result.put(widget.id, widget);
@@ -221,7 +230,7 @@ public class WeatherWidget implements InternalWidget {
 			widget.width = 48;
 			widget.height = 32;
 			
-			widget.bitmap = draw7();
+			widget.setDrawer(drawer, content);
 			widget.priority = calcPriority();
 			
 			result.put(widget.id, widget);
@@ -235,7 +244,7 @@ public class WeatherWidget implements InternalWidget {
 			widget.width = 12;
 			widget.height = 12;
 			
-			widget.bitmap = draw8();
+			widget.setDrawer(drawer, content);
 			widget.priority = calcPriority();
 			
 			result.put(widget.id, widget);
@@ -249,7 +258,7 @@ public class WeatherWidget implements InternalWidget {
 			widget.width = 24;
 			widget.height = 24;
 			
-			widget.bitmap = draw9();
+			widget.setDrawer(drawer, content);
 			widget.priority = calcPriority();
 			
 			result.put(widget.id, widget);
@@ -263,7 +272,7 @@ public class WeatherWidget implements InternalWidget {
 			widget.width = 24;
 			widget.height = 16;
 			
-			widget.bitmap = draw10();
+			widget.setDrawer(drawer, content);
 			widget.priority = calcPriority();
 			
 			result.put(widget.id, widget);
@@ -277,13 +286,32 @@ public class WeatherWidget implements InternalWidget {
 			widget.width = 46;
 			widget.height = 46;
 			
-			widget.bitmap = draw11();
+			widget.setDrawer(drawer, content);
 			widget.priority = calcPriority();
 			
 			result.put(widget.id, widget);
 		}
 	}
 	
+	/* Draws each variant on demand, they all share the paints */
+	private final WidgetData.Drawer drawer = new WidgetData.Drawer() {
+		public Bitmap draw(WidgetData widget) {
+			String id = widget.id;
+			if (id.equals(id_0)) return draw0();
+			if (id.equals(id_1)) return draw1();
+			if (id.equals(id_2)) return draw2();
+			if (id.equals(id_3)) return draw3();
+			if (id.equals(id_4)) return draw4();
+			if (id.equals(id_5)) return draw5();
+			if (id.equals(id_6)) return draw6();
+			if (id.equals(id_7)) return draw7();
+			if (id.equals(id_8)) return draw8();
+			if (id.equals(id_9)) return draw9();
+			if (id.equals(id_10)) return draw10();
+			return draw11();
+		}
+	};
+	
 	private int calcPriority()
 	{
 		if(Preferences.weatherProvider == MetaWatchService.WeatherProvider.DISABLED)
@@ -292,7 +320,7 @@ public class WeatherWidget implements InternalWidget {
 		return Monitors.weatherData.received ? 1 : 0;
 	}
 		
-	private Bitmap draw0() {
+	private synchronized Bitmap draw0() {
 		Bitmap bitmap = Bitmap.createBitmap(24, 32, Bitmap.Config.RGB_565);
 		Canvas canvas = new Canvas(bitmap);
 		canvas.drawColor(Color.WHITE);
@@ -326,7 +354,7 @@ public class WeatherWidget implements InternalWidget {
 		return bitmap;
 	}
 	
-	private Bitmap draw1() {
+	private synchronized Bitmap draw1() {
 		Bitmap bitmap = Bitmap.createBitmap(96, 32, Bitmap.Config.RGB_565);
 		Canvas canvas = new Canvas(bitmap);
 		canvas.drawColor(Color.WHITE);
@@ -396,7 +424,7 @@ public class WeatherWidget implements InternalWidget {
 		return bitmap;
 	}
 
-	private Bitmap draw2() {
+	private synchronized Bitmap draw2() {
 		Bitmap bitmap = Bitmap.createBitmap(96, 32, Bitmap.Config.RGB_565);
 		Canvas canvas = new Canvas(bitmap);
 		canvas.drawColor(Color.WHITE);
@@ -449,7 +477,7 @@ public class WeatherWidget implements InternalWidget {
 	
 	final static int[] phaseImage = {0,0,1,1,1,1,1,2,2,2,3,3,3,3,4,4,4,5,5,5,5,5,6,6,7,7,7,7,0,0,0};
 	
-	private Bitmap draw3() {
+	private synchronized Bitmap draw3() {
 		Bitmap bitmap = Bitmap.createBitmap(24, 32, Bitmap.Config.RGB_565);
 		Canvas canvas = new Canvas(bitmap);
 		canvas.drawColor(Color.WHITE);
@@ -476,7 +504,7 @@ public class WeatherWidget implements InternalWidget {
 		return bitmap;
 	}
 
-	private Bitmap draw4() {
+	private synchronized Bitmap draw4() {
 		Bitmap bitmap = Bitmap.createBitmap(80, 16, Bitmap.Config.RGB_565);
 		Canvas canvas = new Canvas(bitmap);
 		canvas.drawColor(Color.WHITE);
@@ -539,7 +567,7 @@ public class WeatherWidget implements InternalWidget {
 		return bitmap;
 	}
 	
-	private Bitmap draw5() {
+	private synchronized Bitmap draw5() {
 		Bitmap bitmap = Bitmap.createBitmap(16, 16, Bitmap.Config.RGB_565);
 		Canvas canvas = new Canvas(bitmap);
 		canvas.drawColor(Color.WHITE);
@@ -561,7 +589,7 @@ public class WeatherWidget implements InternalWidget {
 		return bitmap;
 	}
 
-	private Bitmap draw6() {
+	private synchronized Bitmap draw6() {
 		Bitmap bitmap = Bitmap.createBitmap(80, 16, Bitmap.Config.RGB_565);
 		Canvas canvas = new Canvas(bitmap);
 		canvas.drawColor(Color.WHITE);
@@ -614,7 +642,7 @@ public class WeatherWidget implements InternalWidget {
 	}
 	
 
-	private Bitmap draw7() {
+	private synchronized Bitmap draw7() {
 		Bitmap bitmap = Bitmap.createBitmap(48, 32, Bitmap.Config.RGB_565);
 		Canvas canvas = new Canvas(bitmap);
 		canvas.drawColor(Color.WHITE);
@@ -672,7 +700,7 @@ public class WeatherWidget implements InternalWidget {
 		return bitmap;
 	}
 	
-	private Bitmap draw8() {
+	private synchronized Bitmap draw8() {
 		Bitmap bitmap = Bitmap.createBitmap(12, 12, Bitmap.Config.RGB_565);
 		Canvas canvas = new Canvas(bitmap);
 		canvas.drawColor(Color.WHITE);
@@ -693,7 +721,7 @@ public class WeatherWidget implements InternalWidget {
 		return bitmap;
 	}
 
-	private Bitmap draw9() {
+	private synchronized Bitmap draw9() {
 		Bitmap bitmap = Bitmap.createBitmap(24, 24, Bitmap.Config.RGB_565);
 		Canvas canvas = new Canvas(bitmap);
 		canvas.drawColor(Color.WHITE);
@@ -713,7 +741,7 @@ public class WeatherWidget implements InternalWidget {
 		return bitmap;
 	}
 	
-	private Bitmap draw10() {
+	private synchronized Bitmap draw10() {
 		Bitmap bitmap = Bitmap.createBitmap(24, 16, Bitmap.Config.RGB_565);
 		Canvas canvas = new Canvas(bitmap);
 		canvas.drawColor(Color.WHITE);
@@ -747,7 +775,7 @@ public class WeatherWidget implements InternalWidget {
 		return bitmap;
 	}
 	
-	private Bitmap draw11() {
+	private synchronized Bitmap draw11() {
 		Bitmap bitmap = Bitmap.createBitmap(46, 46, Bitmap.Config.RGB_565);
 		Canvas canvas = new Canvas(bitmap);
 		canvas.drawColor(Color.WHITE);
@@ -4,12 +4,16 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.metawatch.manager.Idle;
 import org.metawatch.manager.MetaWatch;
 import org.metawatch.manager.MetaWatchService;
 import org.metawatch.manager.MetaWatchService.Preferences;
 import org.metawatch.manager.MetaWatchService.WatchType;
+import org.metawatch.manager.Monitors;
 import org.metawatch.manager.widgets.WidgetRow;
 import org.metawatch.manager.widgets.InternalWidget.WidgetData;
 import org.metawatch.manager.widgets.GmailWidget;
@@ -35,6 +39,24 @@ public class WidgetManager {
 	static Map<String,WidgetData> dataCache;
 	static Object lock = new Object();
 	
+	/* Hash of the content of each widget in dataCache */
+	private static Map<String,Long> contentHashes = new HashMap<String,Long>();
+	private static long nextVersion = 1;
+	/* Reused for hashing the pixels of widgets that don't describe their content */
+	private static int[] hashPixels = new int[0];
+	
+	/* Monitors.DataSources changed since the widgets depending on them were refreshed */
+	private static int invalidSources = Monitors.DataSource.ALL;
+	private static Object invalidSourcesLock = new Object();
+	/* The widgets desired in the last refresh */
+	private static ArrayList<CharSequence> lastDesired = null;
+	
+	/* How many widgets refresh at once */
+	private final static int REFRESH_THREADS = 3;
+	private static ExecutorService refreshPool = null;
+	/* Refreshes still running, possibly past their deadline */
+	private static Map<InternalWidget,Refresh> refreshing = new HashMap<InternalWidget,Refresh>();
+	
 	static long lastWidgetBroadcast = 0;
 	
 	public static String defaultWidgetsDigital = "weather_96_32|missedCalls_24_32,unreadSms_24_32,unreadGmail_24_32";
@@ -68,16 +90,179 @@ public class WidgetManager {
 		refreshWidgets(context, null);
 	}
 	
+	/* Marks the widgets depending on the given Monitors.DataSources as out of date */
+	public static void invalidate(int sources) {
+		synchronized (invalidSourcesLock) {
+			invalidSources |= sources;
+		}
+	}
+	
+	/*
+	 * Forgets what every widget looked like, so the next refresh gives them
+	 * all new versions.  For changes the widgets' content doesn't capture,
+	 * like preferences or the theme.
+	 */
+	public static void invalidateContent() {
+		synchronized (lock) {
+			contentHashes.clear();
+		}
+	}
+	
+	private static int takeInvalidSources() {
+		synchronized (invalidSourcesLock) {
+			int sources = invalidSources;
+			invalidSources = 0;
+			return sources;
+		}
+	}
+	
 	public static Map<String,WidgetData> refreshWidgets(Context context, ArrayList<CharSequence> widgetsDesired) {
+		return refreshWidgets(context, widgetsDesired, Monitors.DataSource.ALL);
+	}
+	
+	/*
+	 * Refreshes only the widgets depending on a source invalidated since the
+	 * last call.  Everything is refreshed when the desired widgets change, as
+	 * the new ones may never have been generated.
+	 */
+	public static Map<String,WidgetData> refreshInvalidWidgets(Context context, ArrayList<CharSequence> widgetsDesired) {
+		return refreshWidgets(context, widgetsDesired, takeInvalidSources());
+	}
+	
+	/*
+	 * One widget's refresh() and get(), run on the refresh pool.  The result
+	 * is merged by whoever is waiting for it, or by the refresh itself if
+	 * it finished after its deadline.
+	 */
+	private static class Refresh implements Runnable {
+		final Context context;
+		final InternalWidget widget;
+		final ArrayList<CharSequence> widgetsDesired;
+		final Map<String,WidgetData> result = new HashMap<String,WidgetData>();
+		
+		/* Guarded by lock */
+		boolean done = false;
+		boolean late = false;
+		/* Invalidated again while this refresh was running */
+		boolean again = false;
+		
+		Refresh(Context context, InternalWidget widget, ArrayList<CharSequence> widgetsDesired) {
+			this.context = context;
+			this.widget = widget;
+			this.widgetsDesired = widgetsDesired;
+		}
+		
+		public void run() {
+			try {
+				widget.refresh(widgetsDesired);
+				widget.get(widgetsDesired, result);
+			} catch (RuntimeException e) {
+				Log.e(MetaWatch.TAG, "Refreshing "+widget.getClass().getSimpleName()+" failed", e);
+				result.clear();
+			}
+			
+			boolean redraw = false;
+			boolean repeat;
+			synchronized (lock) {
+				done = true;
+				refreshing.remove(widget);
+				if (late) {
+					if (Preferences.logging) Log.d(MetaWatch.TAG, "WidgetManager: "
+							+ widget.getClass().getSimpleName() + " finished after its deadline");
+					for(WidgetData data : result.values())
+						merge(data, widgetsDesired!=null);
+					redraw = true;
+				}
+				repeat = again;
+				lock.notifyAll();
+			}
+			
+			if (repeat)
+				Idle.updateIdle(context, widget.getDataSources());
+			else if (redraw)
+				Idle.updateIdle(context, false);
+		}
+	}
+	
+	private static synchronized ExecutorService getRefreshPool() {
+		if (refreshPool == null) {
+			refreshPool = Executors.newFixedThreadPool(REFRESH_THREADS, new ThreadFactory() {
+				int count = 0;
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "WidgetRefresh-" + (++count));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return refreshPool;
+	}
+	
+	/*
+	 * Refreshes the widgets depending on the given sources on the refresh
+	 * pool, waiting at most Preferences.widgetDeadline for them.  Widgets
+	 * that don't make it keep their last data, and the idle screen is
+	 * redrawn when they do finish.
+	 */
+	private static Map<String,WidgetData> refreshWidgets(Context context, ArrayList<CharSequence> widgetsDesired, int sources) {
+		List<Refresh> started = new ArrayList<Refresh>();
+		
 		synchronized (lock) {
 					
-			if(dataCache==null)
+			if(dataCache==null) {
 				dataCache = new HashMap<String,WidgetData>();
+				sources = Monitors.DataSource.ALL;
+			}
+			
+			if(widgetsDesired==null ? lastDesired!=null : !widgetsDesired.equals(lastDesired))
+				sources = Monitors.DataSource.ALL;
+			lastDesired = widgetsDesired==null ? null : new ArrayList<CharSequence>(widgetsDesired);
 			
 			for(InternalWidget widget : widgets) {
-				widget.refresh(widgetsDesired);
-				widget.get(widgetsDesired, dataCache);
+				if((widget.getDataSources() & sources) == 0)
+					continue;
+				Refresh running = refreshing.get(widget);
+				if(running != null) {
+					// Still busy with an earlier refresh, go again once that's done
+					running.again = true;
+					continue;
+				}
+				Refresh refresh = new Refresh(context, widget, widgetsDesired);
+				refreshing.put(widget, refresh);
+				started.add(refresh);
 			}
+		}
+		
+		ExecutorService pool = getRefreshPool();
+		for(Refresh refresh : started)
+			pool.execute(refresh);
+		
+		final long deadline = System.currentTimeMillis() + Preferences.widgetDeadline;
+		
+		synchronized (lock) {
+			int missed = 0;
+			for(Refresh refresh : started) {
+				long now = System.currentTimeMillis();
+				try {
+					while(!refresh.done && now < deadline) {
+						lock.wait(deadline - now);
+						now = System.currentTimeMillis();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				if(refresh.done) {
+					for(WidgetData data : refresh.result.values())
+						merge(data, widgetsDesired!=null);
+				}
+				else {
+					refresh.late = true;
+					missed++;
+				}
+			}
+			if (Preferences.logging) Log.d(MetaWatch.TAG, "WidgetManager.refreshWidgets(): refreshed "
+					+ (started.size()-missed) + " of " + widgets.size() + " widgets, "
+					+ missed + " missed the deadline");
 	
 			if (System.currentTimeMillis() - lastWidgetBroadcast > TIME_ONE_MINUTE ) {
 				Intent intent = new Intent("org.metawatch.manager.REFRESH_WIDGET_REQUEST");
@@ -95,21 +280,94 @@ public class WidgetManager {
 				lastWidgetBroadcast = System.currentTimeMillis();
 			}
 			
-			return dataCache;
+			// A copy, as late refreshes keep merging into dataCache
+			return new HashMap<String,WidgetData>(dataCache);
+		
+		}
+	}
+	
+	/*
+	 * Puts a freshly generated widget into dataCache, unless it looks
+	 * exactly like the one already there.  Keeping the old entry keeps its
+	 * version, so pages showing it know they needn't be redrawn.
+	 * 
+	 * Widgets that describe their content are compared by that.  For others
+	 * comparing means drawing the widget, which is only worth it for the
+	 * ones that will be shown.  Those not yet drawn get a new version.
+	 */
+	private static void merge(WidgetData widget, boolean shown) {
+		if (!shown && widget.content == null && !widget.isDrawn()) {
+			widget.version = nextVersion++;
+			dataCache.put(widget.id, widget);
+			contentHashes.remove(widget.id);
+			return;
+		}
+		
+		final long hash = contentHash(widget);
+		WidgetData previous = dataCache.get(widget.id);
+		Long previousHash = contentHashes.get(widget.id);
+		if (previous != null && previousHash != null && previousHash.longValue() == hash)
+			return;
+		
+		widget.version = nextVersion++;
+		dataCache.put(widget.id, widget);
+		contentHashes.put(widget.id, hash);
+	}
+	
+	/*
+	 * 64 bit FNV-1a over everything a page uses to draw the widget: its
+	 * content description if it has one, otherwise its pixels.  Only called
+	 * under lock.
+	 */
+	private static long contentHash(WidgetData widget) {
+		final long prime = 0x100000001b3L;
+		long hash = 0xcbf29ce484222325L;
 		
+		hash = (hash ^ widget.width) * prime;
+		hash = (hash ^ widget.height) * prime;
+		hash = (hash ^ widget.priority) * prime;
+		if (widget.description != null)
+			hash = (hash ^ widget.description.hashCode()) * prime;
+		
+		final String content = widget.content;
+		if (content != null) {
+			for (int i = 0; i < content.length(); i++)
+				hash = (hash ^ content.charAt(i)) * prime;
+			return hash;
+		}
+		
+		final Bitmap bitmap = widget.getBitmap();
+		if (bitmap != null) {
+			final int width = bitmap.getWidth();
+			final int height = bitmap.getHeight();
+			if (hashPixels.length < width * height)
+				hashPixels = new int[width * height];
+			final int[] pixels = hashPixels;
+			bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+			hash = (hash ^ width) * prime;
+			hash = (hash ^ height) * prime;
+			for (int i = 0; i < width * height; i++)
+				hash = (hash ^ pixels[i]) * prime;
 		}
+		return hash;
 	}
 	
 	public static Map<String,WidgetData> getCachedWidgets(Context context, ArrayList<CharSequence> widgetsDesired) {
-		if(dataCache==null)
-			return refreshWidgets(context, widgetsDesired);
+		synchronized (lock) {
+			if(dataCache!=null)
+				return new HashMap<String,WidgetData>(dataCache);
+		}
 		
-		return dataCache;
+		return refreshWidgets(context, widgetsDesired);
 	}	
 	
 	public static List<WidgetRow> getDesiredWidgetsFromPrefs(Context context) {
+		return getDesiredWidgetsFromPrefs(context, MetaWatchService.watchType);
+	}
+	
+	public static List<WidgetRow> getDesiredWidgetsFromPrefs(Context context, int watchType) {
 			
-		String[] rows = MetaWatchService.getWidgets(context).split("\\|");
+		String[] rows = MetaWatchService.getWidgets(context, watchType).split("\\|");
 		
 		List<WidgetRow> result = new ArrayList<WidgetRow>();
 		
@@ -159,7 +417,7 @@ public class WidgetManager {
 			if(dataCache==null)
 				dataCache = new HashMap<String,WidgetData>();
 			
-			dataCache.put(widget.id, widget);
+			merge(widget, true);
 			if (Preferences.logging) Log.d(MetaWatch.TAG, "Received widget "+widget.id+ " successfully");
 			
 			Idle.updateIdle(context, false); // false as we don't want to trigger another UPDATE broadcast
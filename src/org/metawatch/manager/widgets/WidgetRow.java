@@ -16,11 +16,13 @@ public class WidgetRow {
 	ArrayList<WidgetData> widgets = null;
 	int totalWidth = 0;
 	int totalHeight = 0;
+	/* Width of the screen the row was laid out for */
+	int layoutWidth = 0;
 	
-	private int screenWidth() {
-		if (MetaWatchService.watchType == MetaWatchService.WatchType.DIGITAL)
+	private int screenWidth(int watchType) {
+		if (watchType == MetaWatchService.WatchType.DIGITAL)
 			return 96;
-		else if (MetaWatchService.watchType == MetaWatchService.WatchType.ANALOG)
+		else if (watchType == MetaWatchService.WatchType.ANALOG)
 			return 80;
 		else
 			return 0;
@@ -35,16 +37,21 @@ public class WidgetRow {
 	}
 	
 	public void doLayout(Map<String,WidgetData> widgetData) {
+		doLayout(widgetData, MetaWatchService.watchType);
+	}
+	
+	public void doLayout(Map<String,WidgetData> widgetData, int watchType) {
 		widgets = new ArrayList<WidgetData>();
 		
-		final int screenWidth = screenWidth();
+		final int screenWidth = screenWidth(watchType);
+		layoutWidth = screenWidth;
 		
 		int priorityCutoff = (Preferences.hideEmptyWidgets && !Preferences.hiddenWidgetsReserveSpace) ? 0 : -1; 
 		
 		totalWidth = 0;
 		for( CharSequence id : widgetIDs ) {
 			WidgetData widget = widgetData.get(id);
-			if(widget!=null && widget.bitmap!=null && widget.priority>priorityCutoff) {
+			if(widget!=null && widget.hasBitmap() && widget.priority>priorityCutoff) {
 				widgets.add(widget);
 				totalWidth += widget.width;
 			}
@@ -95,7 +102,7 @@ public class WidgetRow {
 		if (widgets==null)
 			return;
 		
-		final float space = (float)(screenWidth()-totalWidth)/(float)(2*(widgets.size()));		
+		final float space = (float)(layoutWidth-totalWidth)/(float)(2*(widgets.size()));		
 		float x=space;
 		for(WidgetData widget : widgets) {
 			int yAdd = 0;
@@ -103,7 +110,7 @@ public class WidgetRow {
 				yAdd = (totalHeight/2)-(widget.height/2);
 
 			if ( !(Preferences.hideEmptyWidgets && Preferences.hiddenWidgetsReserveSpace && (widget.priority < 1))) 
-				canvas.drawBitmap(widget.bitmap, (int)x, y+yAdd, null);
+				canvas.drawBitmap(widget.getBitmap(), (int)x, y+yAdd, null);
 			
 			x += ((space*2)+widget.width);
 		}	